@@ -0,0 +1,125 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Immutable position of a block which, unlike {@link Block}, doesn't hold
+ * any reference to the world and can be safely stored and serialized.
+ */
+public final class BlockKey {
+    private final UUID worldId;
+    private final int x;
+    private final int y;
+    private final int z;
+
+    public BlockKey(UUID worldId, int x, int y, int z) {
+        this.worldId = Objects.requireNonNull(worldId, "worldId");
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    public static BlockKey of(Block block) {
+        Objects.requireNonNull(block, "block");
+        return new BlockKey(block.getWorld().getUID(), block.getX(), block.getY(), block.getZ());
+    }
+
+    public UUID getWorldId() {
+        return this.worldId;
+    }
+
+    public int getX() {
+        return this.x;
+    }
+
+    public int getY() {
+        return this.y;
+    }
+
+    public int getZ() {
+        return this.z;
+    }
+
+    public Optional<Block> toBlock(Server server) {
+        Objects.requireNonNull(server, "server");
+        World world = server.getWorld(this.worldId);
+        return world == null ? Optional.empty() : Optional.of(world.getBlockAt(this.x, this.y, this.z));
+    }
+
+    public Optional<Location> toLocation(Server server) {
+        Objects.requireNonNull(server, "server");
+        World world = server.getWorld(this.worldId);
+        return world == null ? Optional.empty() : Optional.of(new Location(world, this.x, this.y, this.z));
+    }
+
+    public void write(DataOutput output) throws IOException {
+        Objects.requireNonNull(output, "output");
+        output.writeLong(this.worldId.getMostSignificantBits());
+        output.writeLong(this.worldId.getLeastSignificantBits());
+        output.writeInt(this.x);
+        output.writeInt(this.y);
+        output.writeInt(this.z);
+    }
+
+    public static BlockKey read(DataInput input) throws IOException {
+        Objects.requireNonNull(input, "input");
+        UUID worldId = new UUID(input.readLong(), input.readLong());
+        return new BlockKey(worldId, input.readInt(), input.readInt(), input.readInt());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        BlockKey blockKey = (BlockKey) o;
+        return this.x == blockKey.x &&
+                this.y == blockKey.y &&
+                this.z == blockKey.z &&
+                this.worldId.equals(blockKey.worldId);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = this.worldId.hashCode();
+        result = 31 * result + this.x;
+        result = 31 * result + this.y;
+        result = 31 * result + this.z;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "BlockKey{" +
+                "worldId=" + this.worldId +
+                ", x=" + this.x +
+                ", y=" + this.y +
+                ", z=" + this.z +
+                '}';
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.Location;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitScheduler;
+
+import java.util.Objects;
+
+/**
+ * {@link TaskScheduler} running everything on the single main thread.
+ */
+public class BukkitTaskScheduler implements TaskScheduler {
+    private final Plugin plugin;
+    private final BukkitScheduler scheduler;
+
+    public BukkitTaskScheduler(Plugin plugin, BukkitScheduler scheduler) {
+        this.plugin = Objects.requireNonNull(plugin, "plugin");
+        this.scheduler = Objects.requireNonNull(scheduler, "scheduler");
+    }
+
+    @Override
+    public void runAt(Location location, Runnable task) {
+        Objects.requireNonNull(location, "location");
+        this.scheduler.runTask(this.plugin, task);
+    }
+
+    @Override
+    public void runAtLater(Location location, Runnable task, long delay) {
+        Objects.requireNonNull(location, "location");
+        this.scheduler.runTaskLater(this.plugin, task, delay);
+    }
+
+    @Override
+    public void runGlobal(Runnable task) {
+        this.scheduler.runTask(this.plugin, task);
+    }
+
+    @Override
+    public void runGlobalLater(Runnable task, long delay) {
+        this.scheduler.runTaskLater(this.plugin, task, delay);
+    }
+
+    @Override
+    public Task runGlobalTimer(Runnable task, long delay, long period) {
+        return this.scheduler.runTaskTimer(this.plugin, task, delay, period)::cancel;
+    }
+
+    @Override
+    public void runAsync(Runnable task) {
+        this.scheduler.runTaskAsynchronously(this.plugin, task);
+    }
+
+    @Override
+    public boolean isRegionThreaded() {
+        return false;
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.Tag;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.Sign;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs {@link BulkJob}s incrementally. When the main thread owns the world,
+ * signs are edited directly in the global tick until the measured time exceeds
+ * the configured budget. On region-threaded servers the signs are edited on
+ * their region threads instead, a limited number per tick. Signs in unloaded
+ * chunks are never loaded, they are retried in the next passes. The job
+ * progress is saved periodically, so it is resumed after a restart.
+ */
+public class BulkEngine {
+    static final Logger logger = Logger.getLogger(BulkEngine.class.getName());
+
+    private static final int MAX_SIGNS_PER_TICK = 256; // in flight on region threads
+    private static final int MAX_PASSES = 5;
+    private static final long RETRY_DELAY = 2L * 20L; // ticks, longer than most triggers
+    private static final long REPORT_INTERVAL = 5L * 20L; // ticks
+
+    enum Outcome {
+        CHANGED, SKIPPED, BUSY, UNLOADED
+    }
+
+    private final Plugin plugin;
+    private final TaskScheduler scheduler;
+    private final Configuration configuration;
+    private final SignIndex signIndex;
+    private final SignDataParser signDataParser;
+    private final Predicate<Block> activeTriggers;
+    private final Path file;
+
+    private final Object saveLock = new Object();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile BulkJob job;
+    private TaskScheduler.Task task;
+
+    // global thread only
+    private int cursor;
+    private int pass;
+    private long ticks;
+    private long retryAt;
+
+    public BulkEngine(Plugin plugin, TaskScheduler scheduler, Configuration configuration, SignIndex signIndex,
+                      SignDataParser signDataParser, Predicate<Block> activeTriggers, Path file) {
+        this.plugin = Objects.requireNonNull(plugin, "plugin");
+        this.scheduler = Objects.requireNonNull(scheduler, "scheduler");
+        this.configuration = Objects.requireNonNull(configuration, "configuration");
+        this.signIndex = Objects.requireNonNull(signIndex, "signIndex");
+        this.signDataParser = Objects.requireNonNull(signDataParser, "signDataParser");
+        this.activeTriggers = Objects.requireNonNull(activeTriggers, "activeTriggers");
+        this.file = Objects.requireNonNull(file, "file");
+    }
+
+    public void enable() {
+        this.task = this.scheduler.runGlobalTimer(this::tick, 1L, 1L);
+
+        if (!Files.exists(this.file)) {
+            return;
+        }
+
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(this.file))) {
+            BulkJob job = BulkJob.read(new DataInputStream(stream));
+            logger.info("Resuming bulk job " + job.describe() + " (" + job.getDone() + "/" + job.getTargets().size() + " signs done).");
+            this.begin(job);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not resume the bulk job.", e);
+        }
+    }
+
+    public void disable() {
+        if (this.task != null) {
+            this.task.cancel();
+            this.task = null;
+        }
+
+        BulkJob job = this.job;
+        if (job != null) {
+            this.save(job);
+            this.job = null;
+        }
+    }
+
+    public Optional<BulkJob> getJob() {
+        return Optional.ofNullable(this.job);
+    }
+
+    /**
+     * Starts a new job on all indexed signs of the owner.
+     * @return The started job, or empty if another job is running.
+     */
+    public Optional<BulkJob> start(BulkJob.Operation operation, String ownerName, String argument, String starterName) {
+        if (this.job != null) {
+            return Optional.empty();
+        }
+
+        List<BlockKey> targets = this.signIndex.find(ownerName);
+        BulkJob job = new BulkJob(operation, ownerName, argument, starterName, targets);
+        logger.info(starterName + " has started bulk job " + job.describe() + " on " + targets.size() + " signs.");
+
+        this.begin(job);
+        this.saveAsync(job);
+        return Optional.of(job);
+    }
+
+    public Optional<BulkJob> cancel() {
+        BulkJob job = this.job;
+        if (job == null) {
+            return Optional.empty();
+        }
+
+        this.end(job);
+        logger.info("Bulk job " + job.describe() + " has been cancelled (" + job.getChanged() + " signs changed).");
+        return Optional.of(job);
+    }
+
+    private void begin(BulkJob job) {
+        this.cursor = 0;
+        this.pass = 0;
+        this.retryAt = 0L;
+        this.job = job;
+    }
+
+    private void end(BulkJob job) {
+        synchronized (this.saveLock) {
+            if (this.job == job) {
+                this.job = null;
+            }
+
+            try {
+                Files.deleteIfExists(this.file);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not delete the bulk job file.", e);
+            }
+        }
+    }
+
+    private void tick() {
+        BulkJob job = this.job;
+        if (job == null) {
+            return;
+        }
+
+        this.ticks++;
+        if (this.ticks % REPORT_INTERVAL == 0L) {
+            this.report(job, "Bulk job " + job.describe() + ": " + job.getDone() + "/" + job.getTargets().size() + " signs done.");
+            this.saveAsync(job);
+        }
+
+        if (this.ticks < this.retryAt) {
+            return;
+        }
+
+        List<BlockKey> targets = job.getTargets();
+        if (this.cursor >= targets.size()) {
+            if (this.inFlight.get() > 0) {
+                return; // wait for the pass to finish
+            }
+
+            if (job.isComplete() || ++this.pass >= MAX_PASSES) {
+                this.finish(job);
+                return;
+            }
+
+            // retry signs which were busy with triggers or not loaded
+            this.cursor = 0;
+            this.retryAt = this.ticks + RETRY_DELAY;
+            return;
+        }
+
+        if (!this.scheduler.isRegionThreaded()) {
+            // at least one sign per tick, so a tiny budget still makes progress
+            long budget = TimeUnit.MILLISECONDS.toNanos(this.configuration.bulkTickBudget());
+            long start = System.nanoTime();
+            do {
+                int index = this.cursor++;
+                if (!job.isDone(index)) {
+                    this.apply(job, index);
+                }
+            } while (this.cursor < targets.size() && System.nanoTime() - start < budget);
+            return;
+        }
+
+        int slots = MAX_SIGNS_PER_TICK - this.inFlight.get();
+        Server server = this.plugin.getServer();
+        while (slots > 0 && this.cursor < targets.size()) {
+            int index = this.cursor++;
+            if (job.isDone(index)) {
+                continue;
+            }
+
+            Optional<Location> location = targets.get(index).toLocation(server);
+            if (!location.isPresent()) {
+                job.markDone(index, false); // the world is gone
+                continue;
+            }
+
+            this.inFlight.incrementAndGet();
+            this.scheduler.runAt(location.get(), () -> {
+                try {
+                    this.apply(job, index);
+                } finally {
+                    this.inFlight.decrementAndGet();
+                }
+            });
+            slots--;
+        }
+    }
+
+    private void apply(BulkJob job, int index) {
+        try {
+            if (this.job != job) {
+                return; // cancelled
+            }
+
+            Outcome outcome = this.applyTo(job, job.getTargets().get(index));
+            if (outcome.equals(Outcome.CHANGED) || outcome.equals(Outcome.SKIPPED)) {
+                job.markDone(index, outcome.equals(Outcome.CHANGED));
+            }
+        } catch (Throwable e) {
+            logger.log(Level.SEVERE, "Could not apply bulk job to sign " + job.getTargets().get(index) + ".", e);
+            job.markDone(index, false);
+        }
+    }
+
+    private Outcome applyTo(BulkJob job, BlockKey target) {
+        World world = this.plugin.getServer().getWorld(target.getWorldId());
+        if (world == null) {
+            return Outcome.SKIPPED;
+        }
+
+        if (!world.isChunkLoaded(target.getX() >> 4, target.getZ() >> 4)) {
+            return Outcome.UNLOADED; // getting the block would load the chunk synchronously
+        }
+
+        Block block = world.getBlockAt(target.getX(), target.getY(), target.getZ());
+        if (this.activeTriggers.test(block)) {
+            return Outcome.BUSY; // the sign is a fake button now
+        }
+
+        if (!Tag.SIGNS.isTagged(block.getType())) {
+            this.signIndex.remove(target);
+            return Outcome.SKIPPED;
+        }
+
+        BlockState state = block.getState();
+        if (!(state instanceof Sign)) {
+            return Outcome.SKIPPED;
+        }
+        Sign sign = (Sign) state;
+
+        Optional<PaySign> paySign;
+        try {
+            paySign = this.signDataParser.parse(sign);
+        } catch (SignDataParser.ParseException e) {
+            return Outcome.SKIPPED;
+        }
+
+        if (!paySign.isPresent()) {
+            this.signIndex.remove(target);
+            return Outcome.SKIPPED;
+        }
+
+        String ownerName = paySign.get().getPlayerName();
+        if (!ownerName.equalsIgnoreCase(job.getOwnerName())) {
+            this.signIndex.put(target, ownerName);
+            return Outcome.SKIPPED;
+        }
+
+        String[] lines = job.rewrite(sign.getLines());
+        for (int i = 0; i < lines.length; i++) {
+            sign.setLine(i, lines[i]);
+        }
+        sign.update();
+
+        switch (job.getOperation()) {
+            case TRANSFER:
+                this.signIndex.put(target, job.getArgument());
+                break;
+            case DISABLE:
+                this.signIndex.remove(target);
+                break;
+            case REPRICE:
+                break;
+        }
+        return Outcome.CHANGED;
+    }
+
+    private void finish(BulkJob job) {
+        this.end(job);
+
+        int left = job.getTargets().size() - job.getDone();
+        this.report(job, "Bulk job " + job.describe() + " has finished: " + job.getChanged() + " signs changed, " +
+                job.getSkipped() + " skipped" + (left == 0 ? "." : ", " + left + " left unchanged because they were busy " +
+                "or in unloaded chunks, run the job again to retry them."));
+    }
+
+    private void report(BulkJob job, String message) {
+        logger.info(message);
+
+        Player starter = this.plugin.getServer().getPlayerExact(job.getStarterName());
+        if (starter != null) {
+            starter.sendMessage(message);
+        }
+    }
+
+    private void saveAsync(BulkJob job) {
+        this.scheduler.runAsync(() -> this.save(job));
+    }
+
+    private void save(BulkJob job) {
+        synchronized (this.saveLock) {
+            if (this.job != job) {
+                return; // finished or cancelled in the meantime
+            }
+
+            Path temporary = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+            try {
+                try (OutputStream stream = Files.newOutputStream(temporary)) {
+                    stream.write(job.snapshot());
+                }
+                Files.move(temporary, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not save the bulk job.", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.ChatColor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * An administrative operation on all signs of a player. Tracks which signs are
+ * done, so the job can be resumed after a restart. The operations only set
+ * sign lines, so applying one twice is harmless.
+ */
+public class BulkJob {
+    private static final int FORMAT_VERSION = 1;
+    private static final String DISABLED_HEADER = ChatColor.RED + "[Disabled]";
+
+    public enum Operation {
+        REPRICE, TRANSFER, DISABLE
+    }
+
+    private final Operation operation;
+    private final String ownerName;
+    private final String argument;
+    private final String starterName;
+    private final List<BlockKey> targets;
+
+    private final BitSet done;
+    private int changed;
+    private int skipped;
+
+    public BulkJob(Operation operation, String ownerName, String argument, String starterName, List<BlockKey> targets) {
+        this(operation, ownerName, argument, starterName, targets, new BitSet(targets.size()), 0, 0);
+    }
+
+    private BulkJob(Operation operation, String ownerName, String argument, String starterName, List<BlockKey> targets,
+                    BitSet done, int changed, int skipped) {
+        this.operation = Objects.requireNonNull(operation, "operation");
+        this.ownerName = Objects.requireNonNull(ownerName, "ownerName");
+        this.argument = Objects.requireNonNull(argument, "argument");
+        this.starterName = Objects.requireNonNull(starterName, "starterName");
+        this.targets = Collections.unmodifiableList(new ArrayList<>(Objects.requireNonNull(targets, "targets")));
+        this.done = Objects.requireNonNull(done, "done");
+        this.changed = changed;
+        this.skipped = skipped;
+    }
+
+    public Operation getOperation() {
+        return this.operation;
+    }
+
+    public String getOwnerName() {
+        return this.ownerName;
+    }
+
+    /**
+     * @return The new price for {@link Operation#REPRICE}, the new owner for
+     * {@link Operation#TRANSFER}, empty otherwise.
+     */
+    public String getArgument() {
+        return this.argument;
+    }
+
+    /**
+     * @return Name of the command sender who has started this job.
+     */
+    public String getStarterName() {
+        return this.starterName;
+    }
+
+    public List<BlockKey> getTargets() {
+        return this.targets;
+    }
+
+    /**
+     * Rewrites lines of a sign owned by {@link #getOwnerName()}.
+     * @return The new lines.
+     */
+    public String[] rewrite(String[] lines) {
+        Objects.requireNonNull(lines, "lines");
+        String[] rewritten = lines.clone();
+
+        switch (this.operation) {
+            case REPRICE:
+                // keep the pass offer
+                int passSeparator = lines[2].indexOf('/');
+                rewritten[2] = passSeparator == -1 ? this.argument : this.argument + lines[2].substring(passSeparator);
+                break;
+            case TRANSFER:
+                rewritten[1] = this.argument;
+                break;
+            case DISABLE:
+                rewritten[0] = DISABLED_HEADER;
+                break;
+        }
+        return rewritten;
+    }
+
+    public synchronized boolean isDone(int index) {
+        return this.done.get(index);
+    }
+
+    public synchronized void markDone(int index, boolean changed) {
+        if (this.done.get(index)) {
+            return;
+        }
+
+        this.done.set(index);
+        if (changed) {
+            this.changed++;
+        } else {
+            this.skipped++;
+        }
+    }
+
+    public synchronized boolean isComplete() {
+        return this.done.cardinality() >= this.targets.size();
+    }
+
+    public synchronized int getDone() {
+        return this.done.cardinality();
+    }
+
+    public synchronized int getChanged() {
+        return this.changed;
+    }
+
+    public synchronized int getSkipped() {
+        return this.skipped;
+    }
+
+    public String describe() {
+        String description = this.operation.name().toLowerCase(Locale.ROOT) + " " + this.ownerName;
+        return this.argument.isEmpty() ? description : description + " " + this.argument;
+    }
+
+    public synchronized byte[] snapshot() {
+        // ~32 bytes per target
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + this.targets.size() * 32);
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeInt(FORMAT_VERSION);
+            output.writeUTF(this.operation.name());
+            output.writeUTF(this.ownerName);
+            output.writeUTF(this.argument);
+            output.writeUTF(this.starterName);
+            output.writeInt(this.targets.size());
+            for (BlockKey target : this.targets) {
+                target.write(output);
+            }
+
+            byte[] done = this.done.toByteArray();
+            output.writeInt(done.length);
+            output.write(done);
+            output.writeInt(this.changed);
+            output.writeInt(this.skipped);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not serialize bulk job.", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static BulkJob read(DataInputStream input) throws IOException {
+        Objects.requireNonNull(input, "input");
+        int version = input.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported bulk job format version: " + version);
+        }
+
+        Operation operation;
+        try {
+            operation = Operation.valueOf(input.readUTF());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown bulk operation.", e);
+        }
+
+        String ownerName = input.readUTF();
+        String argument = input.readUTF();
+        String starterName = input.readUTF();
+
+        int count = input.readInt();
+        List<BlockKey> targets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            targets.add(BlockKey.read(input));
+        }
+
+        byte[] done = new byte[input.readInt()];
+        input.readFully(done);
+        return new BulkJob(operation, ownerName, argument, starterName, targets, BitSet.valueOf(done), input.readInt(), input.readInt());
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.Material;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.data.type.Switch;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * All fake button states, created once and shared. The returned
+ * {@link Switch}es must never be modified.
+ */
+public final class ButtonStates {
+    private static final BlockFace FLOOR_FACING = BlockFace.NORTH;
+    private static final BlockFace[] WALL_FACINGS = {BlockFace.NORTH, BlockFace.SOUTH, BlockFace.WEST, BlockFace.EAST};
+
+    private static final Map<BlockFace, Switch> POWERED = new EnumMap<>(BlockFace.class);
+    private static final Map<BlockFace, Switch> UNPOWERED = new EnumMap<>(BlockFace.class);
+
+    static {
+        // floor buttons are keyed by UP, same as PaySign.getFacing() for standing signs
+        POWERED.put(BlockFace.UP, create(Switch.Face.FLOOR, FLOOR_FACING, true));
+        UNPOWERED.put(BlockFace.UP, create(Switch.Face.FLOOR, FLOOR_FACING, false));
+
+        for (BlockFace facing : WALL_FACINGS) {
+            POWERED.put(facing, create(Switch.Face.WALL, facing, true));
+            UNPOWERED.put(facing, create(Switch.Face.WALL, facing, false));
+        }
+    }
+
+    private ButtonStates() {
+    }
+
+    private static Switch create(Switch.Face face, BlockFace facing, boolean powered) {
+        Switch button = (Switch) Material.OAK_BUTTON.createBlockData();
+        button.setFace(face);
+        button.setFacing(facing);
+        button.setPowered(powered);
+        return button;
+    }
+
+    /**
+     * @param signFacing Facing of the sign, as given by {@link PaySign#getFacing()}.
+     */
+    public static Switch get(BlockFace signFacing, boolean powered) {
+        Objects.requireNonNull(signFacing, "signFacing");
+        Switch button = (powered ? POWERED : UNPOWERED).get(signFacing);
+        if (button == null) {
+            throw new IllegalArgumentException("Invalid sign facing: " + signFacing);
+        }
+        return button;
+    }
+
+    /**
+     * @return The same button in the given power state.
+     */
+    public static Switch withPower(Switch button, boolean powered) {
+        Objects.requireNonNull(button, "button");
+        BlockFace signFacing = button.getFace().equals(Switch.Face.FLOOR) ? BlockFace.UP : button.getFacing();
+        return get(signFacing, powered);
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.entity.Player;
+
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Stops calling a failing economy. Failed withdrawals, thrown exceptions and
+ * slow calls are tracked in a window of recent calls, and when too many of
+ * them are bad the breaker opens: clicks are rejected instantly instead of
+ * blocking the thread until the economy times out. After a while a few probe
+ * calls are let through, and the breaker closes again once they succeed.
+ *
+ * <p>Deposits, eg. of network payouts, are never rejected, only measured.</p>
+ */
+public class CircuitBreakerGateway implements PaymentGateway {
+    static final Logger logger = Logger.getLogger(CircuitBreakerGateway.class.getName());
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    enum Permit {
+        NORMAL, PROBE, REJECTED
+    }
+
+    private final PaymentGateway delegate;
+    private final PerformanceStats stats;
+    private final double failureRate;
+    private final long slowCallNanos;
+    private final long openDurationNanos;
+    private final int probes;
+
+    private final boolean[] window;
+    private final int minimumCalls;
+    private int windowIndex;
+    private int windowCount;
+    private int badCount;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int probesInFlight;
+    private int probeSuccesses;
+
+    public CircuitBreakerGateway(PaymentGateway delegate, Configuration configuration, PerformanceStats stats) {
+        this.delegate = Objects.requireNonNull(delegate, "delegate");
+        Objects.requireNonNull(configuration, "configuration");
+        this.stats = Objects.requireNonNull(stats, "stats");
+
+        this.failureRate = configuration.breakerFailureRate();
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(configuration.breakerSlowCall());
+        this.openDurationNanos = TimeUnit.SECONDS.toNanos(configuration.breakerOpenDuration());
+        this.probes = configuration.breakerProbes();
+        this.window = new boolean[configuration.breakerWindow()];
+        this.minimumCalls = Math.max(1, this.window.length / 4);
+    }
+
+    public PaymentGateway getDelegate() {
+        return this.delegate;
+    }
+
+    public synchronized State getState() {
+        return this.state;
+    }
+
+    @Override
+    public TransferResult transfer(Player payer, String ownerName, String worldName, double amount) {
+        Permit permit = this.acquire();
+        if (permit.equals(Permit.REJECTED)) {
+            this.stats.recordBreakerRejection();
+            return TransferResult.failure(TransferResult.Status.UNAVAILABLE, null);
+        }
+
+        long start = System.nanoTime();
+        TransferResult result;
+        try {
+            result = this.delegate.transfer(payer, ownerName, worldName, amount);
+        } catch (RuntimeException e) {
+            this.record(permit, true);
+            throw e;
+        }
+
+        this.record(permit, this.isBad(result, System.nanoTime() - start));
+        return result;
+    }
+
+    @Override
+    public TransferResult withdraw(Player payer, String worldName, double amount) {
+        Permit permit = this.acquire();
+        if (permit.equals(Permit.REJECTED)) {
+            this.stats.recordBreakerRejection();
+            return TransferResult.failure(TransferResult.Status.UNAVAILABLE, null);
+        }
+
+        long start = System.nanoTime();
+        TransferResult result;
+        try {
+            result = this.delegate.withdraw(payer, worldName, amount);
+        } catch (RuntimeException e) {
+            this.record(permit, true);
+            throw e;
+        }
+
+        this.record(permit, this.isBad(result, System.nanoTime() - start));
+        return result;
+    }
+
+    @Override
+    public boolean deposit(String playerName, String worldName, double amount) {
+        long start = System.nanoTime();
+        boolean success;
+        try {
+            success = this.delegate.deposit(playerName, worldName, amount);
+        } catch (RuntimeException e) {
+            this.record(Permit.NORMAL, true);
+            throw e;
+        }
+
+        this.record(Permit.NORMAL, System.nanoTime() - start > this.slowCallNanos); // see isBad
+        return success;
+    }
+
+    @Override
+    public boolean hasAccount(String playerName) {
+        return this.delegate.hasAccount(playerName);
+    }
+
+    @Override
+    public String format(double amount) {
+        return this.delegate.format(amount);
+    }
+
+    @Override
+    public String getProviderName() {
+        return this.delegate.getProviderName();
+    }
+
+    private boolean isBad(TransferResult result, long nanos) {
+        if (nanos > this.slowCallNanos) {
+            return true;
+        }
+
+        switch (result.getStatus()) {
+            case WITHDRAW_FAILED:
+                return true;
+            default:
+                // insufficient funds is a perfectly healthy answer, and a failed deposit
+                // is a problem with the owner's account, which must not stop other signs
+                return false;
+        }
+    }
+
+    private synchronized Permit acquire() {
+        switch (this.state) {
+            case CLOSED:
+                return Permit.NORMAL;
+            case OPEN:
+                if (System.nanoTime() - this.openedAt < this.openDurationNanos) {
+                    return Permit.REJECTED;
+                }
+
+                this.probesInFlight = 0;
+                this.probeSuccesses = 0;
+                this.transition(State.HALF_OPEN, "Trying the economy again with " + this.probes + " probe call(s).");
+                // fall through
+            case HALF_OPEN:
+            default:
+                if (this.probesInFlight + this.probeSuccesses >= this.probes) {
+                    return Permit.REJECTED;
+                }
+
+                this.probesInFlight++;
+                return Permit.PROBE;
+        }
+    }
+
+    private synchronized void record(Permit permit, boolean bad) {
+        if (permit.equals(Permit.PROBE)) {
+            this.probesInFlight--;
+            if (!this.state.equals(State.HALF_OPEN)) {
+                return;
+            }
+
+            if (bad) {
+                this.open("A probe call has failed or was slow");
+            } else if (++this.probeSuccesses >= this.probes) {
+                this.close();
+            }
+            return;
+        }
+
+        if (!this.state.equals(State.CLOSED)) {
+            return; // started before the breaker opened
+        }
+
+        if (this.windowCount == this.window.length && this.window[this.windowIndex]) {
+            this.badCount--; // the oldest call leaves the window
+        }
+        this.window[this.windowIndex] = bad;
+        this.windowIndex = (this.windowIndex + 1) % this.window.length;
+        this.windowCount = Math.min(this.windowCount + 1, this.window.length);
+        if (bad) {
+            this.badCount++;
+        }
+
+        if (this.windowCount >= this.minimumCalls && this.badCount >= this.failureRate * this.windowCount) {
+            this.open(this.badCount + " of the last " + this.windowCount + " economy calls have failed or were slow");
+        }
+    }
+
+    private void open(String reason) {
+        this.openedAt = System.nanoTime();
+        this.transition(State.OPEN, reason + ", rejecting clicks for " + TimeUnit.NANOSECONDS.toSeconds(this.openDurationNanos) + "s.");
+    }
+
+    private void close() {
+        this.windowIndex = this.windowCount = this.badCount = 0;
+        this.transition(State.CLOSED, "The economy has recovered.");
+    }
+
+    private void transition(State state, String message) {
+        this.state = state;
+        this.stats.recordBreakerState(state);
+        if (state.equals(State.OPEN)) {
+            logger.warning("Economy circuit breaker opened: " + message);
+        } else {
+            logger.info("Economy circuit breaker " + state.name().toLowerCase(Locale.ROOT).replace('_', '-') + ": " + message);
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.plugin.Plugin;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Times every stage of handling a click and of the scheduled trigger tasks.
+ * When a phase takes longer than the budget, a {@link SlowEvent} describing it
+ * is kept in a bounded ring, dumpable with /paysign slow. Optionally a sampler
+ * thread captures the stack of the thread which is still busy after the
+ * budget, to tell what exactly was slow.
+ *
+ * <p>Fast clicks only cost a few {@link System#nanoTime()} calls, the
+ * {@link Timing}s are reused per thread.</p>
+ */
+public class ClickWatchdog {
+    static final Logger logger = Logger.getLogger(ClickWatchdog.class.getName());
+
+    private static final int MAX_EVENTS = 50;
+    private static final long WARNING_INTERVAL = TimeUnit.MINUTES.toNanos(1L);
+
+    public enum Phase {
+        CLICK, TRIGGER, FLUSH
+    }
+
+    public enum Stage {
+        PARSE, PERMISSION, PASS, PAYMENT, SCHEDULE, BUTTON, PHYSICS, LOGBLOCK, RESTORE
+    }
+
+    private final Plugin plugin;
+    private final Configuration configuration;
+    private final Supplier<PaymentGateway> gateway;
+
+    private final ThreadLocal<Timing> timings = ThreadLocal.withInitial(Timing::new);
+    private final Deque<SlowEvent> events = new ArrayDeque<>(MAX_EVENTS);
+    private final Map<Thread, Timing> watched = new ConcurrentHashMap<>();
+    private volatile boolean sampling;
+    private Thread sampler;
+    private long lastWarning;
+
+    public ClickWatchdog(Plugin plugin, Configuration configuration, Supplier<PaymentGateway> gateway) {
+        this.plugin = Objects.requireNonNull(plugin, "plugin");
+        this.configuration = Objects.requireNonNull(configuration, "configuration");
+        this.gateway = Objects.requireNonNull(gateway, "gateway");
+    }
+
+    public void enable() {
+        if (this.configuration.watchdogBudget() <= 0L || !this.configuration.watchdogStackSamples()) {
+            return;
+        }
+
+        this.sampling = true;
+        this.sampler = new Thread(this::sample, this.plugin.getName() + " Watchdog");
+        this.sampler.setDaemon(true);
+        this.sampler.start();
+    }
+
+    public void disable() {
+        this.sampling = false;
+        if (this.sampler != null) {
+            this.sampler.interrupt();
+            this.sampler = null;
+        }
+        this.watched.clear();
+    }
+
+    /**
+     * Starts timing a phase on the current thread. Must be followed by
+     * {@link #finish(Timing)} on the same thread.
+     */
+    public Timing begin(Phase phase, long startTime) {
+        Objects.requireNonNull(phase, "phase");
+
+        Timing timing = this.timings.get();
+        if (timing.active) {
+            timing = new Timing(); // nested, eg. an event fired by the economy
+        }
+        timing.start(phase, startTime);
+
+        if (this.sampling) {
+            this.watched.putIfAbsent(Thread.currentThread(), timing);
+        }
+        return timing;
+    }
+
+    public void finish(Timing timing) {
+        Objects.requireNonNull(timing, "timing");
+        long totalNanos = System.nanoTime() - timing.startTime;
+        timing.active = false;
+
+        if (this.sampling) {
+            this.watched.remove(Thread.currentThread(), timing);
+        }
+
+        long budget = TimeUnit.MILLISECONDS.toNanos(this.configuration.watchdogBudget());
+        if (budget <= 0L || totalNanos <= budget || timing.world == null) {
+            return;
+        }
+
+        PaymentGateway gateway = this.gateway.get();
+        this.record(new SlowEvent(System.currentTimeMillis(), timing.phase, totalNanos, timing.stageNanos.clone(),
+                describe(timing), timing.ownerName, timing.playerName,
+                gateway == null ? "none" : gateway.getProviderName(), timing.stack));
+    }
+
+    private void record(SlowEvent event) {
+        synchronized (this.events) {
+            if (this.events.size() >= MAX_EVENTS) {
+                this.events.pollFirst();
+            }
+            this.events.addLast(event);
+
+            long now = System.nanoTime();
+            if (this.lastWarning == 0L || now - this.lastWarning >= WARNING_INTERVAL) {
+                this.lastWarning = now;
+                logger.warning("Slow " + event.getPhase().name().toLowerCase(Locale.ROOT) + " took " + millis(event.getTotalNanos()) +
+                        " at " + event.getLocation() + ", see /paysign slow for details.");
+            }
+        }
+    }
+
+    /**
+     * @return Recorded slow events, the most recent last.
+     */
+    public List<SlowEvent> getEvents() {
+        synchronized (this.events) {
+            return new ArrayList<>(this.events);
+        }
+    }
+
+    public void clear() {
+        synchronized (this.events) {
+            this.events.clear();
+        }
+    }
+
+    private void sample() {
+        while (this.sampling) {
+            long budget = TimeUnit.MILLISECONDS.toNanos(this.configuration.watchdogBudget());
+            try {
+                Thread.sleep(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(budget) / 2L));
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            this.watched.forEach((thread, timing) -> {
+                if (timing.active && timing.stack == null && now - timing.startTime > budget) {
+                    // racy by design, a stack from the next click is still a useful hint
+                    timing.stack = thread.getStackTrace();
+                }
+            });
+        }
+    }
+
+    // don't keep the world loaded
+    private static String describe(Timing timing) {
+        return timing.world.getName() + " " + timing.x + " " + timing.y + " " + timing.z;
+    }
+
+    static String millis(long nanos) {
+        return String.format("%.1fms", nanos / 1_000_000D);
+    }
+
+    /**
+     * Stage timings of a single phase, reused by the thread.
+     */
+    public static class Timing {
+        private final long[] stageNanos = new long[Stage.values().length];
+        private volatile boolean active;
+        private volatile long startTime;
+        private volatile StackTraceElement[] stack;
+        private Phase phase;
+        private long lastMark;
+        // the sign, copied so that describing it doesn't allocate
+        private World world;
+        private int x;
+        private int y;
+        private int z;
+        private String ownerName;
+        private String playerName;
+
+        void start(Phase phase, long startTime) {
+            Arrays.fill(this.stageNanos, 0L);
+            this.phase = phase;
+            this.startTime = this.lastMark = startTime;
+            this.world = null;
+            this.ownerName = this.playerName = null;
+            this.stack = null;
+            this.active = true;
+        }
+
+        /**
+         * Describes the sign, phases without it are never recorded.
+         */
+        public void describe(Location location, String ownerName, String playerName) {
+            this.describe(location.getWorld(), location.getBlockX(), location.getBlockY(), location.getBlockZ(), ownerName, playerName);
+        }
+
+        public void describe(Block block, String ownerName, String playerName) {
+            this.describe(block.getWorld(), block.getX(), block.getY(), block.getZ(), ownerName, playerName);
+        }
+
+        private void describe(World world, int x, int y, int z, String ownerName, String playerName) {
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.ownerName = ownerName;
+            this.playerName = playerName;
+        }
+
+        /**
+         * Ends the stage, counting the time since the previous mark.
+         */
+        public void mark(Stage stage) {
+            long now = System.nanoTime();
+            this.stageNanos[stage.ordinal()] += now - this.lastMark;
+            this.lastMark = now;
+        }
+    }
+
+    /**
+     * A phase which took longer than the budget.
+     */
+    public static class SlowEvent {
+        private final long time;
+        private final Phase phase;
+        private final long totalNanos;
+        private final long[] stageNanos;
+        private final String location;
+        private final String ownerName;
+        private final String playerName;
+        private final String providerName;
+        private final StackTraceElement[] stack;
+
+        SlowEvent(long time, Phase phase, long totalNanos, long[] stageNanos, String location,
+                  String ownerName, String playerName, String providerName, StackTraceElement[] stack) {
+            this.time = time;
+            this.phase = Objects.requireNonNull(phase, "phase");
+            this.totalNanos = totalNanos;
+            this.stageNanos = Objects.requireNonNull(stageNanos, "stageNanos");
+            this.location = Objects.requireNonNull(location, "location");
+            this.ownerName = ownerName;
+            this.playerName = playerName;
+            this.providerName = Objects.requireNonNull(providerName, "providerName");
+            this.stack = stack;
+        }
+
+        public long getTime() {
+            return this.time;
+        }
+
+        public Phase getPhase() {
+            return this.phase;
+        }
+
+        public long getTotalNanos() {
+            return this.totalNanos;
+        }
+
+        public long getStageNanos(Stage stage) {
+            return this.stageNanos[stage.ordinal()];
+        }
+
+        /**
+         * @return World name and block coordinates of the sign.
+         */
+        public String getLocation() {
+            return this.location;
+        }
+
+        public String getOwnerName() {
+            return this.ownerName;
+        }
+
+        public String getPlayerName() {
+            return this.playerName;
+        }
+
+        public String getProviderName() {
+            return this.providerName;
+        }
+
+        public StackTraceElement[] getStack() {
+            return this.stack;
+        }
+
+        /**
+         * @return Stages which took any time, eg. "PAYMENT 31.2ms, PARSE 0.1ms".
+         */
+        public String renderStages() {
+            StringBuilder builder = new StringBuilder();
+            for (Stage stage : Stage.values()) {
+                long nanos = this.stageNanos[stage.ordinal()];
+                if (nanos == 0L) {
+                    continue;
+                }
+
+                if (builder.length() > 0) {
+                    builder.append(", ");
+                }
+                builder.append(stage.name()).append(' ').append(millis(nanos));
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -28,6 +28,29 @@ import java.util.function.Supplier;
 public class Configuration {
     private static final int DEFAULT_DELAY = 30; // ticks, same as #wooden_buttons
     private static final boolean DEFAULT_ALLOW_DECIMALS = true;
+    private static final long DEFAULT_OVERLOAD_TICK_DURATION = 60L; // milliseconds
+    private static final long DEFAULT_OVERLOAD_PLUGIN_BUDGET = 5L; // milliseconds
+    private static final String DEFAULT_PAYMENT_GATEWAY = "vault";
+    private static final double DEFAULT_LEDGER_STARTING_BALANCE = 0D;
+    private static final String DEFAULT_LEDGER_CURRENCY = "coins";
+    private static final boolean DEFAULT_BREAKER_ENABLED = true;
+    private static final int DEFAULT_BREAKER_WINDOW = 20; // calls
+    private static final double DEFAULT_BREAKER_FAILURE_RATE = .5D;
+    private static final long DEFAULT_BREAKER_SLOW_CALL = 250L; // milliseconds
+    private static final long DEFAULT_BREAKER_OPEN_DURATION = 30L; // seconds
+    private static final int DEFAULT_BREAKER_PROBES = 3;
+    private static final long DEFAULT_NOTIFICATIONS_WINDOW = 30L; // seconds
+    private static final NotificationBuffer.Mode DEFAULT_NOTIFICATIONS_MODE = NotificationBuffer.Mode.CHAT;
+    private static final long DEFAULT_BULK_TICK_BUDGET = 2L; // milliseconds
+    private static final boolean DEFAULT_HISTORY_ENABLED = true;
+    private static final String DEFAULT_HISTORY_EXPORT_FORMAT = "csv";
+    private static final long DEFAULT_HISTORY_RETENTION = 30L; // days
+    private static final long DEFAULT_WATCHDOG_BUDGET = 10L; // milliseconds
+    private static final boolean DEFAULT_WATCHDOG_STACK_SAMPLES = false;
+    private static final boolean DEFAULT_NETWORK_ENABLED = false;
+    private static final String DEFAULT_NETWORK_TRANSPORT = "directory";
+    private static final String DEFAULT_NETWORK_DIRECTORY = "../paysign-network";
+    private static final long DEFAULT_NETWORK_FALLBACK_AFTER = 60L; // seconds
 
     private final Supplier<FileConfiguration> config;
 
@@ -46,4 +69,105 @@ public class Configuration {
     public boolean allowDecimals() {
         return this.getConfig().getBoolean("allow-decimals", DEFAULT_ALLOW_DECIMALS);
     }
+
+    public String paymentGateway() {
+        return this.getConfig().getString("payment.gateway", DEFAULT_PAYMENT_GATEWAY);
+    }
+
+    public double ledgerStartingBalance() {
+        return this.getConfig().getDouble("payment.ledger.starting-balance", DEFAULT_LEDGER_STARTING_BALANCE);
+    }
+
+    public String ledgerCurrency() {
+        return this.getConfig().getString("payment.ledger.currency", DEFAULT_LEDGER_CURRENCY);
+    }
+
+    public boolean breakerEnabled() {
+        return this.getConfig().getBoolean("payment.breaker.enabled", DEFAULT_BREAKER_ENABLED);
+    }
+
+    public int breakerWindow() {
+        return Math.max(1, this.getConfig().getInt("payment.breaker.window", DEFAULT_BREAKER_WINDOW));
+    }
+
+    public double breakerFailureRate() {
+        return this.getConfig().getDouble("payment.breaker.failure-rate", DEFAULT_BREAKER_FAILURE_RATE);
+    }
+
+    public long breakerSlowCall() {
+        return this.getConfig().getLong("payment.breaker.slow-call", DEFAULT_BREAKER_SLOW_CALL);
+    }
+
+    public long breakerOpenDuration() {
+        return Math.max(1L, this.getConfig().getLong("payment.breaker.open-duration", DEFAULT_BREAKER_OPEN_DURATION));
+    }
+
+    public int breakerProbes() {
+        return Math.max(1, this.getConfig().getInt("payment.breaker.probes", DEFAULT_BREAKER_PROBES));
+    }
+
+    public long notificationsWindow() {
+        return Math.max(0L, this.getConfig().getLong("notifications.window", DEFAULT_NOTIFICATIONS_WINDOW));
+    }
+
+    public NotificationBuffer.Mode notificationsMode() {
+        String mode = this.getConfig().getString("notifications.mode");
+        return mode == null ? DEFAULT_NOTIFICATIONS_MODE : NotificationBuffer.Mode.parse(mode);
+    }
+
+    public long bulkTickBudget() {
+        return Math.max(1L, this.getConfig().getLong("bulk.tick-budget", DEFAULT_BULK_TICK_BUDGET));
+    }
+
+    public boolean historyEnabled() {
+        return this.getConfig().getBoolean("history.enabled", DEFAULT_HISTORY_ENABLED);
+    }
+
+    public long historyRetention() {
+        return Math.max(0L, this.getConfig().getLong("history.retention", DEFAULT_HISTORY_RETENTION));
+    }
+
+    public PaymentHistory.Format historyExportFormat() {
+        return PaymentHistory.Format.parse(this.getConfig().getString("history.export-format", DEFAULT_HISTORY_EXPORT_FORMAT));
+    }
+
+    public long watchdogBudget() {
+        return this.getConfig().getLong("watchdog.budget", DEFAULT_WATCHDOG_BUDGET);
+    }
+
+    public boolean watchdogStackSamples() {
+        return this.getConfig().getBoolean("watchdog.stack-samples", DEFAULT_WATCHDOG_STACK_SAMPLES);
+    }
+
+    public boolean networkEnabled() {
+        return this.getConfig().getBoolean("network.enabled", DEFAULT_NETWORK_ENABLED);
+    }
+
+    /**
+     * @return ID of this server, or {@code null} if not set.
+     */
+    public String networkServerId() {
+        String serverId = this.getConfig().getString("network.server-id");
+        return serverId == null || serverId.isEmpty() ? null : serverId.replaceAll("[^A-Za-z0-9_]", "_");
+    }
+
+    public String networkTransport() {
+        return this.getConfig().getString("network.transport", DEFAULT_NETWORK_TRANSPORT);
+    }
+
+    public String networkDirectory() {
+        return this.getConfig().getString("network.directory", DEFAULT_NETWORK_DIRECTORY);
+    }
+
+    public long networkFallbackAfter() {
+        return Math.max(1L, this.getConfig().getLong("network.fallback-after", DEFAULT_NETWORK_FALLBACK_AFTER));
+    }
+
+    public long overloadTickDuration() {
+        return this.getConfig().getLong("overload.tick-duration", DEFAULT_OVERLOAD_TICK_DURATION);
+    }
+
+    public long overloadPluginBudget() {
+        return this.getConfig().getLong("overload.plugin-budget", DEFAULT_OVERLOAD_PLUGIN_BUDGET);
+    }
 }
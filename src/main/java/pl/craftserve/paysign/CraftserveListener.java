@@ -25,7 +25,6 @@ import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.PluginManager;
-import org.bukkit.scheduler.BukkitScheduler;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -43,9 +42,9 @@ public class CraftserveListener implements Listener {
 
     private final Plugin plugin;
     private final PluginManager pluginManager;
-    private final BukkitScheduler scheduler;
+    private final TaskScheduler scheduler;
 
-    public CraftserveListener(Plugin plugin, PluginManager pluginManager, BukkitScheduler scheduler) {
+    public CraftserveListener(Plugin plugin, PluginManager pluginManager, TaskScheduler scheduler) {
         this.plugin = Objects.requireNonNull(plugin, "plugin");
         this.pluginManager = Objects.requireNonNull(pluginManager, "pluginManager");
         this.scheduler = Objects.requireNonNull(scheduler, "scheduler");
@@ -79,7 +78,7 @@ public class CraftserveListener implements Listener {
     public void advertise(PlayerJoinEvent event) {
         Player player = event.getPlayer();
         if (player.hasPermission(PERMISSION)) {
-            this.scheduler.runTaskLater(this.plugin, () -> player.sendMessage(TEXT), 3L * 20L);
+            this.scheduler.runGlobalLater(() -> player.sendMessage(TEXT), 3L * 20L);
         }
     }
 }
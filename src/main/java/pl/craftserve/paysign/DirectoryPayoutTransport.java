@@ -0,0 +1,193 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Exchanges events through a directory shared by all servers of the network,
+ * eg. a network file system mount. Every batch is a single file, written
+ * under a temporary name and atomically renamed. Claims are empty files
+ * created with {@link Files#createFile}, which fails if the file exists, so
+ * only one server can ever claim an event.
+ */
+public class DirectoryPayoutTransport implements PayoutTransport {
+    static final Logger logger = Logger.getLogger(DirectoryPayoutTransport.class.getName());
+
+    private static final int FORMAT_VERSION = 1;
+    private static final String BATCH_EXTENSION = ".batch";
+    private static final long RETENTION = TimeUnit.DAYS.toMillis(1L);
+    private static final long CLEANUP_INTERVAL = TimeUnit.MINUTES.toMillis(10L);
+
+    private final Path directory;
+    private final String serverId;
+    private final Path batches;
+    private final Path claims;
+
+    private final Set<String> seen = new HashSet<>();
+    private long sequence;
+    private long lastCleanup;
+
+    public DirectoryPayoutTransport(Path directory, String serverId) {
+        this.directory = Objects.requireNonNull(directory, "directory");
+        this.serverId = Objects.requireNonNull(serverId, "serverId");
+        this.batches = directory.resolve("batches");
+        this.claims = directory.resolve("claims");
+    }
+
+    @Override
+    public void open() throws IOException {
+        Files.createDirectories(this.batches);
+        Files.createDirectories(this.claims);
+        logger.info("Exchanging payouts through " + this.directory.toAbsolutePath() + ".");
+    }
+
+    @Override
+    public void close() {
+        this.seen.clear();
+    }
+
+    @Override
+    public void publish(List<PayoutEvent> batch) throws IOException {
+        Objects.requireNonNull(batch, "batch");
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        String name = this.serverId + "-" + System.currentTimeMillis() + "-" + this.sequence++ + BATCH_EXTENSION;
+        Path file = this.batches.resolve(name);
+        Path temporary = this.batches.resolve(name + ".tmp");
+
+        try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+            DataOutputStream output = new DataOutputStream(stream);
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(batch.size());
+            for (PayoutEvent event : batch) {
+                event.write(output);
+            }
+            output.flush();
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public List<PayoutEvent> receive() throws IOException {
+        List<PayoutEvent> events = new ArrayList<>();
+        Set<String> present = new HashSet<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.batches, "*" + BATCH_EXTENSION)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                present.add(name);
+                if (this.seen.contains(name)) {
+                    continue;
+                }
+
+                try (InputStream stream = new BufferedInputStream(Files.newInputStream(file))) {
+                    this.read(new DataInputStream(stream), events);
+                } catch (NoSuchFileException e) {
+                    continue; // cleaned up in the meantime
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Could not read payout batch " + name + ", skipping.", e);
+                }
+                this.seen.add(name);
+            }
+        }
+
+        this.seen.retainAll(present);
+        this.cleanup();
+        return events;
+    }
+
+    private void read(DataInputStream input, List<PayoutEvent> events) throws IOException {
+        int version = input.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported payout batch format version: " + version);
+        }
+
+        int count = input.readInt();
+        for (int i = 0; i < count; i++) {
+            events.add(PayoutEvent.read(input));
+        }
+    }
+
+    @Override
+    public boolean claim(UUID eventId) throws IOException {
+        Objects.requireNonNull(eventId, "eventId");
+        try {
+            Files.createFile(this.claims.resolve(eventId.toString()));
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Every server removes its own old batches. Claims outlive batches, so an
+     * event can never be received again after its claim is gone.
+     */
+    private void cleanup() throws IOException {
+        long now = System.currentTimeMillis();
+        if (now - this.lastCleanup < CLEANUP_INTERVAL) {
+            return;
+        }
+        this.lastCleanup = now;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.batches, this.serverId + "-*" + BATCH_EXTENSION)) {
+            for (Path file : files) {
+                this.deleteIfOlder(file, now - RETENTION);
+            }
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.claims)) {
+            for (Path file : files) {
+                this.deleteIfOlder(file, now - RETENTION * 2L);
+            }
+        }
+    }
+
+    private void deleteIfOlder(Path file, long threshold) {
+        try {
+            if (Files.getLastModifiedTime(file).toMillis() < threshold) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not clean up " + file + ".", e);
+        }
+    }
+}
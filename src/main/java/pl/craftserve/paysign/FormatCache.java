@@ -0,0 +1,62 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.paysign;
+
+import java.util.Objects;
+import java.util.function.DoubleFunction;
+
+/**
+ * Caches formatted amounts. Every paid click formats the price of its sign,
+ * and there are only a few distinct prices, so formatting them again would
+ * only produce garbage. The cache is direct-mapped: a colliding amount
+ * replaces the entry. Entries are immutable, so threads never see half of one.
+ */
+final class FormatCache {
+    private static final int BITS = 6; // 64 amounts
+
+    private final DoubleFunction<String> formatter;
+    private final Entry[] entries = new Entry[1 << BITS];
+
+    FormatCache(DoubleFunction<String> formatter) {
+        this.formatter = Objects.requireNonNull(formatter, "formatter");
+    }
+
+    String format(double amount) {
+        long bits = Double.doubleToLongBits(amount);
+        int index = ((int) (bits ^ bits >>> 32) * 0x9E3779B9) >>> (Integer.SIZE - BITS);
+
+        Entry entry = this.entries[index];
+        if (entry != null && entry.bits == bits) {
+            return entry.formatted;
+        }
+
+        String formatted = this.formatter.apply(amount);
+        this.entries[index] = new Entry(bits, formatted);
+        return formatted;
+    }
+
+    private static final class Entry {
+        final long bits;
+        final String formatted;
+
+        Entry(long bits, String formatted) {
+            this.bits = bits;
+            this.formatted = formatted;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Single background threads the stores use for their file access, so the
+ * main thread never waits for the disk.
+ */
+public final class IoExecutors {
+    static final Logger logger = Logger.getLogger(IoExecutors.class.getName());
+
+    private static final long SHUTDOWN_TIMEOUT = 10L; // seconds
+
+    private IoExecutors() {
+    }
+
+    /**
+     * Creates an executor running its tasks one by one on a daemon thread.
+     */
+    public static ScheduledExecutorService create(String threadName) {
+        Objects.requireNonNull(threadName, "threadName");
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stops the executor, letting the already queued tasks finish.
+     * @param description What the queued tasks do, for the timeout warning.
+     * @return {@code false} if the tasks did not finish in time.
+     */
+    public static boolean shutdown(ScheduledExecutorService executor, String description) {
+        Objects.requireNonNull(executor, "executor");
+        Objects.requireNonNull(description, "description");
+
+        executor.shutdown();
+        try {
+            if (executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        logger.warning("Timed out waiting for " + description + ".");
+        return false;
+    }
+}
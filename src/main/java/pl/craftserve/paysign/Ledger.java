@@ -0,0 +1,612 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.craftserve.paysign;
+
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Server-local, UUID-keyed money accounts kept in memory. Accounts are spread
+ * over lock stripes holding primitive arrays, and a transfer updates both
+ * accounts under their stripe locks at once.
+ *
+ * <p>Every change is recorded as the new absolute balance of the account in
+ * the log buffer of its stripe, under the stripe lock which is held anyway,
+ * and appended to the log of the current generation by a background thread.
+ * Records of an account stay in order, as it always lives in one stripe. The
+ * log is periodically folded into a snapshot, which starts a new generation.
+ * On load the snapshot is read and only the log of its generation is replayed.
+ *
+ * <p>Player names of known accounts are kept next to the snapshot, so offline
+ * players can be paid after a restart without looking them up again.</p>
+ */
+public class Ledger {
+    static final Logger logger = Logger.getLogger(Ledger.class.getName());
+
+    private static final int STRIPES = 64; // power of two
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final String SNAPSHOT_FILE = "ledger.dat";
+    private static final int NAMES_VERSION = 1;
+    private static final String NAMES_FILE = "names.dat";
+    private static final long FLUSH_INTERVAL = 100L; // milliseconds
+    private static final long COMPACT_INTERVAL = TimeUnit.MINUTES.toMillis(10L);
+    private static final long COMPACT_LOG_SIZE = 8L * 1024L * 1024L; // bytes
+
+    public enum TransferStatus {
+        SUCCESS, INSUFFICIENT_FUNDS
+    }
+
+    private final Path directory;
+    private final double startingBalance;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    // lower case player name -> account
+    private final Map<String, UUID> names = new ConcurrentHashMap<>();
+    private volatile boolean namesDirty;
+
+    // accessed only by the I/O thread after load
+    private long generation;
+    private FileChannel log;
+    private DataOutputStream logOutput;
+    private long lastCompaction;
+    private ScheduledExecutorService ioExecutor;
+
+    public Ledger(Path directory, double startingBalance) {
+        this.directory = Objects.requireNonNull(directory, "directory");
+        Preconditions.checkArgument(startingBalance >= 0D, "startingBalance cannot be negative");
+        this.startingBalance = startingBalance;
+
+        for (int i = 0; i < STRIPES; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    public void enable() throws IOException {
+        Files.createDirectories(this.directory);
+        this.load();
+        this.loadNames();
+        this.compact();
+
+        this.ioExecutor = IoExecutors.create("PaySign Ledger I/O");
+        this.ioExecutor.scheduleWithFixedDelay(this::flushSafely, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public void disable() {
+        if (this.ioExecutor != null) {
+            IoExecutors.shutdown(this.ioExecutor, "the ledger log to be written");
+            this.ioExecutor = null;
+        }
+
+        try {
+            this.compact();
+            this.closeLog();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not save the ledger.", e);
+        }
+    }
+
+    //
+    // Accounts
+    //
+
+    public double getBalance(UUID account) {
+        Objects.requireNonNull(account, "account");
+        long msb = account.getMostSignificantBits();
+        long lsb = account.getLeastSignificantBits();
+
+        Stripe stripe = this.stripe(msb, lsb);
+        synchronized (stripe) {
+            int index = stripe.indexOf(msb, lsb);
+            return index < 0 ? this.startingBalance : stripe.balances[index];
+        }
+    }
+
+    public void setBalance(UUID account, double balance) {
+        Objects.requireNonNull(account, "account");
+        Preconditions.checkArgument(balance >= 0D, "balance cannot be negative");
+        long msb = account.getMostSignificantBits();
+        long lsb = account.getLeastSignificantBits();
+
+        Stripe stripe = this.stripe(msb, lsb);
+        synchronized (stripe) {
+            // getOrCreate may replace the array, so it must be called before it is read
+            int index = stripe.getOrCreate(msb, lsb, this.startingBalance);
+            stripe.balances[index] = balance;
+            stripe.log.add(msb, lsb, balance);
+        }
+    }
+
+    /**
+     * @return {@code false} if the account has insufficient funds.
+     */
+    public boolean withdraw(UUID account, double amount) {
+        Objects.requireNonNull(account, "account");
+        Preconditions.checkArgument(amount >= 0D, "amount cannot be negative");
+        long msb = account.getMostSignificantBits();
+        long lsb = account.getLeastSignificantBits();
+
+        Stripe stripe = this.stripe(msb, lsb);
+        synchronized (stripe) {
+            int index = stripe.indexOf(msb, lsb);
+            if ((index < 0 ? this.startingBalance : stripe.balances[index]) < amount) {
+                return false;
+            }
+
+            index = stripe.getOrCreate(msb, lsb, this.startingBalance);
+            stripe.balances[index] -= amount;
+            stripe.log.add(msb, lsb, stripe.balances[index]);
+            return true;
+        }
+    }
+
+    public void deposit(UUID account, double amount) {
+        Objects.requireNonNull(account, "account");
+        Preconditions.checkArgument(amount >= 0D, "amount cannot be negative");
+        long msb = account.getMostSignificantBits();
+        long lsb = account.getLeastSignificantBits();
+
+        Stripe stripe = this.stripe(msb, lsb);
+        synchronized (stripe) {
+            int index = stripe.getOrCreate(msb, lsb, this.startingBalance);
+            stripe.balances[index] += amount;
+            stripe.log.add(msb, lsb, stripe.balances[index]);
+        }
+    }
+
+    public TransferStatus transfer(UUID from, UUID to, double amount) {
+        Objects.requireNonNull(from, "from");
+        Objects.requireNonNull(to, "to");
+        Preconditions.checkArgument(amount >= 0D, "amount cannot be negative");
+
+        long fromMsb = from.getMostSignificantBits();
+        long fromLsb = from.getLeastSignificantBits();
+        long toMsb = to.getMostSignificantBits();
+        long toLsb = to.getLeastSignificantBits();
+
+        int fromStripe = stripeIndex(fromMsb, fromLsb);
+        int toStripe = stripeIndex(toMsb, toLsb);
+
+        // always lock in the same order to avoid deadlocks
+        Stripe first = this.stripes[Math.min(fromStripe, toStripe)];
+        Stripe second = this.stripes[Math.max(fromStripe, toStripe)];
+        synchronized (first) {
+            synchronized (second) {
+                Stripe source = this.stripes[fromStripe];
+                Stripe target = this.stripes[toStripe];
+
+                int fromIndex = source.indexOf(fromMsb, fromLsb);
+                double fromBalance = fromIndex < 0 ? this.startingBalance : source.balances[fromIndex];
+                if (fromBalance < amount) {
+                    return TransferStatus.INSUFFICIENT_FUNDS;
+                } else if (from.equals(to)) {
+                    return TransferStatus.SUCCESS;
+                }
+
+                fromIndex = source.getOrCreate(fromMsb, fromLsb, this.startingBalance);
+                source.balances[fromIndex] -= amount;
+                // creating the target may have resized the source array if they share the stripe
+                int toIndex = target.getOrCreate(toMsb, toLsb, this.startingBalance);
+                fromIndex = source.indexOf(fromMsb, fromLsb);
+                target.balances[toIndex] += amount;
+
+                source.log.add(fromMsb, fromLsb, source.balances[fromIndex]);
+                target.log.add(toMsb, toLsb, target.balances[toIndex]);
+                return TransferStatus.SUCCESS;
+            }
+        }
+    }
+
+    /**
+     * Never blocks.
+     * @return The account remembered for the player name.
+     */
+    public Optional<UUID> getAccount(String playerName) {
+        Objects.requireNonNull(playerName, "playerName");
+        return Optional.ofNullable(this.names.get(playerName.toLowerCase(Locale.ROOT)));
+    }
+
+    /**
+     * Remembers the account of the player name, it is saved in the background.
+     */
+    public void rememberName(String playerName, UUID account) {
+        Objects.requireNonNull(playerName, "playerName");
+        Objects.requireNonNull(account, "account");
+        if (!account.equals(this.names.put(playerName.toLowerCase(Locale.ROOT), account))) {
+            this.namesDirty = true;
+        }
+    }
+
+    private Stripe stripe(long msb, long lsb) {
+        return this.stripes[stripeIndex(msb, lsb)];
+    }
+
+    private static int hash(long msb, long lsb) {
+        long hash = msb ^ lsb;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return (int) hash;
+    }
+
+    private static int stripeIndex(long msb, long lsb) {
+        return hash(msb, lsb) & (STRIPES - 1);
+    }
+
+    //
+    // Persistence
+    //
+
+    private Path logFile(long generation) {
+        return this.directory.resolve("ledger-" + generation + ".log");
+    }
+
+    private void load() throws IOException {
+        Path snapshot = this.directory.resolve(SNAPSHOT_FILE);
+        int accounts = 0;
+
+        if (Files.exists(snapshot)) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+                int version = input.readInt();
+                if (version != SNAPSHOT_VERSION) {
+                    throw new IOException("Unsupported ledger snapshot version: " + version);
+                }
+
+                this.generation = input.readLong();
+                accounts = input.readInt();
+                for (int i = 0; i < accounts; i++) {
+                    this.restore(input.readLong(), input.readLong(), input.readDouble());
+                }
+            }
+        }
+
+        int replayed = 0;
+        try (InputStream stream = Files.newInputStream(this.logFile(this.generation))) {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(stream));
+            while (true) {
+                long msb;
+                long lsb;
+                double balance;
+                try {
+                    msb = input.readLong();
+                    lsb = input.readLong();
+                    balance = input.readDouble();
+                } catch (EOFException e) {
+                    break; // end of the log, or a record torn by a crash
+                }
+
+                this.restore(msb, lsb, balance);
+                replayed++;
+            }
+        } catch (NoSuchFileException ignored) {
+        }
+
+        logger.info("Loaded " + accounts + " ledger accounts and replayed " + replayed + " log records.");
+    }
+
+    private void restore(long msb, long lsb, double balance) {
+        Stripe stripe = this.stripe(msb, lsb);
+        synchronized (stripe) {
+            int index = stripe.getOrCreate(msb, lsb, balance);
+            stripe.balances[index] = balance; // replayed records overwrite the snapshot
+        }
+    }
+
+    private void flushSafely() {
+        try {
+            this.flush();
+            this.saveNames();
+            if (System.currentTimeMillis() - this.lastCompaction > COMPACT_INTERVAL ||
+                    (this.log != null && this.log.size() > COMPACT_LOG_SIZE)) {
+                this.compact();
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not write the ledger log.", e);
+        }
+    }
+
+    private void flush() throws IOException {
+        Records[] pending = new Records[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            Stripe stripe = this.stripes[i];
+            synchronized (stripe) {
+                pending[i] = stripe.takeLog();
+            }
+        }
+        this.writeLog(pending);
+    }
+
+    private void writeLog(Records[] pending) throws IOException {
+        int size = 0;
+        for (Records records : pending) {
+            size += records.size;
+        }
+        if (size == 0) {
+            return;
+        }
+
+        if (this.log == null) {
+            this.log = FileChannel.open(this.logFile(this.generation),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            this.logOutput = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(this.log)));
+        }
+
+        for (Records records : pending) {
+            for (int i = 0; i < records.size; i++) {
+                this.logOutput.writeLong(records.msb[i]);
+                this.logOutput.writeLong(records.lsb[i]);
+                this.logOutput.writeDouble(records.balances[i]);
+            }
+        }
+        this.logOutput.flush();
+        this.log.force(false);
+    }
+
+    private void closeLog() throws IOException {
+        if (this.log != null) {
+            this.logOutput.close();
+            this.log = null;
+            this.logOutput = null;
+        }
+    }
+
+    /**
+     * Folds the current state into a new snapshot generation.
+     */
+    private void compact() throws IOException {
+        // Copy all accounts and take pending log records at a single point in time.
+        Records accounts = new Records(64);
+        Records[] pending = this.lockAll(0, () -> {
+            Records[] logs = new Records[STRIPES];
+            for (int i = 0; i < STRIPES; i++) {
+                this.stripes[i].copyTo(accounts);
+                logs[i] = this.stripes[i].takeLog();
+            }
+            return logs;
+        });
+
+        // Keep the old generation complete until the new snapshot is in place.
+        this.writeLog(pending);
+
+        long generation = this.generation + 1;
+        Path snapshot = this.directory.resolve(SNAPSHOT_FILE);
+        Path temporary = this.directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            output.writeInt(SNAPSHOT_VERSION);
+            output.writeLong(generation);
+            output.writeInt(accounts.size);
+            for (int i = 0; i < accounts.size; i++) {
+                output.writeLong(accounts.msb[i]);
+                output.writeLong(accounts.lsb[i]);
+                output.writeDouble(accounts.balances[i]);
+            }
+            output.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        this.closeLog();
+        Files.deleteIfExists(this.logFile(this.generation));
+        this.generation = generation;
+        this.lastCompaction = System.currentTimeMillis();
+        this.saveNames();
+    }
+
+    private void loadNames() {
+        Path file = this.directory.resolve(NAMES_FILE);
+        if (!Files.exists(file)) {
+            return;
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int version = input.readInt();
+            if (version != NAMES_VERSION) {
+                throw new IOException("Unsupported ledger names version: " + version);
+            }
+
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                this.names.put(input.readUTF(), new UUID(input.readLong(), input.readLong()));
+            }
+        } catch (IOException e) {
+            // only a cache, owners are looked up again when validated
+            logger.log(Level.WARNING, "Could not load ledger player names, offline owners are resolved again.", e);
+        }
+    }
+
+    private void saveNames() throws IOException {
+        if (!this.namesDirty) {
+            return;
+        }
+        this.namesDirty = false;
+        Map<String, UUID> names = new HashMap<>(this.names);
+
+        Path file = this.directory.resolve(NAMES_FILE);
+        Path temporary = this.directory.resolve(NAMES_FILE + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            output.writeInt(NAMES_VERSION);
+            output.writeInt(names.size());
+            for (Map.Entry<String, UUID> entry : names.entrySet()) {
+                output.writeUTF(entry.getKey());
+                output.writeLong(entry.getValue().getMostSignificantBits());
+                output.writeLong(entry.getValue().getLeastSignificantBits());
+            }
+        } catch (IOException e) {
+            this.namesDirty = true; // retried with the next flush
+            throw e;
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private <T> T lockAll(int index, Supplier<T> action) {
+        if (index == STRIPES) {
+            return action.get();
+        }
+
+        synchronized (this.stripes[index]) {
+            return this.lockAll(index + 1, action);
+        }
+    }
+
+    /**
+     * Open-addressing hash table of accounts. Guarded by its own monitor.
+     */
+    static final class Stripe {
+        private static final double LOAD_FACTOR = .5D;
+
+        long[] msb = new long[16];
+        long[] lsb = new long[16];
+        double[] balances = new double[16];
+        boolean[] used = new boolean[16];
+        int size;
+
+        // balance records waiting to be appended to the log
+        Records log = new Records(16);
+
+        int indexOf(long msb, long lsb) {
+            int mask = this.used.length - 1;
+            int index = (hash(msb, lsb) >>> 6) & mask; // low bits select the stripe
+            while (this.used[index]) {
+                if (this.msb[index] == msb && this.lsb[index] == lsb) {
+                    return index;
+                }
+                index = (index + 1) & mask;
+            }
+            return -(index + 1);
+        }
+
+        int getOrCreate(long msb, long lsb, double initialBalance) {
+            int index = this.indexOf(msb, lsb);
+            if (index >= 0) {
+                return index;
+            }
+
+            if (this.size + 1 > this.used.length * LOAD_FACTOR) {
+                this.resize();
+                index = this.indexOf(msb, lsb);
+            }
+
+            index = -index - 1;
+            this.used[index] = true;
+            this.msb[index] = msb;
+            this.lsb[index] = lsb;
+            this.balances[index] = initialBalance;
+            this.size++;
+            return index;
+        }
+
+        private void resize() {
+            long[] oldMsb = this.msb;
+            long[] oldLsb = this.lsb;
+            double[] oldBalances = this.balances;
+            boolean[] oldUsed = this.used;
+
+            int capacity = oldUsed.length * 2;
+            this.msb = new long[capacity];
+            this.lsb = new long[capacity];
+            this.balances = new double[capacity];
+            this.used = new boolean[capacity];
+
+            for (int i = 0; i < oldUsed.length; i++) {
+                if (oldUsed[i]) {
+                    int index = -this.indexOf(oldMsb[i], oldLsb[i]) - 1;
+                    this.used[index] = true;
+                    this.msb[index] = oldMsb[i];
+                    this.lsb[index] = oldLsb[i];
+                    this.balances[index] = oldBalances[i];
+                }
+            }
+        }
+
+        void copyTo(Records records) {
+            for (int i = 0; i < this.used.length; i++) {
+                if (this.used[i]) {
+                    records.add(this.msb[i], this.lsb[i], this.balances[i]);
+                }
+            }
+        }
+
+        Records takeLog() {
+            if (this.log.size == 0) {
+                return Records.EMPTY;
+            }
+
+            Records log = this.log;
+            this.log = new Records(Math.max(16, log.size));
+            return log;
+        }
+    }
+
+    /**
+     * Account balances in primitive arrays.
+     */
+    static final class Records {
+        static final Records EMPTY = new Records(0);
+
+        long[] msb;
+        long[] lsb;
+        double[] balances;
+        int size;
+
+        Records(int capacity) {
+            this.msb = new long[capacity];
+            this.lsb = new long[capacity];
+            this.balances = new double[capacity];
+        }
+
+        void add(long msb, long lsb, double balance) {
+            if (this.size == this.msb.length) {
+                int capacity = Math.max(16, this.size * 2);
+                this.msb = Arrays.copyOf(this.msb, capacity);
+                this.lsb = Arrays.copyOf(this.lsb, capacity);
+                this.balances = Arrays.copyOf(this.balances, capacity);
+            }
+
+            this.msb[this.size] = msb;
+            this.lsb[this.size] = lsb;
+            this.balances[this.size] = balance;
+            this.size++;
+        }
+    }
+}
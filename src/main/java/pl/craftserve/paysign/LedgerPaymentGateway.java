@@ -0,0 +1,146 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.craftserve.paysign;
+
+import org.bukkit.OfflinePlayer;
+import org.bukkit.Server;
+import org.bukkit.entity.Player;
+
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * {@link PaymentGateway} using the built-in {@link Ledger}. Transfers are
+ * atomic, so there is never anything to refund.
+ *
+ * <p>Owners are paid by UUID. Looking up an offline player's UUID may block,
+ * so it's only done by {@link #resolve(String)}, off the main thread, eg. when
+ * the {@link OwnerValidator} validates the owner. Payments only use the
+ * resolved UUIDs and fail fast if the owner is not resolved yet. Resolved
+ * names are remembered by the {@link Ledger}, so they survive a restart.</p>
+ */
+public class LedgerPaymentGateway implements PaymentGateway {
+    private final Server server;
+    private final Ledger ledger;
+    private final String currency;
+    private final FormatCache formatCache = new FormatCache(this::formatNow);
+
+    public LedgerPaymentGateway(Server server, Ledger ledger, String currency) {
+        this.server = Objects.requireNonNull(server, "server");
+        this.ledger = Objects.requireNonNull(ledger, "ledger");
+        this.currency = Objects.requireNonNull(currency, "currency");
+    }
+
+    public Ledger getLedger() {
+        return this.ledger;
+    }
+
+    @Override
+    public TransferResult transfer(Player payer, String ownerName, String worldName, double amount) {
+        Objects.requireNonNull(payer, "payer");
+        Objects.requireNonNull(ownerName, "ownerName");
+
+        Optional<UUID> owner = this.getResolved(ownerName);
+        if (!owner.isPresent()) {
+            // being resolved by the owner validator, don't block the click
+            return TransferResult.failure(TransferResult.Status.UNAVAILABLE, "Owner " + ownerName + " is not resolved yet");
+        }
+
+        switch (this.ledger.transfer(payer.getUniqueId(), owner.get(), amount)) {
+            case SUCCESS:
+                return TransferResult.success(amount);
+            case INSUFFICIENT_FUNDS:
+                return TransferResult.failure(TransferResult.Status.INSUFFICIENT_FUNDS, null);
+            default:
+                throw new IllegalStateException("Unknown transfer status");
+        }
+    }
+
+    @Override
+    public TransferResult withdraw(Player payer, String worldName, double amount) {
+        Objects.requireNonNull(payer, "payer");
+        return this.ledger.withdraw(payer.getUniqueId(), amount)
+                ? TransferResult.success(amount)
+                : TransferResult.failure(TransferResult.Status.INSUFFICIENT_FUNDS, null);
+    }
+
+    /**
+     * Deposits to a player who is online or has been resolved already.
+     */
+    @Override
+    public boolean deposit(String playerName, String worldName, double amount) {
+        Optional<UUID> account = this.getResolved(playerName);
+        account.ifPresent(id -> this.ledger.deposit(id, amount));
+        return account.isPresent();
+    }
+
+    /**
+     * Never blocks.
+     * @return UUID of the player if online or resolved already.
+     */
+    public Optional<UUID> getResolved(String playerName) {
+        Objects.requireNonNull(playerName, "playerName");
+        Player online = this.server.getPlayerExact(playerName);
+        if (online != null) {
+            // remembered for when the player leaves, the owner may be validated already
+            this.ledger.rememberName(playerName, online.getUniqueId());
+            return Optional.of(online.getUniqueId());
+        }
+        return this.ledger.getAccount(playerName);
+    }
+
+    /**
+     * Resolves UUID of a player who has ever played on this server, and
+     * remembers it for payments. May block, so it should not be called on the
+     * main thread.
+     */
+    @SuppressWarnings("deprecation")
+    public Optional<UUID> resolve(String playerName) {
+        Optional<UUID> resolved = this.getResolved(playerName);
+        if (resolved.isPresent()) {
+            return resolved;
+        }
+
+        OfflinePlayer offline = this.server.getOfflinePlayer(playerName);
+        if (!offline.hasPlayedBefore()) {
+            return Optional.empty();
+        }
+
+        this.ledger.rememberName(playerName, offline.getUniqueId());
+        return Optional.of(offline.getUniqueId());
+    }
+
+    @Override
+    public boolean hasAccount(String playerName) {
+        return this.resolve(playerName).isPresent();
+    }
+
+    @Override
+    public String format(double amount) {
+        return this.formatCache.format(amount);
+    }
+
+    private String formatNow(double amount) {
+        return String.format(Locale.ROOT, "%,.2f %s", amount, this.currency);
+    }
+
+    @Override
+    public String getProviderName() {
+        return "built-in ledger";
+    }
+}
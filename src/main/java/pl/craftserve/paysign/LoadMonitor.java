@@ -0,0 +1,177 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the server tick duration and the plugin time per tick. When any of
+ * them crosses its threshold the plugin enters the overload mode, in which
+ * cosmetic work is dropped and bookkeeping is deferred to later ticks.
+ * Bookkeeping is never dropped, once too much of it is deferred the oldest
+ * tasks run right away. Payments and redstone are never affected.
+ */
+public class LoadMonitor {
+    static final Logger logger = Logger.getLogger(LoadMonitor.class.getName());
+
+    private static final double SMOOTHING = 1D / 20D; // ~1 second
+    private static final int RECOVERY_TICKS = 5 * 20;
+    private static final long DRAIN_BUDGET = TimeUnit.MILLISECONDS.toNanos(1L);
+    static final int MAX_DEFERRED = 10_000; // beyond that the oldest tasks run right away
+
+    private final Configuration configuration;
+    private final PerformanceStats stats;
+
+    private final Queue<Runnable> deferred = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger deferredSize = new AtomicInteger();
+
+    private volatile boolean overloaded;
+    private long lastTick;
+    private double averageTickNanos;
+    private double averagePluginNanos;
+    private int recoveryTicks;
+
+    public LoadMonitor(Configuration configuration, PerformanceStats stats) {
+        this.configuration = Objects.requireNonNull(configuration, "configuration");
+        this.stats = Objects.requireNonNull(stats, "stats");
+    }
+
+    public boolean isOverloaded() {
+        return this.overloaded;
+    }
+
+    /**
+     * Checks whether cosmetic work (sounds, notifications) should be done now.
+     * Counts the dropped work if it shouldn't.
+     */
+    public boolean allowCosmetic() {
+        if (this.overloaded) {
+            this.stats.recordDroppedCosmetic();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs the bookkeeping task now, or later if the plugin is overloaded.
+     * If too many tasks are deferred already, the oldest ones run now on the
+     * calling thread to make room, so nothing is ever dropped.
+     */
+    public void defer(Runnable task) {
+        Objects.requireNonNull(task, "task");
+        if (!this.overloaded) {
+            task.run();
+            return;
+        }
+
+        this.deferredSize.incrementAndGet();
+        this.deferred.add(task);
+        this.stats.recordDeferred();
+
+        Runnable oldest;
+        while (this.deferredSize.get() > MAX_DEFERRED && (oldest = this.deferred.poll()) != null) {
+            this.deferredSize.decrementAndGet();
+            this.stats.recordOverflowedDeferred();
+            runSafely(oldest);
+        }
+    }
+
+    /**
+     * Logs the message now, or later if the server is overloaded. Unlike
+     * {@link #defer(Runnable)} it doesn't create a task unless it's deferred.
+     */
+    public void log(Logger logger, Level level, String message) {
+        Objects.requireNonNull(logger, "logger");
+        Objects.requireNonNull(level, "level");
+        Objects.requireNonNull(message, "message");
+        if (!this.overloaded) {
+            logger.log(level, message);
+        } else if (logger.isLoggable(level)) {
+            this.defer(() -> logger.log(level, message));
+        }
+    }
+
+    /**
+     * Should be called once every tick, after {@link PerformanceStats#tick()}.
+     */
+    public void tick() {
+        long now = System.nanoTime();
+        if (this.lastTick != 0L) {
+            this.averageTickNanos += (now - this.lastTick - this.averageTickNanos) * SMOOTHING;
+        }
+        this.lastTick = now;
+        this.averagePluginNanos += (this.stats.getLastTickNanos() - this.averagePluginNanos) * SMOOTHING;
+
+        boolean exceeded = this.averageTickNanos > TimeUnit.MILLISECONDS.toNanos(this.configuration.overloadTickDuration()) ||
+                this.averagePluginNanos > TimeUnit.MILLISECONDS.toNanos(this.configuration.overloadPluginBudget());
+
+        if (exceeded) {
+            this.recoveryTicks = 0;
+            if (!this.overloaded) {
+                this.switchMode(true);
+            }
+        } else if (this.overloaded && ++this.recoveryTicks >= RECOVERY_TICKS) {
+            this.switchMode(false);
+        }
+
+        if (!this.overloaded) {
+            this.drain(DRAIN_BUDGET);
+        }
+    }
+
+    private void switchMode(boolean overloaded) {
+        this.overloaded = overloaded;
+        this.stats.recordOverloadSwitch(overloaded);
+        logger.info(String.format("%s overload mode (average tick %.1fms, plugin %.2fms per tick).",
+                overloaded ? "Entering" : "Leaving", this.averageTickNanos / 1_000_000D, this.averagePluginNanos / 1_000_000D));
+    }
+
+    /**
+     * Runs all deferred tasks, eg. before the plugin is disabled.
+     */
+    public void drainAll() {
+        this.drain(Long.MAX_VALUE);
+    }
+
+    private void drain(long budget) {
+        if (this.deferredSize.get() == 0) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Runnable task;
+        while (System.nanoTime() - start < budget && (task = this.deferred.poll()) != null) {
+            this.deferredSize.decrementAndGet();
+            runSafely(task);
+        }
+        this.stats.recordPluginTime(System.nanoTime() - start);
+    }
+
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable e) {
+            logger.log(Level.SEVERE, "Could not run deferred task.", e);
+        }
+    }
+}
@@ -33,12 +33,12 @@ public class LogBlockHook {
     /**
      * Logs click action on the sign to the LogBlock {@link Consumer}.
      * @param player Who clicked
-     * @param trigger Trigger state
+     * @param location Location of the sign
      * @param fakeButton Fake button simulating redstone
      */
-    public void logClick(Player player, Trigger trigger, Switch fakeButton) {
+    public void logClick(Player player, Location location, Switch fakeButton) {
         Objects.requireNonNull(player, "player");
-        Objects.requireNonNull(trigger, "trigger");
+        Objects.requireNonNull(location, "location");
         Objects.requireNonNull(fakeButton, "fakeButton");
 
         Consumer consumer = this.getConsumer();
@@ -47,10 +47,9 @@ public class LogBlockHook {
         }
 
         Actor actor = Actor.actorFromEntity(player);
-        Location location = trigger.getPaySign().getSign().getLocation();
 
         try {
-            consumer.queueBlock(actor, location, this.switchOff(fakeButton), fakeButton);
+            consumer.queueBlock(actor, location, ButtonStates.withPower(fakeButton, false), fakeButton);
         } catch (Throwable e) {
             logger.log(Level.SEVERE, "Could not log click to LogBlock.", e);
         }
@@ -60,11 +59,4 @@ public class LogBlockHook {
         LogBlock logBlock = LogBlock.getInstance();
         return logBlock == null ? null : logBlock.getConsumer();
     }
-
-    private Switch switchOff(Switch button) {
-        Objects.requireNonNull(button, "button");
-        Switch off = (Switch) button.clone();
-        off.setPowered(false);
-        return off;
-    }
 }
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Delivers events back to the same server only. Useful for a single server,
+ * or to try out the network payouts before a shared directory is set up.
+ */
+public class LoopbackPayoutTransport implements PayoutTransport {
+    private final List<PayoutEvent> received = new ArrayList<>();
+    private final Set<UUID> claims = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public void close() {
+        // nothing to release, undelivered events and claims stay here
+    }
+
+    @Override
+    public synchronized void publish(List<PayoutEvent> batch) {
+        Objects.requireNonNull(batch, "batch");
+        this.received.addAll(batch);
+    }
+
+    @Override
+    public synchronized List<PayoutEvent> receive() {
+        List<PayoutEvent> events = new ArrayList<>(this.received);
+        this.received.clear();
+        return events;
+    }
+
+    @Override
+    public boolean claim(UUID eventId) {
+        Objects.requireNonNull(eventId, "eventId");
+        return this.claims.add(eventId);
+    }
+}
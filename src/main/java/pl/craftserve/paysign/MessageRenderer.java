@@ -19,6 +19,7 @@ package pl.craftserve.paysign;
 import org.bukkit.ChatColor;
 
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Renders different messages.
@@ -36,6 +37,15 @@ public abstract class MessageRenderer {
         return this.error("Decimal prices aren't allowed on this server.");
     }
 
+    public String economyUnavailable() {
+        return this.error("Payments are not available right now, try again later.");
+    }
+
+    public String invalidOwner(String ownerName) {
+        Objects.requireNonNull(ownerName, "ownerName");
+        return this.error(ownerName + " can't receive payments, this sign won't work.");
+    }
+
     public String noPermissionToCreate() {
         return this.error("You don't have permission to create this sign.");
     }
@@ -54,12 +64,50 @@ public abstract class MessageRenderer {
         return this.fine(playerName + " has paid " + formattedPrice + " for using your mechanism.");
     }
 
+    public String notificationSummary(int players, boolean morePlayers, int payments, String formattedTotal, long window) {
+        Objects.requireNonNull(formattedTotal, "formattedTotal");
+        return this.fine(this.players(players, morePlayers) + " paid " + formattedTotal + " in " + payments +
+                " payment(s) for using your mechanisms in the last " + window + "s.");
+    }
+
+    public String notificationDigest(int players, boolean morePlayers, int payments, String formattedTotal) {
+        Objects.requireNonNull(formattedTotal, "formattedTotal");
+        return this.fine("While you were away, " + this.players(players, morePlayers) + " paid " + formattedTotal +
+                " in " + payments + " payment(s) for using your mechanisms.");
+    }
+
+    private String players(int players, boolean morePlayers) {
+        return players + (morePlayers ? "+" : "") + (players == 1 && !morePlayers ? " player" : " players");
+    }
+
     public String paid(String formattedPrice, String ownerName) {
         Objects.requireNonNull(formattedPrice, "formattedPrice");
         Objects.requireNonNull(ownerName, "ownerName");
         return this.success(formattedPrice + " has been withdrawn from your account for using " + ownerName + "'s mechanism.");
     }
 
+    public String passPurchased(Pass pass) {
+        Objects.requireNonNull(pass, "pass");
+        return this.success("You have bought a pass for this mechanism, " + this.passRemaining(pass) + ".");
+    }
+
+    public String passesLoading() {
+        return this.error("Your passes are still being loaded, try again in a moment.");
+    }
+
+    public String passUsed(Pass pass) {
+        Objects.requireNonNull(pass, "pass");
+        return this.fine("You have used your pass, " + this.passRemaining(pass) + ".");
+    }
+
+    private String passRemaining(Pass pass) {
+        if (pass.isTimeLimited()) {
+            long minutes = TimeUnit.MILLISECONDS.toMinutes(pass.getExpiresAt() - System.currentTimeMillis());
+            return minutes < 1 ? "valid for less than a minute" : "valid for " + minutes + " more minute(s)";
+        }
+        return pass.getRemainingUses() + " use(s) left";
+    }
+
     public String tooPoor() {
         return this.error("You are too poor to use this sign.");
     }
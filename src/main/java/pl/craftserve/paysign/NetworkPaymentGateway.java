@@ -0,0 +1,94 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.entity.Player;
+
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Charges the payer locally, but forwards the payout through the
+ * {@link PayoutBus} when the owner isn't playing on this server. If the bus
+ * can't take the payout, the owner is paid locally.
+ */
+public class NetworkPaymentGateway implements PaymentGateway {
+    private final PaymentGateway delegate;
+    private final PayoutBus bus;
+
+    public NetworkPaymentGateway(PaymentGateway delegate, PayoutBus bus) {
+        this.delegate = Objects.requireNonNull(delegate, "delegate");
+        this.bus = Objects.requireNonNull(bus, "bus");
+    }
+
+    public PaymentGateway getDelegate() {
+        return this.delegate;
+    }
+
+    @Override
+    public TransferResult transfer(Player payer, String ownerName, String worldName, double amount) {
+        Objects.requireNonNull(payer, "payer");
+        Objects.requireNonNull(ownerName, "ownerName");
+        Objects.requireNonNull(worldName, "worldName");
+
+        if (this.bus.isOnline(ownerName)) {
+            return this.delegate.transfer(payer, ownerName, worldName, amount);
+        }
+
+        TransferResult withdraw = this.delegate.withdraw(payer, worldName, amount);
+        if (!withdraw.isSuccess()) {
+            return withdraw;
+        }
+
+        if (this.bus.forward(new PayoutEvent(UUID.randomUUID(), this.bus.getServerId(), ownerName, payer.getName(), worldName,
+                withdraw.getAmount(), System.currentTimeMillis(), false))) {
+            return TransferResult.forwarded(withdraw.getAmount());
+        }
+
+        // not recorded, so pay the owner here like without the network
+        if (this.delegate.deposit(ownerName, worldName, withdraw.getAmount())) {
+            return TransferResult.success(withdraw.getAmount());
+        }
+        this.delegate.deposit(payer.getName(), worldName, withdraw.getAmount());
+        return TransferResult.failure(TransferResult.Status.DEPOSIT_FAILED, null);
+    }
+
+    @Override
+    public TransferResult withdraw(Player payer, String worldName, double amount) {
+        return this.delegate.withdraw(payer, worldName, amount);
+    }
+
+    @Override
+    public boolean deposit(String playerName, String worldName, double amount) {
+        return this.delegate.deposit(playerName, worldName, amount);
+    }
+
+    @Override
+    public boolean hasAccount(String playerName) {
+        return this.delegate.hasAccount(playerName);
+    }
+
+    @Override
+    public String format(double amount) {
+        return this.delegate.format(amount);
+    }
+
+    @Override
+    public String getProviderName() {
+        return this.delegate.getProviderName() + " (network payouts)";
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import net.md_5.bungee.api.ChatMessageType;
+import net.md_5.bungee.api.chat.TextComponent;
+import org.bukkit.Server;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleFunction;
+import java.util.logging.Logger;
+
+/**
+ * Merges payment notifications for sign owners, so owners of busy mechanisms
+ * get one summary per window instead of a chat message per payment. Owners who
+ * are offline get a digest when they join. Digests are kept in memory only,
+ * for a limited time and a limited number of owners, so they are lost on
+ * restart.
+ */
+public class NotificationBuffer implements Listener {
+    static final Logger logger = Logger.getLogger(NotificationBuffer.class.getName());
+
+    private static final int MAX_TRACKED_PAYERS = 100;
+    static final long DIGEST_TTL = TimeUnit.DAYS.toMillis(1L);
+    static final int MAX_DIGESTS = 10_000; // owners, the oldest digests are dropped beyond that
+
+    public enum Mode {
+        CHAT, ACTION_BAR, NONE;
+
+        public static Mode parse(String text) {
+            Objects.requireNonNull(text, "text");
+            try {
+                return valueOf(text.toUpperCase(Locale.ROOT).replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                logger.warning("Unknown notifications mode: " + text + ", using " + CHAT + ".");
+                return CHAT;
+            }
+        }
+    }
+
+    private final Plugin plugin;
+    private final PluginManager pluginManager;
+    private final TaskScheduler scheduler;
+    private final Configuration configuration;
+    private final MessageRenderer messageRenderer;
+    private final LoadMonitor loadMonitor;
+    private final DoubleFunction<String> formatter;
+
+    private final Map<String, Summary> pending = new ConcurrentHashMap<>();
+    private TaskScheduler.Task flushTask;
+
+    public NotificationBuffer(Plugin plugin, PluginManager pluginManager, TaskScheduler scheduler, Configuration configuration,
+                              MessageRenderer messageRenderer, LoadMonitor loadMonitor, DoubleFunction<String> formatter) {
+        this.plugin = Objects.requireNonNull(plugin, "plugin");
+        this.pluginManager = Objects.requireNonNull(pluginManager, "pluginManager");
+        this.scheduler = Objects.requireNonNull(scheduler, "scheduler");
+        this.configuration = Objects.requireNonNull(configuration, "configuration");
+        this.messageRenderer = Objects.requireNonNull(messageRenderer, "messageRenderer");
+        this.loadMonitor = Objects.requireNonNull(loadMonitor, "loadMonitor");
+        this.formatter = Objects.requireNonNull(formatter, "formatter");
+    }
+
+    public void enable() {
+        this.pluginManager.registerEvents(this, this.plugin);
+
+        long window = this.configuration.notificationsWindow() * 20L;
+        if (window > 0L) {
+            this.flushTask = this.scheduler.runGlobalTimer(this::flush, window, window);
+        }
+    }
+
+    public void disable() {
+        HandlerList.unregisterAll(this);
+        if (this.flushTask != null) {
+            this.flushTask.cancel();
+            this.flushTask = null;
+        }
+        this.pending.clear();
+    }
+
+    /**
+     * Notifies the owner about a payment, either now or in the next summary.
+     */
+    public void add(String ownerName, String payerName, double amount) {
+        Objects.requireNonNull(ownerName, "ownerName");
+        Objects.requireNonNull(payerName, "payerName");
+
+        Mode mode = this.configuration.notificationsMode();
+        if (mode.equals(Mode.NONE)) {
+            return;
+        }
+
+        if (this.flushTask == null) {
+            // no window, notify immediately like it used to be
+            Player owner = this.plugin.getServer().getPlayerExact(ownerName);
+            if (owner != null && this.loadMonitor.allowCosmetic()) {
+                this.send(owner, mode, this.messageRenderer.notification(payerName, this.formatter.apply(amount)));
+            }
+            return;
+        }
+
+        // A closed summary has already been removed by the flush, so the retry gets a fresh one.
+        String key = ownerName.toLowerCase(Locale.ROOT);
+        long now = System.currentTimeMillis();
+        Summary summary;
+        do {
+            summary = this.pending.computeIfAbsent(key, k -> new Summary(now));
+        } while (!summary.add(payerName, amount));
+    }
+
+    void flush() {
+        if (this.pending.isEmpty()) {
+            return;
+        }
+        this.expireDigests(System.currentTimeMillis());
+        if (this.loadMonitor.isOverloaded()) {
+            return; // keep merging until the server recovers
+        }
+
+        Server server = this.plugin.getServer();
+        Mode mode = this.configuration.notificationsMode();
+        long window = this.configuration.notificationsWindow();
+
+        Iterator<Map.Entry<String, Summary>> iterator = this.pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Summary> entry = iterator.next();
+            Player owner = server.getPlayerExact(entry.getKey());
+            if (owner == null) {
+                continue; // offline, wait for the digest on join
+            }
+
+            iterator.remove();
+            Summary summary = entry.getValue();
+            summary.close();
+            this.send(owner, mode, summary.render(this.messageRenderer, this.formatter, window));
+        }
+    }
+
+    /**
+     * Drops digests older than {@link #DIGEST_TTL}, and the oldest ones while
+     * there are more than {@link #MAX_DIGESTS}.
+     */
+    private void expireDigests(long now) {
+        List<Map.Entry<String, Summary>> entries = new ArrayList<>(this.pending.entrySet());
+        entries.sort(Comparator.comparingLong(entry -> entry.getValue().getCreatedAt()));
+
+        int excess = entries.size() - MAX_DIGESTS;
+        for (Map.Entry<String, Summary> entry : entries) {
+            if (excess <= 0 && now - entry.getValue().getCreatedAt() <= DIGEST_TTL) {
+                break;
+            }
+
+            // closed first, so a payment added meanwhile goes to a fresh summary
+            entry.getValue().close();
+            this.pending.remove(entry.getKey(), entry.getValue());
+            excess--;
+        }
+    }
+
+    int getPendingCount() {
+        return this.pending.size();
+    }
+
+    private void send(Player owner, Mode mode, String message) {
+        switch (mode) {
+            case CHAT:
+                owner.sendMessage(message);
+                break;
+            case ACTION_BAR:
+                owner.spigot().sendMessage(ChatMessageType.ACTION_BAR, TextComponent.fromLegacyText(message));
+                break;
+            case NONE:
+                break;
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void sendDigest(PlayerJoinEvent event) {
+        if (this.pending.isEmpty()) {
+            return;
+        }
+
+        Player player = event.getPlayer();
+        Summary summary = this.pending.remove(player.getName().toLowerCase(Locale.ROOT));
+        if (summary != null) {
+            summary.close();
+            // always to the chat, action bar would be missed while joining
+            player.sendMessage(summary.renderDigest(this.messageRenderer, this.formatter));
+        }
+    }
+
+    /**
+     * Payments merged for a single owner. Once closed, it doesn't accept
+     * payments anymore, so none is lost while it is being flushed.
+     */
+    static class Summary {
+        private final long createdAt;
+        private final Set<String> payers = new HashSet<>();
+        private boolean morePayers;
+        private int payments;
+        private double total;
+        private boolean closed;
+
+        Summary(long createdAt) {
+            this.createdAt = createdAt;
+        }
+
+        long getCreatedAt() {
+            return this.createdAt;
+        }
+
+        synchronized boolean add(String payerName, double amount) {
+            if (this.closed) {
+                return false;
+            }
+
+            if (this.payers.size() < MAX_TRACKED_PAYERS) {
+                this.payers.add(payerName);
+            } else if (!this.payers.contains(payerName)) {
+                this.morePayers = true;
+            }
+
+            this.payments++;
+            this.total += amount;
+            return true;
+        }
+
+        synchronized void close() {
+            this.closed = true;
+        }
+
+        synchronized String render(MessageRenderer messageRenderer, DoubleFunction<String> formatter, long window) {
+            if (this.payments == 1) {
+                return messageRenderer.notification(this.payers.iterator().next(), formatter.apply(this.total));
+            }
+            return messageRenderer.notificationSummary(this.payers.size(), this.morePayers, this.payments, formatter.apply(this.total), window);
+        }
+
+        synchronized String renderDigest(MessageRenderer messageRenderer, DoubleFunction<String> formatter) {
+            return messageRenderer.notificationDigest(this.payers.size(), this.morePayers, this.payments, formatter.apply(this.total));
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks whether sign owners can be paid, off the main thread, and caches the
+ * results. A click on a sign of a known-invalid owner is rejected before any
+ * money is withdrawn, instead of withdrawing and refunding every time.
+ */
+public class OwnerValidator {
+    static final Logger logger = Logger.getLogger(OwnerValidator.class.getName());
+
+    private static final long VALID_TTL = TimeUnit.MINUTES.toNanos(30L);
+    private static final long INVALID_TTL = TimeUnit.MINUTES.toNanos(5L); // the account may be created meanwhile
+    static final int MAX_CACHE_SIZE = 10_000;
+
+    public enum Result {
+        VALID, INVALID, UNKNOWN
+    }
+
+    private final TaskScheduler scheduler;
+    private final Supplier<PaymentGateway> gateway;
+
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final Set<String> validating = ConcurrentHashMap.newKeySet();
+
+    public OwnerValidator(TaskScheduler scheduler, Supplier<PaymentGateway> gateway) {
+        this.scheduler = Objects.requireNonNull(scheduler, "scheduler");
+        this.gateway = Objects.requireNonNull(gateway, "gateway");
+    }
+
+    /**
+     * Returns the cached result immediately. If there is none, the owner is
+     * validated in the background for the next click.
+     */
+    public Result check(String ownerName) {
+        Objects.requireNonNull(ownerName, "ownerName");
+        Entry entry = this.cache.get(ownerName.toLowerCase(Locale.ROOT));
+        if (entry != null && !entry.isExpired(System.nanoTime())) {
+            return entry.result;
+        }
+
+        this.validate(ownerName, null);
+        return Result.UNKNOWN;
+    }
+
+    /**
+     * Validates the owner in the background.
+     * @param callback Called on the global thread with the result, or
+     *                 {@code null} to only cache it.
+     */
+    public void validate(String ownerName, Consumer<Result> callback) {
+        Objects.requireNonNull(ownerName, "ownerName");
+        String key = ownerName.toLowerCase(Locale.ROOT);
+        boolean first = this.validating.add(key);
+        if (!first && callback == null) {
+            return; // the running validation will cache the result
+        }
+
+        this.scheduler.runAsync(() -> {
+            Result result;
+            try {
+                result = this.lookup(ownerName);
+                if (!result.equals(Result.UNKNOWN)) {
+                    this.put(key, result);
+                }
+            } finally {
+                if (first) {
+                    this.validating.remove(key);
+                }
+            }
+
+            if (callback != null) {
+                this.scheduler.runGlobal(() -> callback.accept(result));
+            }
+        });
+    }
+
+    /**
+     * Forgets the cached result and validates the owner again in the
+     * background, eg. after a failed deposit. The owner is only considered
+     * invalid once the economy confirms it has no account for them.
+     */
+    public void revalidate(String ownerName) {
+        Objects.requireNonNull(ownerName, "ownerName");
+        this.cache.remove(ownerName.toLowerCase(Locale.ROOT));
+        this.validate(ownerName, null);
+    }
+
+    int getCacheSize() {
+        return this.cache.size();
+    }
+
+    void put(String key, Result result) {
+        if (this.cache.size() >= MAX_CACHE_SIZE) {
+            this.evict();
+        }
+        this.cache.put(key, new Entry(result, System.nanoTime()));
+    }
+
+    /**
+     * Removes expired entries, and the oldest ones if that isn't enough to
+     * make room for a quarter of the cache.
+     */
+    private synchronized void evict() {
+        long now = System.nanoTime();
+        this.cache.values().removeIf(entry -> entry.isExpired(now));
+
+        int excess = this.cache.size() - MAX_CACHE_SIZE * 3 / 4;
+        if (excess <= 0) {
+            return;
+        }
+
+        long[] createdAt = this.cache.values().stream().mapToLong(entry -> entry.createdAt).sorted().toArray();
+        long threshold = createdAt[Math.min(excess, createdAt.length) - 1];
+        this.cache.values().removeIf(entry -> entry.createdAt <= threshold);
+    }
+
+    private Result lookup(String ownerName) {
+        PaymentGateway gateway = this.gateway.get();
+        if (gateway == null) {
+            return Result.UNKNOWN;
+        }
+
+        try {
+            return gateway.hasAccount(ownerName) ? Result.VALID : Result.INVALID;
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Could not validate owner " + ownerName + ".", e);
+            return Result.UNKNOWN;
+        }
+    }
+
+    static class Entry {
+        final Result result;
+        final long createdAt;
+
+        Entry(Result result, long createdAt) {
+            this.result = Objects.requireNonNull(result, "result");
+            this.createdAt = createdAt;
+        }
+
+        boolean isExpired(long now) {
+            return now - this.createdAt > (this.result.equals(Result.VALID) ? VALID_TTL : INVALID_TTL);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prepaid pass for a single {@link PaySign}, valid either for a number of uses
+ * or until the given point in time.
+ */
+public final class Pass {
+    private final int remainingUses; // 0 for time-limited passes
+    private final long expiresAt; // epoch millis, 0 for use-limited passes
+
+    public Pass(int remainingUses, long expiresAt) {
+        Preconditions.checkArgument(remainingUses >= 0, "remainingUses cannot be negative");
+        Preconditions.checkArgument(expiresAt >= 0, "expiresAt cannot be negative");
+        this.remainingUses = remainingUses;
+        this.expiresAt = expiresAt;
+    }
+
+    public int getRemainingUses() {
+        return this.remainingUses;
+    }
+
+    public long getExpiresAt() {
+        return this.expiresAt;
+    }
+
+    public boolean isTimeLimited() {
+        return this.expiresAt != 0;
+    }
+
+    public boolean isValid(long now) {
+        return this.isTimeLimited() ? this.expiresAt > now : this.remainingUses > 0;
+    }
+
+    /**
+     * Uses the pass once.
+     * @return The pass state after this use.
+     */
+    public Pass use() {
+        Preconditions.checkState(this.isTimeLimited() || this.remainingUses > 0, "Pass has been used up");
+        return this.isTimeLimited() ? this : new Pass(this.remainingUses - 1, 0L);
+    }
+
+    /**
+     * What is sold by a {@link PaySign}.
+     */
+    public static final class Offer {
+        public enum Kind {
+            USES('x'), MINUTES('m');
+
+            private final char suffix;
+
+            Kind(char suffix) {
+                this.suffix = suffix;
+            }
+
+            public char getSuffix() {
+                return this.suffix;
+            }
+        }
+
+        private final Kind kind;
+        private final int amount;
+
+        public Offer(Kind kind, int amount) {
+            Preconditions.checkArgument(amount > 0, "amount must be positive");
+            this.kind = Objects.requireNonNull(kind, "kind");
+            this.amount = amount;
+        }
+
+        public Kind getKind() {
+            return this.kind;
+        }
+
+        public int getAmount() {
+            return this.amount;
+        }
+
+        /**
+         * Creates a pass for a player who has just paid for this offer. The
+         * click which bought the pass counts as its first use.
+         */
+        public Pass purchase(long now) {
+            switch (this.kind) {
+                case USES:
+                    return new Pass(this.amount - 1, 0L);
+                case MINUTES:
+                    return new Pass(0, now + TimeUnit.MINUTES.toMillis(this.amount));
+                default:
+                    throw new IllegalStateException("Unknown pass kind: " + this.kind);
+            }
+        }
+    }
+}
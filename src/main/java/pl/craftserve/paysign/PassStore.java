@@ -0,0 +1,379 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerLoginEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps prepaid {@link Pass}es of online players in memory. Passes are loaded
+ * before the player joins and written back to per-player files off the main
+ * thread, so redeeming a pass never touches the disk nor the economy. All file
+ * access goes through a single I/O thread, so a save queued on quit is always
+ * finished before the next load of the same player.
+ */
+public class PassStore implements Listener {
+    static final Logger logger = Logger.getLogger(PassStore.class.getName());
+
+    private static final int FORMAT_VERSION = 1;
+    private static final String FILE_EXTENSION = ".dat";
+    private static final long SAVE_INTERVAL = 60L; // seconds
+
+    private final Plugin plugin;
+    private final PluginManager pluginManager;
+    private final Path directory;
+
+    private final Map<UUID, PlayerPasses> players = new ConcurrentHashMap<>();
+    private ScheduledExecutorService ioExecutor;
+
+    public PassStore(Plugin plugin, PluginManager pluginManager, Path directory) {
+        this.plugin = Objects.requireNonNull(plugin, "plugin");
+        this.pluginManager = Objects.requireNonNull(pluginManager, "pluginManager");
+        this.directory = Objects.requireNonNull(directory, "directory");
+    }
+
+    public void enable() {
+        try {
+            Files.createDirectories(this.directory);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not create passes directory.", e);
+        }
+
+        this.ioExecutor = IoExecutors.create(this.plugin.getName() + " Passes I/O");
+        this.ioExecutor.scheduleWithFixedDelay(this::saveDirty, SAVE_INTERVAL, SAVE_INTERVAL, TimeUnit.SECONDS);
+        this.pluginManager.registerEvents(this, this.plugin);
+
+        // Players who are already online (eg. after a reload) won't fire AsyncPlayerPreLoginEvent.
+        // Until their passes are loaded they pay for every click and can't buy new passes.
+        for (Player player : this.plugin.getServer().getOnlinePlayers()) {
+            UUID playerId = player.getUniqueId();
+            this.ioExecutor.execute(() -> this.load(playerId));
+        }
+    }
+
+    public void disable() {
+        HandlerList.unregisterAll(this);
+        if (this.ioExecutor != null) {
+            IoExecutors.shutdown(this.ioExecutor, "passes to be saved");
+            this.ioExecutor = null;
+        }
+
+        this.saveDirty();
+        this.players.clear();
+    }
+
+    /**
+     * Uses the player's pass for the given sign, if there is any valid.
+     * @return The pass state after this use.
+     */
+    public Optional<Pass> redeem(UUID playerId, BlockKey sign) {
+        Objects.requireNonNull(playerId, "playerId");
+        Objects.requireNonNull(sign, "sign");
+
+        PlayerPasses passes = this.players.get(playerId);
+        return passes == null ? Optional.empty() : passes.redeem(sign, System.currentTimeMillis());
+    }
+
+    /**
+     * @return Whether loading passes of the player has finished. If it has
+     * failed, the player pays for every click until they join again.
+     */
+    public boolean isLoaded(UUID playerId) {
+        Objects.requireNonNull(playerId, "playerId");
+        return this.players.containsKey(playerId);
+    }
+
+    /**
+     * Gives the player a freshly purchased pass for the given sign.
+     * @return The pass state after the purchasing use, empty if it has been
+     * used up by it already, or if passes of the player are not loaded or
+     * have failed to load.
+     */
+    public Optional<Pass> purchase(UUID playerId, BlockKey sign, Pass.Offer offer) {
+        Objects.requireNonNull(playerId, "playerId");
+        Objects.requireNonNull(sign, "sign");
+        Objects.requireNonNull(offer, "offer");
+
+        long now = System.currentTimeMillis();
+        Pass pass = offer.purchase(now);
+        if (!pass.isValid(now)) {
+            return Optional.empty();
+        }
+
+        // Never create the entry here, it would overwrite passes which failed to load on the next save.
+        PlayerPasses passes = this.players.get(playerId);
+        if (passes == null || passes.isFailed()) {
+            return Optional.empty();
+        }
+
+        passes.put(sign, pass);
+        return Optional.of(pass);
+    }
+
+    private Path getFile(UUID playerId) {
+        return this.directory.resolve(playerId.toString() + FILE_EXTENSION);
+    }
+
+    /**
+     * Loads passes of a joining player, unless another session of the same
+     * player has them in memory already. Must be called on the I/O thread.
+     */
+    void load(UUID playerId) {
+        if (this.players.computeIfPresent(playerId, (id, passes) -> passes.join()) != null) {
+            return; // in memory passes are newer than the file
+        }
+
+        Path file = this.getFile(playerId);
+        PlayerPasses loaded = new PlayerPasses();
+
+        if (Files.exists(file)) {
+            try (InputStream stream = Files.newInputStream(file)) {
+                loaded.read(new DataInputStream(stream), System.currentTimeMillis());
+            } catch (IOException e) {
+                // loaded as failed, so clicks don't wait for it and the file is not overwritten by a partial state
+                logger.log(Level.SEVERE, "Could not load passes of " + playerId + ", they can't be used nor bought"
+                        + " until the player joins again.", e);
+                loaded = PlayerPasses.failed();
+            }
+        }
+
+        this.players.merge(playerId, loaded, (passes, ignored) -> passes.join());
+    }
+
+    /**
+     * Releases passes of a session which has ended, and saves them once no
+     * other session of the player uses them.
+     */
+    void release(UUID playerId) {
+        PlayerPasses[] released = {null};
+        this.players.computeIfPresent(playerId, (id, passes) -> {
+            if (passes.leave()) {
+                return passes;
+            }
+            released[0] = passes;
+            return null;
+        });
+
+        PlayerPasses passes = released[0];
+        if (passes != null && passes.isDirty()) {
+            this.ioExecutor.execute(() -> this.save(playerId, passes));
+        }
+    }
+
+    void save(UUID playerId, PlayerPasses passes) {
+        byte[] data = passes.snapshot(System.currentTimeMillis());
+        Path file = this.getFile(playerId);
+
+        try {
+            if (data == null) {
+                Files.deleteIfExists(file);
+                return;
+            }
+
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            try (OutputStream stream = Files.newOutputStream(temporary)) {
+                stream.write(data);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not save passes of " + playerId + ".", e);
+        }
+    }
+
+    private void saveDirty() {
+        this.players.forEach((playerId, passes) -> {
+            if (passes.isDirty()) {
+                this.save(playerId, passes);
+            }
+        });
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void loadPasses(AsyncPlayerPreLoginEvent event) {
+        if (!event.getLoginResult().equals(AsyncPlayerPreLoginEvent.Result.ALLOWED)) {
+            return;
+        }
+
+        UUID playerId = event.getUniqueId();
+        try {
+            // We are on the login thread already, so it's fine to wait for the I/O thread.
+            this.ioExecutor.submit(() -> this.load(playerId)).get();
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Could not load passes of " + playerId + ".", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void releaseDenied(PlayerLoginEvent event) {
+        if (!event.getResult().equals(PlayerLoginEvent.Result.ALLOWED)) {
+            this.release(event.getPlayer().getUniqueId()); // no quit will follow
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void unloadPasses(PlayerQuitEvent event) {
+        this.release(event.getPlayer().getUniqueId());
+    }
+
+    /**
+     * Passes of a single player. Guarded by its own monitor, because they are
+     * modified on the main thread and serialized by the asynchronous saver.
+     */
+    static class PlayerPasses {
+        private final Map<BlockKey, Pass> passes = new HashMap<>();
+        private boolean failed; // never saved, so the file which failed to load is kept
+        private boolean dirty;
+        private int sessions = 1; // a duplicate login joins before the old session quits
+
+        static PlayerPasses failed() {
+            PlayerPasses passes = new PlayerPasses();
+            passes.failed = true;
+            return passes;
+        }
+
+        synchronized boolean isFailed() {
+            return this.failed;
+        }
+
+        synchronized PlayerPasses join() {
+            this.sessions++;
+            return this;
+        }
+
+        /**
+         * @return Whether another session still uses these passes.
+         */
+        synchronized boolean leave() {
+            return --this.sessions > 0;
+        }
+
+        synchronized Optional<Pass> redeem(BlockKey sign, long now) {
+            Pass pass = this.passes.get(sign);
+            if (pass == null) {
+                return Optional.empty();
+            }
+
+            if (!pass.isValid(now)) {
+                this.passes.remove(sign);
+                this.dirty = true;
+                return Optional.empty();
+            }
+
+            Pass used = pass.use();
+            if (used != pass) {
+                if (used.isValid(now)) {
+                    this.passes.put(sign, used);
+                } else {
+                    this.passes.remove(sign);
+                }
+                this.dirty = true;
+            }
+            return Optional.of(used);
+        }
+
+        synchronized void put(BlockKey sign, Pass pass) {
+            this.passes.put(sign, pass);
+            this.dirty = true;
+        }
+
+        synchronized boolean isDirty() {
+            return this.dirty && !this.failed;
+        }
+
+        synchronized void read(DataInputStream input, long now) throws IOException {
+            int version = input.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported passes format version: " + version);
+            }
+
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                BlockKey sign = BlockKey.read(input);
+                Pass pass = new Pass(input.readInt(), input.readLong());
+                if (pass.isValid(now)) {
+                    this.passes.put(sign, pass);
+                }
+            }
+        }
+
+        /**
+         * Serializes valid passes and marks them as saved.
+         * @return Serialized passes, or {@code null} if there is nothing to save.
+         */
+        synchronized byte[] snapshot(long now) {
+            this.dirty = false;
+
+            Iterator<Pass> iterator = this.passes.values().iterator();
+            while (iterator.hasNext()) {
+                if (!iterator.next().isValid(now)) {
+                    iterator.remove();
+                }
+            }
+
+            if (this.passes.isEmpty()) {
+                return null;
+            }
+
+            // ~36 bytes per entry
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + this.passes.size() * 36);
+            try (DataOutputStream output = new DataOutputStream(bytes)) {
+                output.writeInt(FORMAT_VERSION);
+                output.writeInt(this.passes.size());
+                for (Map.Entry<BlockKey, Pass> entry : this.passes.entrySet()) {
+                    entry.getKey().write(output);
+                    output.writeInt(entry.getValue().getRemainingUses());
+                    output.writeLong(entry.getValue().getExpiresAt());
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not serialize passes.", e);
+            }
+            return bytes.toByteArray();
+        }
+    }
+}
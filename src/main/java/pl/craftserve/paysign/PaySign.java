@@ -16,8 +16,6 @@
 
 package pl.craftserve.paysign;
 
-import net.milkbowl.vault.economy.Economy;
-import net.milkbowl.vault.economy.EconomyResponse;
 import org.bukkit.ChatColor;
 import org.bukkit.Material;
 import org.bukkit.Server;
@@ -32,6 +30,7 @@ import org.bukkit.entity.Player;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.OptionalInt;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -46,13 +45,20 @@ public class PaySign {
     private final Sign sign;
     private final String playerName;
     private final double price;
-    private final int delay;
+    private final OptionalInt delay;
+    private final Optional<Pass.Offer> passOffer;
 
     public PaySign(Sign sign, String playerName, double price, int delay) {
+        this(sign, playerName, price, delay, null);
+    }
+
+    public PaySign(Sign sign, String playerName, double price, int delay, Pass.Offer passOffer) {
         this.sign = Objects.requireNonNull(sign, "sign");
         this.playerName = Objects.requireNonNull(playerName, "playerName");
         this.price = price;
-        this.delay = delay;
+        // created once, the getters are called on every click
+        this.delay = delay > 0 ? OptionalInt.of(delay) : OptionalInt.empty();
+        this.passOffer = Optional.ofNullable(passOffer);
     }
 
     public Sign getSign() {
@@ -77,13 +83,21 @@ public class PaySign {
     }
 
     public OptionalInt getDelay() {
-        return this.delay > 0 ? OptionalInt.of(this.delay) : OptionalInt.empty();
+        return this.delay;
+    }
+
+    public Optional<Pass.Offer> getPassOffer() {
+        return this.passOffer;
     }
 
-    public boolean pay(Player player, MessageRenderer messageRenderer, Economy economy, boolean allowDecimals) {
+    public boolean pay(Player player, MessageRenderer messageRenderer, PaymentGateway gateway, boolean allowDecimals,
+                       LoadMonitor loadMonitor, NotificationBuffer notifications, OwnerValidator ownerValidator) {
         Objects.requireNonNull(player, "player");
         Objects.requireNonNull(messageRenderer, "messageRenderer");
-        Objects.requireNonNull(economy, "economy");
+        Objects.requireNonNull(gateway, "gateway");
+        Objects.requireNonNull(loadMonitor, "loadMonitor");
+        Objects.requireNonNull(notifications, "notifications");
+        Objects.requireNonNull(ownerValidator, "ownerValidator");
 
         String worldName = player.getWorld().getName();
         double price = this.getPrice(allowDecimals);
@@ -92,35 +106,46 @@ public class PaySign {
             // sign free of charge
             logger.finer("The sign is free of charge.");
             return true;
-        } else if (!economy.has(player, worldName, price)) {
-            // price cannot be negative
-            logger.fine("The player is too poor to use this sign.");
-            player.sendMessage(messageRenderer.tooPoor());
-            return false;
         }
 
-        EconomyResponse withdraw = economy.withdrawPlayer(player, worldName, price);
-        if (!withdraw.transactionSuccess()) {
-            logger.fine("Could not withdraw player.");
-            player.sendMessage(messageRenderer.error(withdraw.errorMessage));
+        if (ownerValidator.check(this.playerName).equals(OwnerValidator.Result.INVALID)) {
+            logger.fine("The sign owner is known to be invalid.");
+            player.sendMessage(messageRenderer.cantDeposit());
             return false;
         }
 
-        EconomyResponse deposit = economy.depositPlayer(this.playerName, worldName, price);
-        if (!deposit.transactionSuccess()) {
-            logger.warning("Could not deposit " + this.playerName + " player for sign at " + this.sign.getLocation());
-            economy.depositPlayer(player, worldName, price);
-            player.sendMessage(messageRenderer.cantDeposit());
-            return false;
+        // price cannot be negative
+        TransferResult transfer = gateway.transfer(player, this.playerName, worldName, price);
+        switch (transfer.getStatus()) {
+            case SUCCESS:
+                break;
+            case INSUFFICIENT_FUNDS:
+                logger.fine("The player is too poor to use this sign.");
+                player.sendMessage(messageRenderer.tooPoor());
+                return false;
+            case WITHDRAW_FAILED:
+                logger.fine("Could not withdraw player.");
+                player.sendMessage(messageRenderer.error(transfer.getErrorMessage().orElse("Could not withdraw your account.")));
+                return false;
+            case DEPOSIT_FAILED:
+                logger.warning("Could not deposit " + this.playerName + " player for sign at " + this.sign.getLocation());
+                ownerValidator.revalidate(this.playerName); // a deposit may fail for other reasons too
+                player.sendMessage(messageRenderer.cantDeposit());
+                return false;
+            case UNAVAILABLE:
+                logger.fine("The economy is unavailable.");
+                player.sendMessage(messageRenderer.economyUnavailable());
+                return false;
         }
 
-        String formattedPrice = economy.format(withdraw.amount);
+        String formattedPrice = gateway.format(transfer.getAmount());
         player.sendMessage(messageRenderer.paid(formattedPrice, this.playerName));
-        logger.info(player.getName() + " has paid " + formattedPrice + " for using " + this.playerName + "'s mechanism.");
-
-        this.getOwner(player.getServer()).ifPresent(owner -> {
-            owner.sendMessage(messageRenderer.notification(player.getName(), formattedPrice));
-        });
+        if (logger.isLoggable(Level.INFO)) {
+            loadMonitor.log(logger, Level.INFO, player.getName() + " has paid " + formattedPrice + " for using " + this.playerName + "'s mechanism.");
+        }
+        if (!transfer.isForwarded()) {
+            notifications.add(this.playerName, player.getName(), transfer.getAmount());
+        }
         return true;
     }
 
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.ChatColor;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.TabExecutor;
+import org.bukkit.util.StringUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * The /paysign administration command.
+ */
+public class PaySignCommand implements TabExecutor {
+    private static final List<String> SUBCOMMANDS = Collections.unmodifiableList(Arrays.asList("bulk", "export", "ledger", "slow", "stats"));
+    private static final List<String> BULK_SUBCOMMANDS = Collections.unmodifiableList(Arrays.asList("cancel", "disable", "reprice", "status", "transfer"));
+    private static final List<String> EXPORT_FORMATS = Collections.unmodifiableList(Arrays.asList("csv", "ndjson"));
+    private static final int MAX_PLAYER_NAME_LENGTH = 16;
+    private static final int MAX_STACK_FRAMES = 20;
+
+    private final PerformanceStats stats;
+    private final ClickWatchdog watchdog;
+    private final BulkEngine bulkEngine;
+    private final PaymentHistory history;
+    private final TaskScheduler scheduler;
+    private final Configuration configuration;
+    private final OwnerValidator ownerValidator;
+    private final Supplier<PaymentGateway> gateway;
+
+    /**
+     * @param history {@code null} if the payment history is disabled.
+     */
+    public PaySignCommand(PerformanceStats stats, ClickWatchdog watchdog, BulkEngine bulkEngine, PaymentHistory history,
+                          TaskScheduler scheduler, Configuration configuration, OwnerValidator ownerValidator,
+                          Supplier<PaymentGateway> gateway) {
+        this.stats = Objects.requireNonNull(stats, "stats");
+        this.watchdog = Objects.requireNonNull(watchdog, "watchdog");
+        this.bulkEngine = Objects.requireNonNull(bulkEngine, "bulkEngine");
+        this.history = history;
+        this.scheduler = Objects.requireNonNull(scheduler, "scheduler");
+        this.configuration = Objects.requireNonNull(configuration, "configuration");
+        this.ownerValidator = Objects.requireNonNull(ownerValidator, "ownerValidator");
+        this.gateway = Objects.requireNonNull(gateway, "gateway");
+    }
+
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (args.length == 0) {
+            return false;
+        }
+
+        switch (args[0].toLowerCase(Locale.ROOT)) {
+            case "bulk":
+                return this.bulk(sender, args);
+            case "export":
+                return this.export(sender, args);
+            case "ledger":
+                return this.ledger(sender, args);
+            case "slow":
+                return this.slow(sender, args);
+            case "stats":
+                return this.stats(sender, args);
+            default:
+                return false;
+        }
+    }
+
+    private boolean bulk(CommandSender sender, String[] args) {
+        String usage = ChatColor.RED + "Usage: /paysign bulk <reprice <owner> <price>|transfer <owner> <new owner>|disable <owner>|status|cancel>";
+        if (args.length < 2) {
+            sender.sendMessage(usage);
+            return true;
+        }
+
+        switch (args[1].toLowerCase(Locale.ROOT)) {
+            case "status":
+                Optional<BulkJob> running = this.bulkEngine.getJob();
+                if (running.isPresent()) {
+                    BulkJob job = running.get();
+                    sender.sendMessage(ChatColor.GOLD + "Bulk job " + job.describe() + ": " + ChatColor.GRAY + job.getDone() + "/" +
+                            job.getTargets().size() + " signs done (" + job.getChanged() + " changed, " + job.getSkipped() + " skipped).");
+                } else {
+                    sender.sendMessage(ChatColor.GRAY + "No bulk job is running.");
+                }
+                return true;
+            case "cancel":
+                Optional<BulkJob> cancelled = this.bulkEngine.cancel();
+                sender.sendMessage(cancelled.isPresent()
+                        ? ChatColor.GREEN + "Bulk job " + cancelled.get().describe() + " has been cancelled, " + cancelled.get().getChanged() + " signs were changed."
+                        : ChatColor.GRAY + "No bulk job is running.");
+                return true;
+            case "reprice":
+                if (args.length != 4) {
+                    sender.sendMessage(usage);
+                    return true;
+                }
+
+                double price;
+                try {
+                    price = Double.parseDouble(args[3]);
+                } catch (NumberFormatException e) {
+                    sender.sendMessage(ChatColor.RED + "Price is not a number.");
+                    return true;
+                }
+
+                if (!Double.isFinite(price) || Double.compare(price, 0) < 0) {
+                    sender.sendMessage(ChatColor.RED + "Price cannot be negative.");
+                    return true;
+                }
+
+                if (!this.configuration.allowDecimals() && price != (int) price) {
+                    sender.sendMessage(ChatColor.RED + "Decimal prices aren't allowed on this server.");
+                    return true;
+                }
+                return this.startBulk(sender, BulkJob.Operation.REPRICE, args[2], args[3]);
+            case "transfer":
+                if (args.length != 4) {
+                    sender.sendMessage(usage);
+                    return true;
+                }
+
+                if (args[3].length() > MAX_PLAYER_NAME_LENGTH) {
+                    sender.sendMessage(ChatColor.RED + "Player name is too long.");
+                    return true;
+                }
+
+                // the account lookup may block, so the job is started afterwards
+                String ownerName = args[2];
+                String newOwnerName = args[3];
+                sender.sendMessage(ChatColor.GRAY + "Checking whether " + newOwnerName + " can receive payments...");
+                this.ownerValidator.validate(newOwnerName, result -> {
+                    switch (result) {
+                        case VALID:
+                            this.startBulk(sender, BulkJob.Operation.TRANSFER, ownerName, newOwnerName);
+                            break;
+                        case INVALID:
+                            sender.sendMessage(ChatColor.RED + newOwnerName + " can't receive payments, the signs were not transferred.");
+                            break;
+                        case UNKNOWN:
+                            sender.sendMessage(ChatColor.RED + "Could not check whether " + newOwnerName + " can receive payments, try again later.");
+                            break;
+                    }
+                });
+                return true;
+            case "disable":
+                if (args.length != 3) {
+                    sender.sendMessage(usage);
+                    return true;
+                }
+                return this.startBulk(sender, BulkJob.Operation.DISABLE, args[2], "");
+            default:
+                sender.sendMessage(usage);
+                return true;
+        }
+    }
+
+    private boolean startBulk(CommandSender sender, BulkJob.Operation operation, String ownerName, String argument) {
+        Optional<BulkJob> job = this.bulkEngine.start(operation, ownerName, argument, sender.getName());
+        if (!job.isPresent()) {
+            sender.sendMessage(ChatColor.RED + "Another bulk job is running, see /paysign bulk status.");
+            return true;
+        }
+
+        sender.sendMessage(ChatColor.GREEN + "Bulk job " + job.get().describe() + " has been started on " +
+                job.get().getTargets().size() + " signs.");
+        sender.sendMessage(ChatColor.GRAY + "Signs created before the sign index existed are only included once their chunk has been loaded.");
+        return true;
+    }
+
+    private boolean export(CommandSender sender, String[] args) {
+        if (args.length > 2 || (args.length == 2 && !EXPORT_FORMATS.contains(args[1].toLowerCase(Locale.ROOT)))) {
+            sender.sendMessage(ChatColor.RED + "Usage: /paysign export [csv|ndjson]");
+            return true;
+        }
+
+        if (this.history == null) {
+            sender.sendMessage(ChatColor.RED + "The payment history is not enabled.");
+            return true;
+        }
+
+        PaymentHistory.Format format = args.length == 2
+                ? PaymentHistory.Format.parse(args[1])
+                : this.configuration.historyExportFormat();
+        boolean started = this.history.export(format, summary -> this.scheduler.runGlobal(() -> sender.sendMessage(ChatColor.GOLD + summary)));
+        sender.sendMessage(started
+                ? ChatColor.GRAY + "Exporting signs and new payments in the background..."
+                : ChatColor.RED + "Another export is running.");
+        return true;
+    }
+
+    private boolean ledger(CommandSender sender, String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            sender.sendMessage(ChatColor.RED + "Usage: /paysign ledger <player> [balance]");
+            return true;
+        }
+
+        PaymentGateway gateway = this.gateway.get();
+        if (!(gateway instanceof LedgerPaymentGateway)) {
+            sender.sendMessage(ChatColor.RED + "The built-in ledger is not enabled.");
+            return true;
+        }
+        LedgerPaymentGateway ledgerGateway = (LedgerPaymentGateway) gateway;
+
+        double newBalance = -1D;
+        if (args.length == 3) {
+            try {
+                newBalance = Double.parseDouble(args[2]);
+            } catch (NumberFormatException e) {
+                sender.sendMessage(ChatColor.RED + "Balance is not a number.");
+                return true;
+            }
+
+            if (!Double.isFinite(newBalance) || Double.compare(newBalance, 0) < 0) {
+                sender.sendMessage(ChatColor.RED + "Balance cannot be negative.");
+                return true;
+            }
+        }
+
+        // resolving an offline player may block
+        String playerName = args[1];
+        double setBalance = newBalance;
+        this.scheduler.runAsync(() -> {
+            Optional<UUID> account = ledgerGateway.resolve(playerName);
+            String message;
+            if (!account.isPresent()) {
+                message = ChatColor.RED + "Unknown player " + playerName + ".";
+            } else {
+                if (setBalance >= 0D) {
+                    ledgerGateway.getLedger().setBalance(account.get(), setBalance);
+                }
+
+                double balance = ledgerGateway.getLedger().getBalance(account.get());
+                message = ChatColor.GOLD + playerName + "'s balance: " + ChatColor.GRAY + ledgerGateway.format(balance);
+            }
+            this.scheduler.runGlobal(() -> sender.sendMessage(message));
+        });
+        return true;
+    }
+
+    private boolean slow(CommandSender sender, String[] args) {
+        if (args.length > 1 && args[1].equalsIgnoreCase("clear")) {
+            this.watchdog.clear();
+            sender.sendMessage(ChatColor.GREEN + "Slow events have been cleared.");
+            return true;
+        }
+
+        List<ClickWatchdog.SlowEvent> events = this.watchdog.getEvents();
+        if (events.isEmpty()) {
+            sender.sendMessage(ChatColor.GREEN + "No slow clicks have been recorded.");
+            return true;
+        }
+
+        if (args.length > 1) {
+            int index;
+            try {
+                index = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                sender.sendMessage(ChatColor.RED + "Usage: /paysign slow [number|clear]");
+                return true;
+            }
+
+            if (index < 1 || index > events.size()) {
+                sender.sendMessage(ChatColor.RED + "There are " + events.size() + " slow events.");
+                return true;
+            }
+            this.sendSlowEvent(sender, index, events.get(events.size() - index), true);
+            return true;
+        }
+
+        sender.sendMessage(ChatColor.GOLD + "Slow events (most recent first, /paysign slow <number> for details):");
+        for (int i = 1; i <= events.size(); i++) {
+            this.sendSlowEvent(sender, i, events.get(events.size() - i), false);
+        }
+        return true;
+    }
+
+    private void sendSlowEvent(CommandSender sender, int index, ClickWatchdog.SlowEvent event, boolean details) {
+        long secondsAgo = (System.currentTimeMillis() - event.getTime()) / 1000L;
+
+        sender.sendMessage(ChatColor.GOLD + "#" + index + " " + ChatColor.GRAY + event.getPhase().name().toLowerCase(Locale.ROOT) +
+                " took " + ClickWatchdog.millis(event.getTotalNanos()) + ", " + secondsAgo + "s ago at " + event.getLocation());
+        sender.sendMessage(ChatColor.GRAY + "   " + event.renderStages());
+        if (!details) {
+            return;
+        }
+
+        sender.sendMessage(ChatColor.GRAY + "   Owner: " + event.getOwnerName() + ", player: " + event.getPlayerName() +
+                ", economy: " + event.getProviderName());
+
+        StackTraceElement[] stack = event.getStack();
+        if (stack == null) {
+            sender.sendMessage(ChatColor.GRAY + "   No stack sample, see watchdog.stack-samples in the config.");
+            return;
+        }
+
+        for (int i = 0; i < Math.min(stack.length, MAX_STACK_FRAMES); i++) {
+            sender.sendMessage(ChatColor.GRAY + "   at " + stack[i]);
+        }
+        if (stack.length > MAX_STACK_FRAMES) {
+            sender.sendMessage(ChatColor.GRAY + "   ... " + (stack.length - MAX_STACK_FRAMES) + " more");
+        }
+    }
+
+    private boolean stats(CommandSender sender, String[] args) {
+        if (args.length > 1 && args[1].equalsIgnoreCase("reset")) {
+            this.stats.reset();
+            sender.sendMessage(ChatColor.GREEN + "Statistics have been reset.");
+            return true;
+        }
+
+        sender.sendMessage(ChatColor.GOLD + "PaySign statistics:");
+        for (String line : this.stats.render()) {
+            sender.sendMessage(ChatColor.GRAY + " - " + line);
+        }
+        return true;
+    }
+
+    @Override
+    public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
+        if (args.length == 1) {
+            return StringUtil.copyPartialMatches(args[0], SUBCOMMANDS, new ArrayList<>());
+        } else if (args.length == 2 && args[0].equalsIgnoreCase("stats")) {
+            return StringUtil.copyPartialMatches(args[1], Collections.singletonList("reset"), new ArrayList<>());
+        } else if (args.length == 2 && args[0].equalsIgnoreCase("bulk")) {
+            return StringUtil.copyPartialMatches(args[1], BULK_SUBCOMMANDS, new ArrayList<>());
+        } else if (args.length == 2 && args[0].equalsIgnoreCase("export")) {
+            return StringUtil.copyPartialMatches(args[1], EXPORT_FORMATS, new ArrayList<>());
+        } else if (args.length == 2 && args[0].equalsIgnoreCase("slow")) {
+            return StringUtil.copyPartialMatches(args[1], Collections.singletonList("clear"), new ArrayList<>());
+        }
+        return Collections.emptyList();
+    }
+}
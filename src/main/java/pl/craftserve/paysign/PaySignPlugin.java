@@ -23,7 +23,7 @@ import org.bukkit.Tag;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockState;
 import org.bukkit.block.Sign;
-import org.bukkit.block.data.type.Switch;
+import org.bukkit.command.PluginCommand;
 import org.bukkit.entity.Player;
 import org.bukkit.event.Event;
 import org.bukkit.event.EventHandler;
@@ -32,16 +32,20 @@ import org.bukkit.event.Listener;
 import org.bukkit.event.block.Action;
 import org.bukkit.event.block.SignChangeEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.PluginManager;
 import org.bukkit.plugin.RegisteredServiceProvider;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.plugin.java.JavaPluginLoader;
 import pl.craftserve.metrics.pluginmetricslite.MetricsLite;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -54,15 +58,43 @@ public final class PaySignPlugin extends JavaPlugin implements Listener {
     private static final String PERMISSION_CREATE_OTHER = PERMISSION_CREATE + ".other";
     private static final String PERMISSION_USE = "craftservepaysign.use";
 
-    private final Deque<Trigger> activeTriggers = new ArrayDeque<>(512);
-
     private Configuration configuration;
     private MessageRenderer messageRenderer;
     private SignDataParser signDataParser;
-    private Economy economy;
-
+    private TaskScheduler scheduler;
+    private volatile PaymentGateway gateway;
+    private Ledger ledger;
+
+    private final PerformanceStats stats = new PerformanceStats();
+    private LoadMonitor loadMonitor;
+    private TaskScheduler.Task statsTask;
+    private ClickWatchdog watchdog;
+
+    private TriggerRegistry triggerRegistry;
+    private TriggerJournal triggerJournal;
+    private PassStore passStore;
+    private SignIndex signIndex;
+    private PaymentHistory history;
+    private BulkEngine bulkEngine;
+    private NotificationBuffer notifications;
+    private OwnerValidator ownerValidator;
+    private PayoutBus payoutBus;
     private LogBlockHook logBlockHook;
     private CraftserveListener craftserveListener;
+    private final boolean standalone;
+
+    public PaySignPlugin() {
+        this.standalone = false;
+    }
+
+    /**
+     * Creates the plugin outside of a server, eg. in the load simulator.
+     * Such plugin doesn't send metrics.
+     */
+    PaySignPlugin(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder, File file) {
+        super(loader, description, dataFolder, file);
+        this.standalone = true;
+    }
 
     @Override
     public void onEnable() {
@@ -70,7 +102,6 @@ public final class PaySignPlugin extends JavaPlugin implements Listener {
 
         Server server = this.getServer();
         PluginManager pluginManager = server.getPluginManager();
-        BukkitScheduler scheduler = server.getScheduler();
 
         this.configuration = new Configuration(this::getConfig);
         this.messageRenderer = new MessageRenderer() {
@@ -80,51 +111,247 @@ public final class PaySignPlugin extends JavaPlugin implements Listener {
             }
         };
         this.signDataParser = new SignDataParser();
+        this.scheduler = TaskScheduler.create(this);
+        logger.fine("Using " + this.scheduler.getClass().getSimpleName() + " for scheduling tasks.");
+
+        if (this.configuration.paymentGateway().equalsIgnoreCase("ledger")) {
+            if (!this.enableLedger()) {
+                return;
+            }
+        } else {
+            this.scheduler.runGlobal(this::resolveEconomy);
+        }
 
         pluginManager.registerEvents(this, this);
+        this.loadMonitor = new LoadMonitor(this.configuration, this.stats);
+        this.statsTask = this.scheduler.runGlobalTimer(() -> {
+            this.stats.tick();
+            this.loadMonitor.tick();
+        }, 1L, 1L);
+
+        this.watchdog = new ClickWatchdog(this, this.configuration, () -> this.gateway);
+        this.watchdog.enable();
+
+        this.passStore = new PassStore(this, pluginManager, this.getDataFolder().toPath().resolve("passes"));
+        this.passStore.enable();
+
+        this.signIndex = new SignIndex(this, pluginManager, this.scheduler, this.signDataParser,
+                this.getDataFolder().toPath().resolve("signs.dat"));
+        this.signIndex.enable();
+
+        if (this.configuration.historyEnabled()) {
+            this.history = new PaymentHistory(this, this.getDataFolder().toPath().resolve("history"),
+                    this.getDataFolder().toPath().resolve("exports"), this.signIndex, this.configuration.historyRetention());
+            try {
+                this.history.enable();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not open the payment history, payments won't be recorded.", e);
+                this.history = null;
+            }
+        }
 
-        scheduler.runTask(this, () -> {
-            logger.fine("Resolving Economy service provider...");
-            RegisteredServiceProvider<Economy> economyProvider = server.getServicesManager().getRegistration(Economy.class);
+        this.notifications = new NotificationBuffer(this, pluginManager, this.scheduler, this.configuration,
+                this.messageRenderer, this.loadMonitor, amount -> this.gateway.format(amount));
+        this.notifications.enable();
 
-            if (economyProvider != null) {
-                String pluginName = economyProvider.getPlugin().getDescription().getFullName();
-                Economy provider = economyProvider.getProvider();
+        this.ownerValidator = new OwnerValidator(this.scheduler, () -> this.gateway);
 
-                logger.info("Hooked economy into " + pluginName + ": " + provider.getClass().getName());
-                this.economy = provider;
+        if (this.configuration.networkEnabled()) {
+            if (this.ledger != null) {
+                logger.warning("Network payouts work with the Vault economy only, the ledger is local to this server.");
             } else {
-                logger.severe("Economy service isn't provided. Please install an economy plugin.");
-                this.setEnabled(false);
+                this.enablePayoutBus();
             }
-        });
+        }
 
         if (pluginManager.getPlugin("LogBlock") != null) {
             logger.info("Enabling LogBlock hook...");
             this.logBlockHook = new LogBlockHook();
         }
 
-        this.craftserveListener = new CraftserveListener(this, pluginManager, scheduler);
+        this.triggerJournal = new TriggerJournal(this, pluginManager, this.scheduler, this.getDataFolder().toPath().resolve("triggers.journal"));
+        try {
+            this.triggerJournal.enable();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not open the trigger journal, signs won't be restored after a crash.", e);
+        }
+
+        this.triggerRegistry = new TriggerRegistry(this, pluginManager, this.scheduler, this.loadMonitor, this.stats,
+                this.watchdog, this.triggerJournal, this.logBlockHook);
+        this.triggerRegistry.enable();
+
+        this.bulkEngine = new BulkEngine(this, this.scheduler, this.configuration, this.signIndex, this.signDataParser,
+                this.triggerRegistry, this.getDataFolder().toPath().resolve("bulk-job.dat"));
+        this.bulkEngine.enable();
+
+        PaySignCommand command = new PaySignCommand(this.stats, this.watchdog, this.bulkEngine, this.history,
+                this.scheduler, this.configuration, this.ownerValidator, () -> this.gateway);
+        PluginCommand pluginCommand = Objects.requireNonNull(this.getCommand("paysign"), "paysign command");
+        pluginCommand.setExecutor(command);
+        pluginCommand.setTabCompleter(command);
+
+        this.craftserveListener = new CraftserveListener(this, pluginManager, this.scheduler);
         this.craftserveListener.enable();
 
-        MetricsLite.start(this);
+        if (!this.standalone) {
+            MetricsLite.start(this);
+        }
     }
 
     @Override
     public void onDisable() {
-        MetricsLite.stopIfRunning(this);
+        if (!this.standalone) {
+            MetricsLite.stopIfRunning(this);
+        }
 
         if (this.craftserveListener != null) {
             this.craftserveListener.disable();
         }
 
-        this.activeTriggers.forEach(Trigger::flush);
-        this.activeTriggers.clear();
-        this.economy = null;
+        if (this.statsTask != null) {
+            this.statsTask.cancel();
+            this.statsTask = null;
+        }
+
+        if (this.bulkEngine != null) {
+            this.bulkEngine.disable();
+        }
+
+        if (this.triggerRegistry != null) {
+            this.triggerRegistry.disable();
+        }
+
+        if (this.triggerJournal != null) {
+            this.triggerJournal.disable();
+        }
+
+        if (this.payoutBus != null) {
+            this.payoutBus.disable();
+            this.payoutBus = null;
+        }
+
+        if (this.loadMonitor != null) {
+            this.loadMonitor.drainAll();
+        }
+
+        if (this.watchdog != null) {
+            this.watchdog.disable();
+        }
+
+        if (this.notifications != null) {
+            this.notifications.disable();
+        }
+
+        if (this.passStore != null) {
+            this.passStore.disable();
+        }
+
+        if (this.history != null) {
+            this.history.disable();
+            this.history = null;
+        }
+
+        if (this.signIndex != null) {
+            this.signIndex.disable();
+        }
+
+        if (this.ledger != null) {
+            this.ledger.disable();
+            this.ledger = null;
+        }
+        this.gateway = null;
+    }
+
+    private void resolveEconomy() {
+        logger.fine("Resolving Economy service provider...");
+        RegisteredServiceProvider<Economy> economyProvider = this.getServer().getServicesManager().getRegistration(Economy.class);
+
+        if (economyProvider != null) {
+            String pluginName = economyProvider.getPlugin().getDescription().getFullName();
+            Economy provider = economyProvider.getProvider();
+
+            logger.info("Hooked economy into " + pluginName + ": " + provider.getClass().getName());
+            PaymentGateway gateway = new VaultPaymentGateway(provider, provider.getClass().getName(), this.stats);
+            if (this.configuration.breakerEnabled()) {
+                gateway = new CircuitBreakerGateway(gateway, this.configuration, this.stats);
+            }
+            this.gateway = this.payoutBus == null ? gateway : new NetworkPaymentGateway(gateway, this.payoutBus);
+        } else {
+            logger.severe("Economy service isn't provided. Please install an economy plugin.");
+            this.setEnabled(false);
+        }
+    }
+
+    private boolean enableLedger() {
+        logger.info("Enabling the built-in ledger...");
+        Ledger ledger = new Ledger(this.getDataFolder().toPath().resolve("ledger"), this.configuration.ledgerStartingBalance());
+        try {
+            ledger.enable();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not load the ledger.", e);
+            this.setEnabled(false);
+            return false;
+        }
+
+        this.ledger = ledger;
+        this.gateway = new LedgerPaymentGateway(this.getServer(), ledger, this.configuration.ledgerCurrency());
+        return true;
+    }
+
+    private void enablePayoutBus() {
+        String serverId = this.configuration.networkServerId();
+        if (serverId == null) {
+            serverId = "server_" + this.getServer().getPort();
+        }
+
+        PayoutJournal journal = new PayoutJournal(this.getDataFolder().toPath().resolve("payouts.journal"));
+        PayoutBus payoutBus = new PayoutBus(this, this.getServer().getPluginManager(), this.scheduler, this.createPayoutTransport(serverId),
+                journal, serverId, this.configuration.networkFallbackAfter(), () -> this.gateway, this.notifications, this.stats);
+        try {
+            payoutBus.enable();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not open the payout journal or transport, owners will be paid on this server only.", e);
+            return;
+        }
+
+        logger.info("Network payouts enabled as " + serverId + ".");
+        this.payoutBus = payoutBus;
+    }
+
+    private PayoutTransport createPayoutTransport(String serverId) {
+        RegisteredServiceProvider<PayoutTransport> transportProvider = this.getServer().getServicesManager().getRegistration(PayoutTransport.class);
+        if (transportProvider != null) {
+            PayoutTransport transport = transportProvider.getProvider();
+            logger.info("Using payout transport provided by " + transportProvider.getPlugin().getName() + ": " + transport.getClass().getName());
+            return transport;
+        }
+
+        String transport = this.configuration.networkTransport();
+        switch (transport.toLowerCase(Locale.ROOT)) {
+            case "loopback":
+                return new LoopbackPayoutTransport();
+            case "directory":
+                break;
+            default:
+                logger.warning("Unknown payout transport: " + transport + ", using directory.");
+                break;
+        }
+        return new DirectoryPayoutTransport(Paths.get(this.configuration.networkDirectory()), serverId);
     }
 
     @EventHandler(priority = EventPriority.NORMAL, ignoreCancelled = true)
     public void onPlayerInteract(PlayerInteractEvent event) {
+        long clickTime = System.nanoTime();
+        ClickWatchdog.Timing timing = this.watchdog.begin(ClickWatchdog.Phase.CLICK, clickTime);
+        try {
+            this.interact(event, clickTime, timing);
+        } finally {
+            this.stats.recordPluginTime(System.nanoTime() - clickTime);
+            this.watchdog.finish(timing);
+        }
+    }
+
+    private void interact(PlayerInteractEvent event, long clickTime, ClickWatchdog.Timing timing) {
         if (!event.getAction().equals(Action.RIGHT_CLICK_BLOCK)) {
             return;
         }
@@ -162,38 +389,77 @@ public final class PaySignPlugin extends JavaPlugin implements Listener {
         }
 
         event.setUseItemInHand(Event.Result.DENY);
+        this.stats.recordClick();
+        timing.describe(clickedBlock, paySign.getPlayerName(), player.getName());
 
-        if (!player.hasPermission(PERMISSION_USE)) {
-            logger.fine("The player is not permitted to use this sign.");
-            player.sendMessage(this.messageRenderer.noPermissionToUse());
-            return;
+        BlockKey signKey = BlockKey.of(clickedBlock);
+        this.signIndex.put(signKey, paySign.getPlayerName()); // signs created before the index existed
+        timing.mark(ClickWatchdog.Stage.PARSE);
+
+        if (this.triggerRegistry.isTriggered(signKey)) {
+            logger.fine("The sign is triggered already.");
+            return; // clicked again before the fake button was placed
         }
 
-        if (!paySign.pay(player, this.messageRenderer, this.economy, this.configuration.allowDecimals())) {
+        boolean permitted = player.hasPermission(PERMISSION_USE);
+        timing.mark(ClickWatchdog.Stage.PERMISSION);
+        if (!permitted) {
+            logger.fine("The player is not permitted to use this sign.");
+            player.sendMessage(this.messageRenderer.noPermissionToUse());
             return;
         }
 
-        BukkitScheduler scheduler = this.getServer().getScheduler();
-        logger.info(player.getName() + " is triggering PaySign sign at " + sign.getLocation());
+        Optional<Pass> pass = paySign.getPassOffer().isPresent()
+                ? this.passStore.redeem(player.getUniqueId(), signKey)
+                : Optional.empty();
+        timing.mark(ClickWatchdog.Stage.PASS);
+
+        if (pass.isPresent()) {
+            logger.fine("The player has used a pass.");
+            this.stats.recordPassClick();
+            player.sendMessage(this.messageRenderer.passUsed(pass.get()));
+            if (this.history != null) {
+                this.history.record(PaymentHistory.Kind.PASS_USE, signKey, clickedBlock.getWorld().getName(), paySign.getPlayerName(),
+                        player, 0D);
+            }
+        } else {
+            if (paySign.getPassOffer().isPresent() && !this.passStore.isLoaded(player.getUniqueId())) {
+                player.sendMessage(this.messageRenderer.passesLoading());
+                return; // a purchase now would overwrite passes which are not loaded yet
+            }
 
-        // Execute in next tick so that PlayerInteractEvent is handled properly
-        scheduler.runTask(this, () -> {
-            Trigger trigger = new Trigger(this, paySign);
-            this.activeTriggers.addLast(trigger);
+            // not resolved yet
+            PaymentGateway gateway = this.gateway;
+            if (gateway == null) {
+                player.sendMessage(this.messageRenderer.economyUnavailable());
+                return;
+            }
 
-            Switch fakeButton = trigger.execute();
-            if (this.logBlockHook != null) {
-                this.logBlockHook.logClick(player, trigger, fakeButton);
+            boolean paid = paySign.pay(player, this.messageRenderer, gateway, this.configuration.allowDecimals(), this.loadMonitor,
+                    this.notifications, this.ownerValidator);
+            timing.mark(ClickWatchdog.Stage.PAYMENT);
+            if (!paid) {
+                return;
+            }
+            this.stats.recordPaidClick();
+            if (this.history != null) {
+                this.history.record(PaymentHistory.Kind.PAYMENT, signKey, clickedBlock.getWorld().getName(), paySign.getPlayerName(),
+                        player, paySign.getPrice(this.configuration.allowDecimals()));
             }
 
-            scheduler.runTaskLater(this, () -> {
-                try {
-                    trigger.flush();
-                } finally {
-                    this.activeTriggers.remove(trigger);
-                }
-            }, paySign.getDelay().orElse(this.configuration.delay()));
-        });
+            paySign.getPassOffer()
+                    .flatMap(offer -> this.passStore.purchase(player.getUniqueId(), signKey, offer))
+                    .ifPresent(purchased -> player.sendMessage(this.messageRenderer.passPurchased(purchased)));
+        }
+
+        if (logger.isLoggable(Level.INFO)) { // don't build the line if it's not logged anyway
+            this.loadMonitor.log(logger, Level.INFO, player.getName() + " is triggering PaySign sign at " + sign.getLocation());
+        }
+
+        if (!this.triggerRegistry.trigger(paySign, signKey, player, clickTime, paySign.getDelay().orElse(this.configuration.delay()))) {
+            logger.warning("Sign at " + sign.getLocation() + " has been triggered twice by a single click.");
+        }
+        timing.mark(ClickWatchdog.Stage.SCHEDULE);
     }
 
     @EventHandler(priority = EventPriority.LOW, ignoreCancelled = true)
@@ -243,7 +509,16 @@ public final class PaySignPlugin extends JavaPlugin implements Listener {
 
         logger.info(player.getName() + " is creating a new PaySign sign at " + sign.getLocation());
         event.setLine(0, PaySign.NAMESPACE_COLOR + PaySign.NAMESPACE);
+        this.signIndex.put(BlockKey.of(block), paySign.getPlayerName());
         player.sendMessage(this.messageRenderer.createdSuccessfully());
+
+        // the account lookup may block, so the creator is warned afterwards
+        String ownerName = paySign.getPlayerName();
+        this.ownerValidator.validate(ownerName, result -> {
+            if (result.equals(OwnerValidator.Result.INVALID) && player.isOnline()) {
+                player.sendMessage(this.messageRenderer.invalidOwner(ownerName));
+            }
+        });
     }
 
     private void cancel(SignChangeEvent event, String reason) {
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.craftserve.paysign;
+
+import org.bukkit.entity.Player;
+
+/**
+ * Moves money between sign users and sign owners.
+ */
+public interface PaymentGateway {
+    /**
+     * Withdraws the amount from the payer and deposits it to the owner. Either
+     * both happen or none.
+     */
+    TransferResult transfer(Player payer, String ownerName, String worldName, double amount);
+
+    /**
+     * Withdraws the amount from the payer only, eg. when the owner is paid
+     * on another server.
+     */
+    TransferResult withdraw(Player payer, String worldName, double amount);
+
+    /**
+     * Deposits the amount to the player.
+     * @return {@code true} if the deposit succeeded.
+     */
+    boolean deposit(String playerName, String worldName, double amount);
+
+    /**
+     * Checks whether the player can be paid. May block, eg. to resolve the
+     * player's UUID, so it should not be called on the main thread.
+     */
+    boolean hasAccount(String playerName);
+
+    String format(double amount);
+
+    /**
+     * Describes the underlying economy, for diagnostics.
+     */
+    String getProviderName();
+}
@@ -0,0 +1,632 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the history of payments in compact append-only segment files, and
+ * exports it for external analytics. Clicks only put records into a bounded
+ * queue, everything else happens on a single background thread. Exports
+ * stream the records from a saved cursor, so every export contains only the
+ * new payments, and memory use doesn't depend on the history size. Segments
+ * older than the retention period are deleted once they have been exported.
+ */
+public class PaymentHistory {
+    static final Logger logger = Logger.getLogger(PaymentHistory.class.getName());
+
+    private static final int MAGIC = 0x50534853; // "PSHS"
+    private static final int FORMAT_VERSION = 1;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final String SEGMENT_PREFIX = "payments-";
+    private static final String SEGMENT_EXTENSION = ".bin";
+    private static final long MAX_SEGMENT_SIZE = 16L * 1024L * 1024L;
+    private static final int MAX_QUEUED = 10_000;
+    private static final long DRAIN_INTERVAL = 1L; // seconds
+    private static final int EXPORT_CHUNK_ROWS = 100_000;
+    private static final long CLEANUP_INTERVAL = 1L; // hours
+    private static final String CURSOR_FILE = "cursor.dat";
+
+    public enum Kind {
+        PAYMENT, PASS_USE
+    }
+
+    public enum Format {
+        CSV, NDJSON;
+
+        public static Format parse(String text) {
+            Objects.requireNonNull(text, "text");
+            try {
+                return valueOf(text.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                logger.warning("Unknown export format: " + text + ", using " + CSV + ".");
+                return CSV;
+            }
+        }
+    }
+
+    private final Plugin plugin;
+    private final Path directory;
+    private final Path exportDirectory;
+    private final SignIndex signIndex;
+    private final long retention;
+
+    private final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(MAX_QUEUED);
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicBoolean exporting = new AtomicBoolean();
+    private ScheduledExecutorService ioExecutor;
+
+    // I/O thread only
+    private DataOutputStream output;
+    private int segment;
+    private long segmentSize;
+
+    /**
+     * @param retention Days to keep the history for, {@code 0} keeps it forever.
+     */
+    public PaymentHistory(Plugin plugin, Path directory, Path exportDirectory, SignIndex signIndex, long retention) {
+        this.plugin = Objects.requireNonNull(plugin, "plugin");
+        this.directory = Objects.requireNonNull(directory, "directory");
+        this.exportDirectory = Objects.requireNonNull(exportDirectory, "exportDirectory");
+        this.signIndex = Objects.requireNonNull(signIndex, "signIndex");
+        this.retention = TimeUnit.DAYS.toMillis(retention);
+    }
+
+    public void enable() throws IOException {
+        Files.createDirectories(this.directory);
+        // always a new segment, so a record cut by a crash is never followed by new ones
+        List<Integer> segments = this.listSegments();
+        this.segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1;
+        this.cleanup();
+
+        this.ioExecutor = IoExecutors.create(this.plugin.getName() + " History I/O");
+        this.ioExecutor.scheduleWithFixedDelay(this::drainSafely, DRAIN_INTERVAL, DRAIN_INTERVAL, TimeUnit.SECONDS);
+        this.ioExecutor.scheduleWithFixedDelay(this::cleanupSafely, CLEANUP_INTERVAL, CLEANUP_INTERVAL, TimeUnit.HOURS);
+    }
+
+    public void disable() {
+        if (this.ioExecutor != null) {
+            IoExecutors.shutdown(this.ioExecutor, "the payment history to be written");
+            this.ioExecutor = null;
+        }
+
+        this.drainSafely();
+        if (this.output != null) {
+            try {
+                this.output.close();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not close the payment history.", e);
+            }
+            this.output = null;
+        }
+    }
+
+    /**
+     * Queues the payment to be written. Never blocks, if the writer can't
+     * keep up the record is dropped and counted.
+     */
+    public void record(Kind kind, BlockKey sign, String worldName, String ownerName, Player payer, double amount) {
+        Objects.requireNonNull(kind, "kind");
+        Objects.requireNonNull(sign, "sign");
+        Objects.requireNonNull(worldName, "worldName");
+        Objects.requireNonNull(ownerName, "ownerName");
+        Objects.requireNonNull(payer, "payer");
+
+        Record record = new Record(System.currentTimeMillis(), kind, sign, worldName, ownerName,
+                payer.getUniqueId(), payer.getName(), amount);
+        if (!this.queue.offer(record)) {
+            this.dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Exports sign definitions and payments since the previous export in the
+     * background.
+     * @param callback Called on the I/O thread with a summary for the user.
+     * @return {@code false} if another export is running.
+     */
+    public boolean export(Format format, Consumer<String> callback) {
+        Objects.requireNonNull(format, "format");
+        Objects.requireNonNull(callback, "callback");
+        if (this.ioExecutor == null || !this.exporting.compareAndSet(false, true)) {
+            return false;
+        }
+
+        try {
+            this.ioExecutor.execute(() -> {
+                String summary;
+                try {
+                    this.drain();
+                    summary = this.exportNow(format);
+                } catch (Throwable e) {
+                    logger.log(Level.SEVERE, "Could not export PaySign data.", e);
+                    summary = "Export has failed: " + e.getMessage();
+                } finally {
+                    this.exporting.set(false); // before the user is told, who may export again right away
+                }
+                callback.accept(summary);
+            });
+        } catch (RejectedExecutionException e) {
+            this.exporting.set(false);
+            return false; // being disabled
+        }
+        return true;
+    }
+
+    //
+    // Writing
+    //
+
+    private void drainSafely() {
+        try {
+            this.drain();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not write the payment history.", e);
+        }
+    }
+
+    private void drain() throws IOException {
+        long dropped = this.dropped.getAndSet(0L);
+        if (dropped > 0L) {
+            logger.warning(dropped + " payment(s) were not recorded in the history, the writer could not keep up.");
+        }
+
+        Record record;
+        boolean written = false;
+        while ((record = this.queue.poll()) != null) {
+            if (this.output == null || this.segmentSize >= MAX_SEGMENT_SIZE) {
+                this.openSegment();
+            }
+            this.segmentSize += record.write(this.output);
+            written = true;
+        }
+
+        if (written) {
+            this.output.flush();
+        }
+    }
+
+    private void openSegment() throws IOException {
+        if (this.output != null) {
+            this.output.close();
+            this.segment++;
+        }
+
+        OutputStream stream = Files.newOutputStream(this.getSegmentFile(this.segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.output = new DataOutputStream(new BufferedOutputStream(stream));
+        this.output.writeInt(MAGIC);
+        this.output.writeInt(FORMAT_VERSION);
+        this.segmentSize = SEGMENT_HEADER_SIZE;
+    }
+
+    private Path getSegmentFile(int segment) {
+        return this.directory.resolve(SEGMENT_PREFIX + segment + SEGMENT_EXTENSION);
+    }
+
+    private void cleanupSafely() {
+        try {
+            this.cleanup();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not delete old payment history.", e);
+        }
+    }
+
+    /**
+     * Deletes exported segments which were last written before the retention
+     * period. Unexported ones are kept until an export passes them.
+     */
+    private void cleanup() throws IOException {
+        if (this.retention <= 0L) {
+            return;
+        }
+
+        long threshold = System.currentTimeMillis() - this.retention;
+        Cursor cursor = Cursor.read(this.exportDirectory.resolve(CURSOR_FILE));
+        int deleted = 0;
+        int unexported = 0;
+        for (int segment : this.listSegments()) {
+            Path file = this.getSegmentFile(segment);
+            if (segment == this.segment || Files.getLastModifiedTime(file).toMillis() >= threshold) {
+                continue; // being written, or recent
+            }
+
+            if (segment > cursor.segment || (segment == cursor.segment && Files.size(file) > cursor.offset)) {
+                unexported++;
+                continue;
+            }
+            Files.delete(file);
+            deleted++;
+        }
+
+        if (deleted > 0) {
+            logger.info("Deleted " + deleted + " payment history segment(s) older than the retention period.");
+        }
+        if (unexported > 0) {
+            logger.warning("Keeping " + unexported + " payment history segment(s) older than the retention period " +
+                    "until they are exported with /paysign export.");
+        }
+    }
+
+    private List<Integer> listSegments() throws IOException {
+        List<Integer> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, SEGMENT_PREFIX + "*" + SEGMENT_EXTENSION)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXTENSION.length())));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    //
+    // Exporting
+    //
+
+    private String exportNow(Format format) throws IOException {
+        String extension = format.equals(Format.CSV) ? ".csv" : ".ndjson";
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ROOT);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Files.createDirectories(this.exportDirectory);
+        String name = dateFormat.format(new Date());
+        Path target = this.exportDirectory.resolve(name);
+        for (int attempt = 2; ; attempt++) {
+            try {
+                Files.createDirectory(target);
+                break;
+            } catch (FileAlreadyExistsException e) {
+                // exported within the same second, the files of the previous export must stay
+                target = this.exportDirectory.resolve(name + "-" + attempt);
+            }
+        }
+
+        int signs = this.exportSigns(format, target.resolve("signs" + extension));
+
+        Cursor cursor = Cursor.read(this.exportDirectory.resolve(CURSOR_FILE));
+        ChunkedWriter payments = new ChunkedWriter(format, target, extension);
+        try {
+            for (int segment : this.listSegments()) {
+                if (segment < cursor.segment) {
+                    continue;
+                }
+
+                long offset = segment == cursor.segment ? cursor.offset : 0L;
+                cursor = new Cursor(segment, this.exportSegment(segment, offset, payments));
+            }
+        } finally {
+            payments.close();
+        }
+
+        // only after the files are complete, so a failed export is repeated next time
+        cursor.write(this.exportDirectory.resolve(CURSOR_FILE));
+        return "Exported " + signs + " sign(s) and " + payments.rows + " new payment(s) to " + target + ".";
+    }
+
+    private int exportSigns(Format format, Path file) throws IOException {
+        int[] count = {0};
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            if (format.equals(Format.CSV)) {
+                writer.write("world_id,x,y,z,owner\n");
+            }
+
+            IOException[] error = {null};
+            this.signIndex.forEach((sign, ownerName) -> {
+                if (error[0] != null) {
+                    return;
+                }
+
+                try {
+                    if (format.equals(Format.CSV)) {
+                        writer.write(sign.getWorldId() + "," + sign.getX() + "," + sign.getY() + "," + sign.getZ() + "," + csv(ownerName) + "\n");
+                    } else {
+                        writer.write("{\"world_id\":\"" + sign.getWorldId() + "\",\"x\":" + sign.getX() + ",\"y\":" + sign.getY() +
+                                ",\"z\":" + sign.getZ() + ",\"owner\":" + json(ownerName) + "}\n");
+                    }
+                    count[0]++;
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            });
+
+            if (error[0] != null) {
+                throw error[0];
+            }
+        }
+        return count[0];
+    }
+
+    /**
+     * @return Offset after the last complete record.
+     */
+    private long exportSegment(int segment, long offset, ChunkedWriter payments) throws IOException {
+        try (CountingInputStream counting = new CountingInputStream(new BufferedInputStream(Files.newInputStream(this.getSegmentFile(segment))))) {
+            DataInputStream input = new DataInputStream(counting);
+            try {
+                if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+                    throw new IOException("Unsupported payment history segment: " + segment);
+                }
+            } catch (EOFException e) {
+                return offset; // created just before a crash
+            }
+
+            long skip = offset - SEGMENT_HEADER_SIZE;
+            if (skip > 0L && input.skipBytes((int) Math.min(Integer.MAX_VALUE, skip)) < skip) {
+                return offset; // shorter than the cursor, nothing new
+            }
+
+            long recordEnd = counting.count;
+            while (true) {
+                Record record;
+                try {
+                    record = Record.read(input);
+                } catch (EOFException e) {
+                    return recordEnd; // the end, or a record cut by a crash
+                } catch (UTFDataFormatException | IllegalArgumentException e) {
+                    // a record cut by a crash may end with a string whose bytes were never written
+                    logger.log(Level.WARNING, "Skipping a damaged record at the end of payment history segment " + segment + ".", e);
+                    return recordEnd;
+                }
+
+                payments.write(record);
+                recordEnd = counting.count;
+            }
+        }
+    }
+
+    static String csv(String value) {
+        if (value.indexOf(',') == -1 && value.indexOf('"') == -1 && value.indexOf('\n') == -1) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    static String json(String value) {
+        StringBuilder builder = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    /**
+     * A single payment, as stored in the segment files.
+     */
+    static class Record {
+        final long time;
+        final Kind kind;
+        final BlockKey sign;
+        final String worldName;
+        final String ownerName;
+        final UUID payerId;
+        final String payerName;
+        final double amount;
+
+        Record(long time, Kind kind, BlockKey sign, String worldName, String ownerName, UUID payerId, String payerName, double amount) {
+            this.time = time;
+            this.kind = Objects.requireNonNull(kind, "kind");
+            this.sign = Objects.requireNonNull(sign, "sign");
+            this.worldName = Objects.requireNonNull(worldName, "worldName");
+            this.ownerName = Objects.requireNonNull(ownerName, "ownerName");
+            this.payerId = Objects.requireNonNull(payerId, "payerId");
+            this.payerName = Objects.requireNonNull(payerName, "payerName");
+            this.amount = amount;
+        }
+
+        /**
+         * @return Number of bytes written.
+         */
+        int write(DataOutputStream output) throws IOException {
+            int start = output.size();
+            output.writeLong(this.time);
+            output.writeByte(this.kind.ordinal());
+            this.sign.write(output);
+            output.writeUTF(this.worldName);
+            output.writeUTF(this.ownerName);
+            output.writeLong(this.payerId.getMostSignificantBits());
+            output.writeLong(this.payerId.getLeastSignificantBits());
+            output.writeUTF(this.payerName);
+            output.writeDouble(this.amount);
+            return output.size() - start;
+        }
+
+        static Record read(DataInputStream input) throws IOException {
+            long time = input.readLong();
+            int kind = input.readUnsignedByte();
+            if (kind >= Kind.values().length) {
+                throw new IOException("Unknown payment kind: " + kind);
+            }
+
+            return new Record(time, Kind.values()[kind], BlockKey.read(input), input.readUTF(), input.readUTF(),
+                    new UUID(input.readLong(), input.readLong()), input.readUTF(), input.readDouble());
+        }
+    }
+
+    /**
+     * Writes payments to files of at most {@link #EXPORT_CHUNK_ROWS} rows.
+     */
+    static class ChunkedWriter {
+        private final Format format;
+        private final Path directory;
+        private final String extension;
+
+        private Writer writer;
+        private int chunk;
+        private int chunkRows;
+        long rows;
+
+        ChunkedWriter(Format format, Path directory, String extension) {
+            this.format = Objects.requireNonNull(format, "format");
+            this.directory = Objects.requireNonNull(directory, "directory");
+            this.extension = Objects.requireNonNull(extension, "extension");
+        }
+
+        void write(Record record) throws IOException {
+            if (this.writer == null || this.chunkRows >= EXPORT_CHUNK_ROWS) {
+                this.nextChunk();
+            }
+
+            BlockKey sign = record.sign;
+            if (this.format.equals(Format.CSV)) {
+                this.writer.write(record.time + "," + record.kind.name().toLowerCase(Locale.ROOT) + "," + sign.getWorldId() + "," +
+                        csv(record.worldName) + "," + sign.getX() + "," + sign.getY() + "," + sign.getZ() + "," + csv(record.ownerName) + "," +
+                        record.payerId + "," + csv(record.payerName) + "," + record.amount + "\n");
+            } else {
+                this.writer.write("{\"time\":" + record.time + ",\"kind\":\"" + record.kind.name().toLowerCase(Locale.ROOT) +
+                        "\",\"world_id\":\"" + sign.getWorldId() + "\",\"world\":" + json(record.worldName) +
+                        ",\"x\":" + sign.getX() + ",\"y\":" + sign.getY() + ",\"z\":" + sign.getZ() +
+                        ",\"owner\":" + json(record.ownerName) + ",\"payer_id\":\"" + record.payerId +
+                        "\",\"payer\":" + json(record.payerName) + ",\"amount\":" + record.amount + "}\n");
+            }
+
+            this.chunkRows++;
+            this.rows++;
+        }
+
+        private void nextChunk() throws IOException {
+            this.close();
+            this.chunk++;
+            this.chunkRows = 0;
+
+            Path file = this.directory.resolve(String.format(Locale.ROOT, "payments-%04d%s", this.chunk, this.extension));
+            this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+            if (this.format.equals(Format.CSV)) {
+                this.writer.write("time,kind,world_id,world,x,y,z,owner,payer_id,payer,amount\n");
+            }
+        }
+
+        void close() throws IOException {
+            if (this.writer != null) {
+                this.writer.close();
+                this.writer = null;
+            }
+        }
+    }
+
+    /**
+     * Position in the history up to which it has been exported.
+     */
+    static class Cursor {
+        final int segment;
+        final long offset;
+
+        Cursor(int segment, long offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        static Cursor read(Path file) throws IOException {
+            if (!Files.exists(file)) {
+                return new Cursor(0, 0L);
+            }
+
+            try (DataInputStream input = new DataInputStream(Files.newInputStream(file))) {
+                return new Cursor(input.readInt(), input.readLong());
+            }
+        }
+
+        void write(Path file) throws IOException {
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream output = new DataOutputStream(Files.newOutputStream(temporary))) {
+                output.writeInt(this.segment);
+                output.writeLong(this.offset);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                this.count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                this.count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            this.count += skipped;
+            return skipped;
+        }
+    }
+}
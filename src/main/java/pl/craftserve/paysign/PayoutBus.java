@@ -0,0 +1,322 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pays sign owners on whichever server of the network they are playing.
+ * Payouts for owners who aren't online here are batched and published through
+ * the {@link PayoutTransport}. The server where the owner is online claims
+ * the payout, deposits it and notifies the owner. If nobody claims it in time,
+ * the origin server deposits it locally, like it would without the network.
+ * The origin does the same for all its unclaimed payouts when it is disabled.
+ * Payouts are recorded in the {@link PayoutJournal} before the payer is told
+ * that they have paid and before they are deposited, and the open ones are
+ * picked up again on the next start.
+ *
+ * <p>Batches are exchanged on a single I/O thread, deposits are made on the
+ * global thread.</p>
+ */
+public class PayoutBus implements Listener {
+    static final Logger logger = Logger.getLogger(PayoutBus.class.getName());
+
+    private static final long EXCHANGE_INTERVAL = 1000L; // milliseconds
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    private final Plugin plugin;
+    private final PluginManager pluginManager;
+    private final TaskScheduler scheduler;
+    private final PayoutTransport transport;
+    private final PayoutJournal journal;
+    private final String serverId;
+    private final long fallbackAfter;
+    private final Supplier<PaymentGateway> gateway;
+    private final NotificationBuffer notifications;
+    private final PerformanceStats stats;
+
+    private final Set<String> onlinePlayers = ConcurrentHashMap.newKeySet();
+    private final Queue<PayoutEvent> outgoing = new ConcurrentLinkedQueue<>();
+    private final Queue<PayoutEvent> claimed = new ConcurrentLinkedQueue<>();
+    private final Map<UUID, PayoutEvent> pending = new HashMap<>(); // I/O thread only
+    private ScheduledExecutorService ioExecutor;
+
+    public PayoutBus(Plugin plugin, PluginManager pluginManager, TaskScheduler scheduler, PayoutTransport transport,
+                     PayoutJournal journal, String serverId, long fallbackAfter, Supplier<PaymentGateway> gateway, NotificationBuffer notifications, PerformanceStats stats) {
+        this.plugin = Objects.requireNonNull(plugin, "plugin");
+        this.pluginManager = Objects.requireNonNull(pluginManager, "pluginManager");
+        this.scheduler = Objects.requireNonNull(scheduler, "scheduler");
+        this.transport = Objects.requireNonNull(transport, "transport");
+        this.journal = Objects.requireNonNull(journal, "journal");
+        this.serverId = Objects.requireNonNull(serverId, "serverId");
+        this.fallbackAfter = TimeUnit.SECONDS.toMillis(fallbackAfter);
+        this.gateway = Objects.requireNonNull(gateway, "gateway");
+        this.notifications = Objects.requireNonNull(notifications, "notifications");
+        this.stats = Objects.requireNonNull(stats, "stats");
+    }
+
+    public void enable() throws IOException {
+        this.journal.enable();
+        try {
+            this.transport.open();
+        } catch (IOException e) {
+            this.journal.disable();
+            throw e;
+        }
+
+        // left open by the previous run, owed ones are claimed right away as their fallback has passed
+        for (PayoutEvent event : this.journal.getOwed()) {
+            this.pending.put(event.getId(), event);
+        }
+        this.claimed.addAll(this.journal.getClaimed());
+        if (!this.pending.isEmpty() || !this.claimed.isEmpty()) {
+            logger.info("Resuming " + (this.pending.size() + this.claimed.size()) + " payout(s) left open by the previous run.");
+        }
+
+        for (Player player : this.plugin.getServer().getOnlinePlayers()) {
+            this.onlinePlayers.add(player.getName().toLowerCase(Locale.ROOT));
+        }
+        this.pluginManager.registerEvents(this, this.plugin);
+
+        this.ioExecutor = IoExecutors.create(this.plugin.getName() + " Payouts I/O");
+        this.ioExecutor.scheduleWithFixedDelay(this::exchange, EXCHANGE_INTERVAL, EXCHANGE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Deposits the claimed payouts and settles every payout which is still
+     * waiting for a claim. Must be called on the global thread, before the
+     * gateway goes away.
+     */
+    public void disable() {
+        HandlerList.unregisterAll(this);
+        if (this.ioExecutor != null) {
+            IoExecutors.shutdown(this.ioExecutor, "payouts to be exchanged");
+            this.ioExecutor = null;
+        }
+
+        this.applyClaimed(); // may queue refunds
+        try {
+            // the second round settles refunds of payouts which could not be deposited in the first one
+            for (int round = 0; round < 2; round++) {
+                this.settle();
+            }
+            this.transport.close();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not settle " + (this.outgoing.size() + this.pending.size()) +
+                    " payouts, they are kept in the journal until the next start: " + this.outgoing + ", " + this.pending.values(), e);
+        }
+
+        this.journal.disable();
+        this.outgoing.clear();
+        this.pending.clear();
+        this.claimed.clear();
+        this.onlinePlayers.clear();
+    }
+
+    /**
+     * Claims and deposits the pending payouts this server is responsible for
+     * right away, without waiting for the fallback. Payouts published by other
+     * servers are left to them, unless the owner is online here.
+     */
+    private void settle() throws IOException {
+        this.publishOutgoing();
+        for (PayoutEvent event : this.transport.receive()) {
+            this.pending.putIfAbsent(event.getId(), event);
+        }
+
+        Iterator<PayoutEvent> iterator = this.pending.values().iterator();
+        while (iterator.hasNext()) {
+            PayoutEvent event = iterator.next();
+            if (event.getOrigin().equals(this.serverId) || this.isOnline(event.getOwnerName())) {
+                this.claim(event);
+                iterator.remove();
+            }
+        }
+
+        this.applyClaimed(); // may queue refunds
+    }
+
+    public String getServerId() {
+        return this.serverId;
+    }
+
+    /**
+     * @return {@code true} if the player is online on this server.
+     */
+    public boolean isOnline(String playerName) {
+        Objects.requireNonNull(playerName, "playerName");
+        return this.onlinePlayers.contains(playerName.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Records the payout in the journal and queues it to be published with
+     * the next batch.
+     * @return {@code false} if it could not be recorded, or the bus is
+     * disabled. The caller must pay the owner itself then.
+     */
+    public boolean forward(PayoutEvent event) {
+        Objects.requireNonNull(event, "event");
+        if (!this.journal.owe(event)) {
+            return false;
+        }
+
+        this.outgoing.add(event);
+        this.stats.recordForwardedPayout();
+        return true;
+    }
+
+    private void exchange() {
+        try {
+            this.publishOutgoing();
+            for (PayoutEvent event : this.transport.receive()) {
+                this.pending.putIfAbsent(event.getId(), event);
+            }
+            this.claimPending(System.currentTimeMillis());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not exchange payouts, retrying later.", e);
+        } catch (Throwable e) {
+            logger.log(Level.SEVERE, "Could not exchange payouts.", e);
+        }
+    }
+
+    private void publishOutgoing() throws IOException {
+        while (!this.outgoing.isEmpty()) {
+            List<PayoutEvent> batch = new ArrayList<>();
+            for (PayoutEvent event : this.outgoing) {
+                batch.add(event);
+                if (batch.size() >= MAX_BATCH_SIZE) {
+                    break;
+                }
+            }
+
+            // remove only after the batch is out, so a failure keeps them for the retry
+            this.transport.publish(batch);
+            for (int i = 0; i < batch.size(); i++) {
+                this.outgoing.poll();
+            }
+        }
+    }
+
+    private void claimPending(long now) throws IOException {
+        boolean claimedAny = false;
+
+        Iterator<PayoutEvent> iterator = this.pending.values().iterator();
+        while (iterator.hasNext()) {
+            PayoutEvent event = iterator.next();
+            boolean local = event.getOrigin().equals(this.serverId);
+            long age = now - event.getCreatedAt();
+
+            if (this.isOnline(event.getOwnerName()) || (local && age >= this.fallbackAfter)) {
+                claimedAny |= this.claim(event);
+                iterator.remove(); // claimed either by us or by another server
+            } else if (!local && age >= this.fallbackAfter * 2L) {
+                iterator.remove(); // the origin has taken care of it by now
+            }
+        }
+
+        if (claimedAny || !this.claimed.isEmpty()) { // or resumed after a restart
+            this.scheduler.runGlobal(this::applyClaimed);
+        }
+    }
+
+    /**
+     * @return {@code true} if this server has claimed the event, it is
+     * queued to be deposited then.
+     */
+    private boolean claim(PayoutEvent event) throws IOException {
+        if (!this.transport.claim(event.getId())) {
+            if (event.getOrigin().equals(this.serverId)) {
+                this.journal.settle(event.getId()); // another server pays it
+            }
+            return false;
+        }
+
+        // deposited even if this fails, the claim can't be given back
+        this.journal.claim(event);
+        this.claimed.add(event);
+        return true;
+    }
+
+    private void applyClaimed() {
+        PayoutEvent event;
+        while ((event = this.claimed.poll()) != null) {
+            this.apply(event);
+        }
+    }
+
+    private void apply(PayoutEvent event) {
+        PaymentGateway gateway = this.gateway.get();
+        if (gateway != null && gateway.deposit(event.getOwnerName(), event.getWorldName(), event.getAmount())) {
+            this.journal.settle(event.getId());
+            this.stats.recordAppliedPayout();
+            if (!event.isRefund()) {
+                this.notifications.add(event.getOwnerName(), event.getPayerName(), event.getAmount());
+            }
+            return;
+        }
+
+        if (event.isRefund()) {
+            // stays claimed in the journal, so it's retried on the next start
+            logger.severe("Could not refund " + event.getAmount() + " to " + event.getOwnerName() + ": " + event);
+            return;
+        }
+
+        logger.warning("Could not pay " + event.getAmount() + " to " + event.getOwnerName() + ", refunding " + event.getPayerName() + ".");
+        PayoutEvent refund = event.refund(this.serverId, System.currentTimeMillis());
+        if (this.journal.owe(refund)) {
+            this.journal.settle(event.getId());
+            this.outgoing.add(refund);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void trackJoin(PlayerJoinEvent event) {
+        this.onlinePlayers.add(event.getPlayer().getName().toLowerCase(Locale.ROOT));
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void trackQuit(PlayerQuitEvent event) {
+        this.onlinePlayers.remove(event.getPlayer().getName().toLowerCase(Locale.ROOT));
+    }
+}
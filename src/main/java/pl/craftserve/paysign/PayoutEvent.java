@@ -0,0 +1,144 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * A payout for a sign owner, published by the server where the payer has been
+ * charged. It is deposited exactly once, by the first server which claims it.
+ */
+public class PayoutEvent {
+    private final UUID id;
+    private final String origin;
+    private final String ownerName;
+    private final String payerName;
+    private final String worldName;
+    private final double amount;
+    private final long createdAt;
+    private final boolean refund;
+
+    public PayoutEvent(UUID id, String origin, String ownerName, String payerName, String worldName,
+                       double amount, long createdAt, boolean refund) {
+        this.id = Objects.requireNonNull(id, "id");
+        this.origin = Objects.requireNonNull(origin, "origin");
+        this.ownerName = Objects.requireNonNull(ownerName, "ownerName");
+        this.payerName = Objects.requireNonNull(payerName, "payerName");
+        this.worldName = Objects.requireNonNull(worldName, "worldName");
+        this.amount = amount;
+        this.createdAt = createdAt;
+        this.refund = refund;
+    }
+
+    /**
+     * The event ID is the idempotency key, there is at most one claim for it.
+     */
+    public UUID getId() {
+        return this.id;
+    }
+
+    /**
+     * @return ID of the server which published this event.
+     */
+    public String getOrigin() {
+        return this.origin;
+    }
+
+    public String getOwnerName() {
+        return this.ownerName;
+    }
+
+    public String getPayerName() {
+        return this.payerName;
+    }
+
+    public String getWorldName() {
+        return this.worldName;
+    }
+
+    public double getAmount() {
+        return this.amount;
+    }
+
+    public long getCreatedAt() {
+        return this.createdAt;
+    }
+
+    /**
+     * @return {@code true} if this is the payer's money coming back after the
+     * owner could not be paid. Refunds don't notify anyone.
+     */
+    public boolean isRefund() {
+        return this.refund;
+    }
+
+    /**
+     * Creates a refund of this payout for the payer.
+     */
+    public PayoutEvent refund(String origin, long now) {
+        return new PayoutEvent(UUID.randomUUID(), origin, this.payerName, this.ownerName, this.worldName, this.amount, now, true);
+    }
+
+    public void write(DataOutput output) throws IOException {
+        Objects.requireNonNull(output, "output");
+        output.writeLong(this.id.getMostSignificantBits());
+        output.writeLong(this.id.getLeastSignificantBits());
+        output.writeUTF(this.origin);
+        output.writeUTF(this.ownerName);
+        output.writeUTF(this.payerName);
+        output.writeUTF(this.worldName);
+        output.writeDouble(this.amount);
+        output.writeLong(this.createdAt);
+        output.writeBoolean(this.refund);
+    }
+
+    public static PayoutEvent read(DataInput input) throws IOException {
+        Objects.requireNonNull(input, "input");
+        UUID id = new UUID(input.readLong(), input.readLong());
+        return new PayoutEvent(id, input.readUTF(), input.readUTF(), input.readUTF(), input.readUTF(),
+                input.readDouble(), input.readLong(), input.readBoolean());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PayoutEvent that = (PayoutEvent) o;
+        return this.id.equals(that.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.id.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "PayoutEvent{" +
+                "id=" + this.id +
+                ", origin='" + this.origin + '\'' +
+                ", ownerName='" + this.ownerName + '\'' +
+                ", payerName='" + this.payerName + '\'' +
+                ", amount=" + this.amount +
+                ", refund=" + this.refund +
+                '}';
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps {@link PayoutEvent}s this server is responsible for on disk, so they
+ * survive a crash or a disable which could not settle them. An event is
+ * recorded as owed before the payer is told that they have paid, as claimed
+ * before it is deposited, and as settled once it is deposited or claimed by
+ * another server. Every record is written to the file before the method
+ * returns, so it survives a crash of the server process.
+ *
+ * <p>The file is an append-only log, rewritten with the open events only on
+ * enable, on disable and whenever most of its records are settled.</p>
+ */
+public class PayoutJournal {
+    static final Logger logger = Logger.getLogger(PayoutJournal.class.getName());
+
+    private static final int MAGIC = 0x5053504A; // "PSPJ"
+    private static final int FORMAT_VERSION = 1;
+    private static final byte OWED = 1;
+    private static final byte CLAIMED = 2;
+    private static final byte SETTLED = 3;
+    private static final int COMPACT_AFTER = 10_000; // records
+
+    private final Path file;
+
+    private final Map<UUID, Entry> open = new LinkedHashMap<>();
+    private FileChannel channel;
+    private int records;
+
+    // reused for every record, under the lock
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    private final DataOutputStream output = new DataOutputStream(this.bytes);
+
+    public PayoutJournal(Path file) {
+        this.file = Objects.requireNonNull(file, "file");
+    }
+
+    /**
+     * Reads events left open by the previous run, see {@link #getOwed()} and
+     * {@link #getClaimed()}.
+     */
+    public synchronized void enable() throws IOException {
+        if (Files.exists(this.file)) {
+            this.read(Files.readAllBytes(this.file));
+        }
+        this.compact();
+    }
+
+    public synchronized void disable() {
+        if (this.channel == null) {
+            return;
+        }
+
+        try {
+            this.compact();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not compact the payout journal.", e);
+        }
+
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not close the payout journal.", e);
+        }
+        this.channel = null;
+        this.open.clear();
+    }
+
+    /**
+     * @return Events which have not been claimed by anyone yet.
+     */
+    public synchronized List<PayoutEvent> getOwed() {
+        return this.list(OWED);
+    }
+
+    /**
+     * @return Events claimed by this server, but maybe not deposited yet.
+     */
+    public synchronized List<PayoutEvent> getClaimed() {
+        return this.list(CLAIMED);
+    }
+
+    private List<PayoutEvent> list(byte state) {
+        List<PayoutEvent> events = new ArrayList<>();
+        for (Entry entry : this.open.values()) {
+            if (entry.state == state) {
+                events.add(entry.event);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Records the event published by this server, before the payer is charged
+     * for good.
+     * @return {@code false} if it could not be written, the event must not
+     * be published then.
+     */
+    public synchronized boolean owe(PayoutEvent event) {
+        Objects.requireNonNull(event, "event");
+        return this.append(OWED, event.getId(), event);
+    }
+
+    /**
+     * Records the event claimed by this server, before it is deposited.
+     * @return {@code false} if it could not be written.
+     */
+    public synchronized boolean claim(PayoutEvent event) {
+        Objects.requireNonNull(event, "event");
+        return this.append(CLAIMED, event.getId(), event);
+    }
+
+    /**
+     * Records that this server is not responsible for the event anymore.
+     */
+    public synchronized void settle(UUID eventId) {
+        Objects.requireNonNull(eventId, "eventId");
+        if (this.open.containsKey(eventId) && this.append(SETTLED, eventId, null)
+                && this.records >= COMPACT_AFTER && this.records > this.open.size() * 2) {
+            try {
+                this.compact();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not compact the payout journal.", e);
+            }
+        }
+    }
+
+    private boolean append(byte state, UUID eventId, PayoutEvent event) {
+        if (this.channel == null) {
+            return false;
+        }
+
+        this.bytes.reset();
+        try {
+            this.write(state, eventId, event);
+            ByteBuffer buffer = ByteBuffer.wrap(this.bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                this.channel.write(buffer);
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not write " + (event == null ? eventId : event) + " to the payout journal.", e);
+            return false;
+        }
+
+        this.apply(state, eventId, event);
+        this.records++;
+        return true;
+    }
+
+    /**
+     * @param event {@code null} for {@link #SETTLED}, which records the ID only.
+     */
+    private void write(byte state, UUID eventId, PayoutEvent event) throws IOException {
+        this.output.writeByte(state);
+        if (event == null) {
+            this.output.writeLong(eventId.getMostSignificantBits());
+            this.output.writeLong(eventId.getLeastSignificantBits());
+        } else {
+            event.write(this.output);
+        }
+        this.output.flush();
+    }
+
+    private void apply(byte state, UUID eventId, PayoutEvent event) {
+        if (state == SETTLED) {
+            this.open.remove(eventId);
+        } else {
+            this.open.put(eventId, new Entry(state, event));
+        }
+    }
+
+    private void read(byte[] data) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+        if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+            throw new IOException("Unsupported payout journal format");
+        }
+
+        while (input.available() > 0) {
+            try {
+                byte state = input.readByte();
+                if (state == SETTLED) {
+                    this.apply(state, new UUID(input.readLong(), input.readLong()), null);
+                } else if (state == OWED || state == CLAIMED) {
+                    PayoutEvent event = PayoutEvent.read(input);
+                    this.apply(state, event.getId(), event);
+                } else {
+                    throw new IOException("Unknown payout journal record: " + state);
+                }
+            } catch (EOFException e) {
+                logger.warning("Skipping a record cut by a crash at the end of the payout journal.");
+                break;
+            }
+        }
+    }
+
+    /**
+     * Rewrites the file with open events only, and appends to it from now on.
+     */
+    private void compact() throws IOException {
+        Path temporary = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            this.bytes.reset();
+            this.output.writeInt(MAGIC);
+            this.output.writeInt(FORMAT_VERSION);
+            for (Entry entry : this.open.values()) {
+                this.write(entry.state, entry.event.getId(), entry.event);
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(this.bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+
+        // the old file stays in use until the new one replaces it
+        Files.move(temporary, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        FileChannel previous = this.channel;
+        this.channel = null; // appending to the replaced file would lose the records
+        if (previous != null) {
+            previous.close();
+        }
+        this.channel = FileChannel.open(this.file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.records = this.open.size();
+    }
+
+    private static class Entry {
+        final byte state;
+        final PayoutEvent event;
+
+        Entry(byte state, PayoutEvent event) {
+            this.state = state;
+            this.event = event;
+        }
+    }
+}
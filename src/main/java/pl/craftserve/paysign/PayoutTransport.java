@@ -0,0 +1,58 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Carries {@link PayoutEvent}s between servers of the network. Other plugins
+ * may provide their own transport (eg. Redis or plugin messaging) by
+ * registering it in the {@link org.bukkit.plugin.ServicesManager}.
+ *
+ * <p>All methods are called from a single I/O thread and may block.</p>
+ */
+public interface PayoutTransport {
+    /**
+     * Opens the transport, called before any other method.
+     */
+    void open() throws IOException;
+
+    /**
+     * Closes the transport, no other method is called afterwards.
+     */
+    void close() throws IOException;
+
+    /**
+     * Publishes the batch of events to all servers of the network, including
+     * this one.
+     */
+    void publish(List<PayoutEvent> batch) throws IOException;
+
+    /**
+     * @return Events published since the last call. An event may be received
+     * more than once, eg. after a restart.
+     */
+    List<PayoutEvent> receive() throws IOException;
+
+    /**
+     * Claims the event for this server. For any event ID this returns
+     * {@code true} at most once in the whole network.
+     */
+    boolean claim(UUID eventId) throws IOException;
+}
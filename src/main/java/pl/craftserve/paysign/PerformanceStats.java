@@ -0,0 +1,229 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cheap counters describing how much work the plugin does under load. All
+ * methods are thread-safe, so they can be updated from any region thread.
+ */
+public class PerformanceStats {
+    private static final int TICK_SAMPLES = 20 * 60; // last minute
+    private static final int LATENCY_SAMPLES = 1024;
+
+    private final LongAdder clicks = new LongAdder();
+    private final LongAdder paidClicks = new LongAdder();
+    private final LongAdder passClicks = new LongAdder();
+    private final LongAdder triggers = new LongAdder();
+    private final LongAdder payments = new LongAdder();
+    private final LongAdder paymentEconomyCalls = new LongAdder();
+    private final LongAdder otherEconomyCalls = new LongAdder();
+    private final LongAdder forwardedPayouts = new LongAdder();
+    private final LongAdder appliedPayouts = new LongAdder();
+
+    private volatile CircuitBreakerGateway.State breakerState = CircuitBreakerGateway.State.CLOSED;
+    private final LongAdder breakerOpenings = new LongAdder();
+    private final LongAdder breakerRejections = new LongAdder();
+
+    private volatile boolean overloaded;
+    private final LongAdder overloadSwitches = new LongAdder();
+    private final LongAdder droppedCosmetics = new LongAdder();
+    private final LongAdder deferredTasks = new LongAdder();
+    private final LongAdder overflowedDeferred = new LongAdder();
+
+    private final LongAdder currentTickNanos = new LongAdder();
+    private final long[] tickNanos = new long[TICK_SAMPLES];
+    private int tickIndex;
+    private int tickCount;
+
+    private final long[] latencyNanos = new long[LATENCY_SAMPLES];
+    private int latencyIndex;
+    private int latencyCount;
+
+    public void recordClick() {
+        this.clicks.increment();
+    }
+
+    public void recordPaidClick() {
+        this.paidClicks.increment();
+    }
+
+    public void recordPassClick() {
+        this.passClicks.increment();
+    }
+
+    public void recordTrigger() {
+        this.triggers.increment();
+    }
+
+    /**
+     * @param economyCalls Number of economy calls made by a single payment,
+     *                     successful or not.
+     */
+    public void recordPayment(int economyCalls) {
+        this.payments.increment();
+        this.paymentEconomyCalls.add(economyCalls);
+    }
+
+    /**
+     * Records an economy call made outside of payments, eg. validating an owner.
+     */
+    public void recordEconomyCall() {
+        this.otherEconomyCalls.increment();
+    }
+
+    public void recordForwardedPayout() {
+        this.forwardedPayouts.increment();
+    }
+
+    public void recordAppliedPayout() {
+        this.appliedPayouts.increment();
+    }
+
+    public void recordBreakerState(CircuitBreakerGateway.State state) {
+        this.breakerState = Objects.requireNonNull(state, "state");
+        if (state.equals(CircuitBreakerGateway.State.OPEN)) {
+            this.breakerOpenings.increment();
+        }
+    }
+
+    public void recordBreakerRejection() {
+        this.breakerRejections.increment();
+    }
+
+    public void recordOverloadSwitch(boolean overloaded) {
+        this.overloaded = overloaded;
+        this.overloadSwitches.increment();
+    }
+
+    public void recordDroppedCosmetic() {
+        this.droppedCosmetics.increment();
+    }
+
+    public void recordDeferred() {
+        this.deferredTasks.increment();
+    }
+
+    public void recordOverflowedDeferred() {
+        this.overflowedDeferred.increment();
+    }
+
+    public void recordPluginTime(long nanos) {
+        this.currentTickNanos.add(nanos);
+    }
+
+    public synchronized void recordRedstoneLatency(long nanos) {
+        this.latencyNanos[this.latencyIndex] = nanos;
+        this.latencyIndex = (this.latencyIndex + 1) % LATENCY_SAMPLES;
+        this.latencyCount = Math.min(this.latencyCount + 1, LATENCY_SAMPLES);
+    }
+
+    /**
+     * Closes the current tick window. Should be called once every tick.
+     */
+    public synchronized void tick() {
+        this.tickNanos[this.tickIndex] = this.currentTickNanos.sumThenReset();
+        this.tickIndex = (this.tickIndex + 1) % TICK_SAMPLES;
+        this.tickCount = Math.min(this.tickCount + 1, TICK_SAMPLES);
+    }
+
+    /**
+     * @return Plugin time spent in the last closed tick window.
+     */
+    public synchronized long getLastTickNanos() {
+        return this.tickCount == 0 ? 0L : this.tickNanos[(this.tickIndex + TICK_SAMPLES - 1) % TICK_SAMPLES];
+    }
+
+    public synchronized void reset() {
+        this.clicks.reset();
+        this.paidClicks.reset();
+        this.passClicks.reset();
+        this.triggers.reset();
+        this.payments.reset();
+        this.paymentEconomyCalls.reset();
+        this.otherEconomyCalls.reset();
+        this.forwardedPayouts.reset();
+        this.appliedPayouts.reset();
+        this.breakerOpenings.reset();
+        this.breakerRejections.reset();
+        this.overloadSwitches.reset();
+        this.droppedCosmetics.reset();
+        this.deferredTasks.reset();
+        this.overflowedDeferred.reset();
+        this.currentTickNanos.reset();
+        this.tickIndex = this.tickCount = 0;
+        this.latencyIndex = this.latencyCount = 0;
+    }
+
+    public synchronized String[] render() {
+        long clicks = this.clicks.sum();
+        long paidClicks = this.paidClicks.sum();
+        long payments = this.payments.sum();
+
+        long tickTotal = 0L;
+        long tickMax = 0L;
+        for (int i = 0; i < this.tickCount; i++) {
+            tickTotal += this.tickNanos[i];
+            tickMax = Math.max(tickMax, this.tickNanos[i]);
+        }
+
+        long[] latencies = Arrays.copyOf(this.latencyNanos, this.latencyCount);
+        Arrays.sort(latencies);
+
+        return new String[] {
+                "Clicks: " + clicks + " (paid: " + paidClicks + ", pass: " + this.passClicks.sum() + ")",
+                "Triggers executed: " + this.triggers.sum(),
+                "Economy calls: " + ratio(this.paymentEconomyCalls.sum(), payments) + " per payment (" + payments +
+                        " payments), " + this.otherEconomyCalls.sum() + " other calls",
+                "Economy breaker: " + this.breakerState.name().toLowerCase(Locale.ROOT) + " (opened " + this.breakerOpenings.sum() +
+                        " times, rejected clicks: " + this.breakerRejections.sum() + ")",
+                "Network payouts: forwarded " + this.forwardedPayouts.sum() + ", applied " + this.appliedPayouts.sum(),
+                "Plugin time per tick (last " + this.tickCount + " ticks): avg " +
+                        micros(this.tickCount == 0 ? 0L : tickTotal / this.tickCount) + ", max " + micros(tickMax),
+                "Click-to-redstone latency (last " + latencies.length + " triggers): p50 " +
+                        millis(percentile(latencies, .5D)) + ", p99 " + millis(percentile(latencies, .99D)),
+                "Overload mode: " + (this.overloaded ? "active" : "inactive") + " (switches: " + this.overloadSwitches.sum() +
+                        ", dropped cosmetics: " + this.droppedCosmetics.sum() + ", deferred: " + this.deferredTasks.sum() +
+                        ", run early when full: " + this.overflowedDeferred.sum() + ")",
+        };
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0L;
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static String ratio(long dividend, long divisor) {
+        return divisor == 0 ? "-" : String.format("%.2f", (double) dividend / divisor);
+    }
+
+    private static String micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos) + "µs";
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1fms", nanos / 1_000_000D);
+    }
+}
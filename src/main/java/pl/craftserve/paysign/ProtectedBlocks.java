@@ -0,0 +1,235 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.paysign;
+
+import org.bukkit.block.Block;
+
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Blocks protected by active triggers. Signs may share their base block, so
+ * every block is counted and stays protected until its last trigger releases
+ * it. Looked up for every physics, piston and explosion event, so a lookup
+ * neither locks nor allocates: positions are packed into a long and stored in
+ * an open addressing table, which is read optimistically.
+ */
+final class ProtectedBlocks {
+    private static final int INITIAL_CAPACITY = 64; // power of two
+
+    private final StampedLock lock = new StampedLock();
+    private Table table = new Table(INITIAL_CAPACITY); // replaced under the write lock
+    private volatile int size;
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean contains(Block block) {
+        Objects.requireNonNull(block, "block");
+        return this.contains(block.getWorld().getUID(), block.getX(), block.getY(), block.getZ());
+    }
+
+    boolean contains(UUID worldId, int x, int y, int z) {
+        Objects.requireNonNull(worldId, "worldId");
+        long position = pack(x, y, z);
+
+        long stamp = this.lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            boolean found = this.table.indexOf(worldId, position) >= 0;
+            if (this.lock.validate(stamp)) {
+                return found;
+            }
+        }
+
+        stamp = this.lock.readLock();
+        try {
+            return this.table.indexOf(worldId, position) >= 0;
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    void add(BlockKey key) {
+        Objects.requireNonNull(key, "key");
+        this.add(key.getWorldId(), key.getX(), key.getY(), key.getZ());
+    }
+
+    void add(Block block) {
+        Objects.requireNonNull(block, "block");
+        this.add(block.getWorld().getUID(), block.getX(), block.getY(), block.getZ());
+    }
+
+    private void add(UUID worldId, int x, int y, int z) {
+        long position = pack(x, y, z);
+        long stamp = this.lock.writeLock();
+        try {
+            int index = this.table.indexOf(worldId, position);
+            if (index >= 0) {
+                this.table.counts[index]++;
+                return;
+            }
+
+            if ((this.size + 1) * 2 > this.table.positions.length) {
+                this.table = this.table.resize();
+            }
+            this.table.insert(worldId, position);
+            this.size++;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    void remove(BlockKey key) {
+        Objects.requireNonNull(key, "key");
+        this.remove(key.getWorldId(), key.getX(), key.getY(), key.getZ());
+    }
+
+    void remove(Block block) {
+        Objects.requireNonNull(block, "block");
+        this.remove(block.getWorld().getUID(), block.getX(), block.getY(), block.getZ());
+    }
+
+    private void remove(UUID worldId, int x, int y, int z) {
+        long position = pack(x, y, z);
+        long stamp = this.lock.writeLock();
+        try {
+            int index = this.table.indexOf(worldId, position);
+            if (index >= 0 && --this.table.counts[index] == 0) {
+                this.table.delete(index);
+                this.size--;
+            }
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    void clear() {
+        long stamp = this.lock.writeLock();
+        try {
+            this.table = new Table(INITIAL_CAPACITY);
+            this.size = 0;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Packs block coordinates the way Minecraft does, 26 bits for x and z
+     * and 12 bits for y.
+     */
+    static long pack(int x, int y, int z) {
+        return ((long) x & 0x3FFFFFFL) << 38 | ((long) z & 0x3FFFFFFL) << 12 | (long) y & 0xFFFL;
+    }
+
+    private static int hash(UUID worldId, long position) {
+        long hash = position * 0x9E3779B97F4A7C15L ^ worldId.hashCode();
+        return (int) (hash ^ hash >>> 32);
+    }
+
+    /**
+     * Linear probing table, at most half full. An empty slot has no world.
+     */
+    private static final class Table {
+        final UUID[] worlds;
+        final long[] positions;
+        final int[] counts;
+
+        Table(int capacity) {
+            this.worlds = new UUID[capacity];
+            this.positions = new long[capacity];
+            this.counts = new int[capacity];
+        }
+
+        /**
+         * May run concurrently with writes when read optimistically, so it
+         * never probes more than the whole table.
+         */
+        int indexOf(UUID worldId, long position) {
+            int mask = this.positions.length - 1;
+            int index = hash(worldId, position) & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                UUID world = this.worlds[index];
+                if (world == null) {
+                    return -1;
+                }
+                if (this.positions[index] == position && world.equals(worldId)) {
+                    return index;
+                }
+                index = (index + 1) & mask;
+            }
+            return -1;
+        }
+
+        void insert(UUID worldId, long position) {
+            int mask = this.positions.length - 1;
+            int index = hash(worldId, position) & mask;
+            while (this.worlds[index] != null) {
+                index = (index + 1) & mask;
+            }
+            this.worlds[index] = worldId;
+            this.positions[index] = position;
+            this.counts[index] = 1;
+        }
+
+        /**
+         * Removes the entry and shifts the following ones back, so that no
+         * probe sequence is broken by the hole.
+         */
+        void delete(int index) {
+            int mask = this.positions.length - 1;
+            int hole = index;
+            int next = index;
+            while (true) {
+                next = (next + 1) & mask;
+                UUID world = this.worlds[next];
+                if (world == null) {
+                    break;
+                }
+
+                int home = hash(world, this.positions[next]) & mask;
+                boolean reachable = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+                if (!reachable) { // its probe sequence passes the hole, move it there
+                    this.worlds[hole] = world;
+                    this.positions[hole] = this.positions[next];
+                    this.counts[hole] = this.counts[next];
+                    hole = next;
+                }
+            }
+            this.worlds[hole] = null;
+            this.positions[hole] = 0L;
+            this.counts[hole] = 0;
+        }
+
+        Table resize() {
+            Table resized = new Table(this.positions.length * 2);
+            for (int i = 0; i < this.positions.length; i++) {
+                if (this.worlds[i] != null) {
+                    resized.insert(this.worlds[i], this.positions[i]);
+                    resized.counts[resized.indexOf(this.worlds[i], this.positions[i])] = this.counts[i];
+                }
+            }
+            return resized;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.plugin.Plugin;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * {@link TaskScheduler} for region-threaded (Folia) servers. The API isn't
+ * available at compile time, so it is bound reflectively once on creation.
+ */
+public class RegionizedTaskScheduler implements TaskScheduler {
+    private static final String REGIONIZED_SERVER_CLASS = "io.papermc.paper.threadedregions.RegionizedServer";
+    private static final String SCHEDULER_PACKAGE = "io.papermc.paper.threadedregions.scheduler.";
+
+    private final Plugin plugin;
+
+    private final Object regionScheduler;
+    private final Method regionExecute;
+    private final Method regionRunDelayed;
+
+    private final Object globalScheduler;
+    private final Method globalExecute;
+    private final Method globalRunDelayed;
+    private final Method globalRunAtFixedRate;
+
+    private final Object asyncScheduler;
+    private final Method asyncRunNow;
+
+    private final Method taskCancel;
+
+    public RegionizedTaskScheduler(Plugin plugin) throws ReflectiveOperationException {
+        this.plugin = Objects.requireNonNull(plugin, "plugin");
+        Server server = plugin.getServer();
+
+        // Bind methods of the API interfaces, implementations may not be accessible.
+        Class<?> regionType = Class.forName(SCHEDULER_PACKAGE + "RegionScheduler");
+        this.regionScheduler = Server.class.getMethod("getRegionScheduler").invoke(server);
+        this.regionExecute = regionType.getMethod("execute", Plugin.class, Location.class, Runnable.class);
+        this.regionRunDelayed = regionType.getMethod("runDelayed", Plugin.class, Location.class, Consumer.class, long.class);
+
+        Class<?> globalType = Class.forName(SCHEDULER_PACKAGE + "GlobalRegionScheduler");
+        this.globalScheduler = Server.class.getMethod("getGlobalRegionScheduler").invoke(server);
+        this.globalExecute = globalType.getMethod("execute", Plugin.class, Runnable.class);
+        this.globalRunDelayed = globalType.getMethod("runDelayed", Plugin.class, Consumer.class, long.class);
+        this.globalRunAtFixedRate = globalType.getMethod("runAtFixedRate", Plugin.class, Consumer.class, long.class, long.class);
+
+        Class<?> asyncType = Class.forName(SCHEDULER_PACKAGE + "AsyncScheduler");
+        this.asyncScheduler = Server.class.getMethod("getAsyncScheduler").invoke(server);
+        this.asyncRunNow = asyncType.getMethod("runNow", Plugin.class, Consumer.class);
+
+        this.taskCancel = Class.forName(SCHEDULER_PACKAGE + "ScheduledTask").getMethod("cancel");
+    }
+
+    public static boolean isSupported() {
+        try {
+            Class.forName(REGIONIZED_SERVER_CLASS);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void runAt(Location location, Runnable task) {
+        Objects.requireNonNull(location, "location");
+        Objects.requireNonNull(task, "task");
+        this.invoke(this.regionExecute, this.regionScheduler, this.plugin, location, task);
+    }
+
+    @Override
+    public void runAtLater(Location location, Runnable task, long delay) {
+        Objects.requireNonNull(location, "location");
+        this.invoke(this.regionRunDelayed, this.regionScheduler, this.plugin, location, consumer(task), ticks(delay));
+    }
+
+    @Override
+    public void runGlobal(Runnable task) {
+        Objects.requireNonNull(task, "task");
+        this.invoke(this.globalExecute, this.globalScheduler, this.plugin, task);
+    }
+
+    @Override
+    public void runGlobalLater(Runnable task, long delay) {
+        this.invoke(this.globalRunDelayed, this.globalScheduler, this.plugin, consumer(task), ticks(delay));
+    }
+
+    @Override
+    public Task runGlobalTimer(Runnable task, long delay, long period) {
+        Object scheduledTask = this.invoke(this.globalRunAtFixedRate, this.globalScheduler,
+                this.plugin, consumer(task), ticks(delay), ticks(period));
+        return () -> this.invoke(this.taskCancel, scheduledTask);
+    }
+
+    @Override
+    public void runAsync(Runnable task) {
+        this.invoke(this.asyncRunNow, this.asyncScheduler, this.plugin, consumer(task));
+    }
+
+    @Override
+    public boolean isRegionThreaded() {
+        return true;
+    }
+
+    private Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Could not call " + method.getName() + " on the scheduler.", cause);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Could not call " + method.getName() + " on the scheduler.", e);
+        }
+    }
+
+    private static Consumer<Object> consumer(Runnable task) {
+        Objects.requireNonNull(task, "task");
+        return scheduledTask -> task.run();
+    }
+
+    private static long ticks(long delay) {
+        return Math.max(1L, delay); // region schedulers reject delays below one tick
+    }
+}
@@ -27,6 +27,8 @@ import java.util.Optional;
  * Parsers {@link PaySign} from {@link Sign}s or directly from its lines.
  */
 public class SignDataParser {
+    private static final char PASS_SEPARATOR = '/';
+
     public Optional<PaySign> parse(Sign sign) throws ParseException {
         Objects.requireNonNull(sign, "sign");
         return this.parse(sign, sign.getLines());
@@ -37,8 +39,9 @@ public class SignDataParser {
         Objects.requireNonNull(lines, "lines");
         Preconditions.checkArgument(lines.length == 4, "4 lines expected, " + lines.length + " given");
 
-        // identifier
-        if (!ChatColor.stripColor(lines[0]).equals(PaySign.NAMESPACE)) {
+        // identifier, stripping colors only if there are any, it's parsed on every click
+        String identifier = lines[0].indexOf(ChatColor.COLOR_CHAR) == -1 ? lines[0] : ChatColor.stripColor(lines[0]);
+        if (!identifier.equals(PaySign.NAMESPACE)) {
             return Optional.empty();
         }
 
@@ -53,9 +56,19 @@ public class SignDataParser {
             throw new ParseException(2, "No price given");
         }
 
+        // optional pass suffix, eg. "10/20x" (20 uses) or "10/30m" (30 minutes)
+        String priceText = lines[2];
+        Pass.Offer passOffer = null;
+
+        int passSeparator = priceText.indexOf(PASS_SEPARATOR);
+        if (passSeparator != -1) {
+            passOffer = this.parsePassOffer(priceText.substring(passSeparator + 1));
+            priceText = priceText.substring(0, passSeparator);
+        }
+
         double price;
         try {
-            price = Double.parseDouble(lines[2]);
+            price = Double.parseDouble(priceText);
         } catch (NumberFormatException e) {
             throw new ParseException(2, "Price is not a number", e);
         }
@@ -78,7 +91,44 @@ public class SignDataParser {
             }
         }
 
-        return Optional.of(new PaySign(sign, playerName, price, delay));
+        return Optional.of(new PaySign(sign, playerName, price, delay, passOffer));
+    }
+
+    private Pass.Offer parsePassOffer(String text) throws ParseException {
+        if (text.isEmpty()) {
+            throw new ParseException(2, "No pass given");
+        }
+
+        char suffix = Character.toLowerCase(text.charAt(text.length() - 1));
+        Pass.Offer.Kind kind = null;
+        for (Pass.Offer.Kind candidate : Pass.Offer.Kind.values()) {
+            if (candidate.getSuffix() == suffix) {
+                kind = candidate;
+                break;
+            }
+        }
+
+        if (kind == null) {
+            throw new ParseException(2, "Pass must end with x (uses) or m (minutes)");
+        }
+
+        int amount;
+        try {
+            amount = Integer.parseInt(text.substring(0, text.length() - 1));
+        } catch (NumberFormatException e) {
+            throw new ParseException(2, "Pass is not a number", e);
+        }
+
+        if (amount < 1) {
+            throw new ParseException(2, "Pass must be positive");
+        }
+
+        // the purchasing click is the first use, so a single use pass would be used up immediately
+        if (kind.equals(Pass.Offer.Kind.USES) && amount < 2) {
+            throw new ParseException(2, "Pass must give at least 2 uses");
+        }
+
+        return new Pass.Offer(kind, amount);
     }
 
     public static class ParseException extends Exception {
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.Chunk;
+import org.bukkit.Tag;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.Sign;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent index of PaySign locations and their owners, so that signs of a
+ * player can be found without scanning the worlds. Signs are added when they
+ * are created or clicked, and removed when broken. Signs destroyed in any
+ * other way are removed lazily, once they are looked up and found missing.
+ *
+ * <p>Signs created before the index existed are added once their chunk is
+ * loaded. Every chunk is scanned once per run, so the index is only complete
+ * for chunks which have been loaded since the start.</p>
+ */
+public class SignIndex implements Listener {
+    static final Logger logger = Logger.getLogger(SignIndex.class.getName());
+
+    private static final int FORMAT_VERSION = 1;
+    private static final long SAVE_INTERVAL = 60L; // seconds
+
+    private final Plugin plugin;
+    private final PluginManager pluginManager;
+    private final TaskScheduler scheduler;
+    private final SignDataParser parser;
+    private final Path file;
+
+    private final Map<BlockKey, String> owners = new ConcurrentHashMap<>();
+    private final Map<UUID, Set<Long>> scannedChunks = new ConcurrentHashMap<>();
+    private volatile boolean dirty;
+    private ScheduledExecutorService ioExecutor;
+
+    public SignIndex(Plugin plugin, PluginManager pluginManager, TaskScheduler scheduler, SignDataParser parser, Path file) {
+        this.plugin = Objects.requireNonNull(plugin, "plugin");
+        this.pluginManager = Objects.requireNonNull(pluginManager, "pluginManager");
+        this.scheduler = Objects.requireNonNull(scheduler, "scheduler");
+        this.parser = Objects.requireNonNull(parser, "parser");
+        this.file = Objects.requireNonNull(file, "file");
+    }
+
+    public void enable() {
+        if (Files.exists(this.file)) {
+            try (InputStream stream = new BufferedInputStream(Files.newInputStream(this.file))) {
+                this.read(new DataInputStream(stream));
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not load the sign index, it will be rebuilt as signs are used.", e);
+            }
+        }
+        logger.fine("Loaded " + this.owners.size() + " signs to the index.");
+
+        this.ioExecutor = IoExecutors.create(this.plugin.getName() + " Sign Index I/O");
+        this.ioExecutor.scheduleWithFixedDelay(this::saveDirty, SAVE_INTERVAL, SAVE_INTERVAL, TimeUnit.SECONDS);
+        this.pluginManager.registerEvents(this, this.plugin);
+
+        // after a reload, chunks of other regions can't be touched from here, they are scanned on their next load
+        if (!this.scheduler.isRegionThreaded()) {
+            for (World world : this.plugin.getServer().getWorlds()) {
+                for (Chunk chunk : world.getLoadedChunks()) {
+                    this.scan(chunk);
+                }
+            }
+        }
+    }
+
+    public void disable() {
+        HandlerList.unregisterAll(this);
+        if (this.ioExecutor != null) {
+            IoExecutors.shutdown(this.ioExecutor, "the sign index to be saved");
+            this.ioExecutor = null;
+        }
+
+        this.saveDirty();
+        this.owners.clear();
+        this.scannedChunks.clear();
+    }
+
+    public void put(BlockKey sign, String ownerName) {
+        Objects.requireNonNull(sign, "sign");
+        Objects.requireNonNull(ownerName, "ownerName");
+
+        String owner = ownerName.toLowerCase(Locale.ROOT);
+        if (!owner.equals(this.owners.put(sign, owner))) {
+            this.dirty = true;
+        }
+    }
+
+    public void remove(BlockKey sign) {
+        Objects.requireNonNull(sign, "sign");
+        if (this.owners.remove(sign) != null) {
+            this.dirty = true;
+        }
+    }
+
+    /**
+     * @return Indexed signs of the owner, some of them may not exist anymore.
+     */
+    public List<BlockKey> find(String ownerName) {
+        Objects.requireNonNull(ownerName, "ownerName");
+        String owner = ownerName.toLowerCase(Locale.ROOT);
+
+        List<BlockKey> signs = new ArrayList<>();
+        this.owners.forEach((sign, signOwner) -> {
+            if (signOwner.equals(owner)) {
+                signs.add(sign);
+            }
+        });
+        return signs;
+    }
+
+    /**
+     * Iterates over a weakly consistent view of the index, without copying it.
+     */
+    public void forEach(BiConsumer<BlockKey, String> action) {
+        Objects.requireNonNull(action, "action");
+        this.owners.forEach(action);
+    }
+
+    public int size() {
+        return this.owners.size();
+    }
+
+    private void read(DataInputStream input) throws IOException {
+        int version = input.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported sign index format version: " + version);
+        }
+
+        int count = input.readInt();
+        for (int i = 0; i < count; i++) {
+            this.owners.put(BlockKey.read(input), input.readUTF());
+        }
+    }
+
+    private void saveDirty() {
+        if (!this.dirty) {
+            return;
+        }
+        this.dirty = false;
+
+        // a consistent copy, the index keeps changing while it's written
+        Map<BlockKey, String> snapshot = new HashMap<>(this.owners);
+        Path temporary = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        try {
+            try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+                DataOutputStream output = new DataOutputStream(stream);
+                output.writeInt(FORMAT_VERSION);
+                output.writeInt(snapshot.size());
+                for (Map.Entry<BlockKey, String> entry : snapshot.entrySet()) {
+                    entry.getKey().write(output);
+                    output.writeUTF(entry.getValue());
+                }
+                output.flush();
+            }
+            Files.move(temporary, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            this.dirty = true;
+            logger.log(Level.SEVERE, "Could not save the sign index.", e);
+        }
+    }
+
+    /**
+     * Adds PaySigns of the chunk which are not indexed yet, once per run.
+     */
+    void scan(Chunk chunk) {
+        long key = ((long) chunk.getX() << 32) | (chunk.getZ() & 0xFFFFFFFFL);
+        if (!this.scannedChunks.computeIfAbsent(chunk.getWorld().getUID(), world -> ConcurrentHashMap.newKeySet()).add(key)) {
+            return;
+        }
+
+        for (BlockState state : chunk.getTileEntities()) {
+            if (!(state instanceof Sign)) {
+                continue;
+            }
+
+            Optional<PaySign> paySign;
+            try {
+                paySign = this.parser.parse((Sign) state);
+            } catch (SignDataParser.ParseException ignored) {
+                continue;
+            }
+            paySign.ifPresent(sign -> this.put(BlockKey.of(state.getBlock()), sign.getPlayerName()));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void indexLoaded(ChunkLoadEvent event) {
+        if (!event.isNewChunk()) { // a new chunk has no signs yet
+            this.scan(event.getChunk());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void removeBroken(BlockBreakEvent event) {
+        Block block = event.getBlock();
+        if (Tag.SIGNS.isTagged(block.getType())) {
+            this.remove(BlockKey.of(block));
+        }
+    }
+}
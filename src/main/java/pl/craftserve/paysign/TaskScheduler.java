@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.Location;
+import org.bukkit.plugin.Plugin;
+
+import java.util.Objects;
+import java.util.logging.Logger;
+
+/**
+ * Schedules plugin tasks. Tasks touching the world are scheduled at a
+ * {@link Location}, so that region-threaded servers can run them on the thread
+ * owning that region. Everything else runs on the global (main) thread or
+ * asynchronously.
+ */
+public interface TaskScheduler {
+    Logger logger = Logger.getLogger(TaskScheduler.class.getName());
+
+    void runAt(Location location, Runnable task);
+
+    void runAtLater(Location location, Runnable task, long delay);
+
+    void runGlobal(Runnable task);
+
+    void runGlobalLater(Runnable task, long delay);
+
+    Task runGlobalTimer(Runnable task, long delay, long period);
+
+    void runAsync(Runnable task);
+
+    /**
+     * @return {@code true} if world tasks run on threads of their regions,
+     * {@code false} if the global thread owns the whole world.
+     */
+    boolean isRegionThreaded();
+
+    /**
+     * Handle of a repeating task.
+     */
+    interface Task {
+        void cancel();
+    }
+
+    /**
+     * Creates the best scheduler for the running server, falling back to the
+     * {@link org.bukkit.scheduler.BukkitScheduler}.
+     */
+    static TaskScheduler create(Plugin plugin) {
+        Objects.requireNonNull(plugin, "plugin");
+        if (RegionizedTaskScheduler.isSupported()) {
+            try {
+                return new RegionizedTaskScheduler(plugin);
+            } catch (ReflectiveOperationException e) {
+                logger.warning("Region-threaded server detected, but its scheduler API is unavailable: " + e);
+            }
+        }
+        return new BukkitTaskScheduler(plugin, plugin.getServer().getScheduler());
+    }
+}
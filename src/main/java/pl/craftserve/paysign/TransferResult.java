@@ -0,0 +1,85 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.craftserve.paysign;
+
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Result of a {@link PaymentGateway#transfer(org.bukkit.entity.Player, String, String, double)}.
+ */
+public final class TransferResult {
+    public enum Status {
+        SUCCESS, INSUFFICIENT_FUNDS, WITHDRAW_FAILED, DEPOSIT_FAILED,
+        /** The economy is not called at all, eg. because it is failing. */
+        UNAVAILABLE
+    }
+
+    private final Status status;
+    private final double amount;
+    private final String errorMessage;
+    private final boolean forwarded;
+
+    private TransferResult(Status status, double amount, String errorMessage, boolean forwarded) {
+        this.status = Objects.requireNonNull(status, "status");
+        this.amount = amount;
+        this.errorMessage = errorMessage;
+        this.forwarded = forwarded;
+    }
+
+    public static TransferResult success(double amount) {
+        return new TransferResult(Status.SUCCESS, amount, null, false);
+    }
+
+    /**
+     * The payer has been charged, and the owner is going to be paid (and
+     * notified) on another server.
+     */
+    public static TransferResult forwarded(double amount) {
+        return new TransferResult(Status.SUCCESS, amount, null, true);
+    }
+
+    public static TransferResult failure(Status status, String errorMessage) {
+        Objects.requireNonNull(status, "status");
+        if (status.equals(Status.SUCCESS)) {
+            throw new IllegalArgumentException("Not a failure status");
+        }
+        return new TransferResult(status, 0D, errorMessage, false);
+    }
+
+    public Status getStatus() {
+        return this.status;
+    }
+
+    public boolean isSuccess() {
+        return this.status.equals(Status.SUCCESS);
+    }
+
+    /**
+     * @return Amount withdrawn from the payer.
+     */
+    public double getAmount() {
+        return this.amount;
+    }
+
+    public boolean isForwarded() {
+        return this.forwarded;
+    }
+
+    public Optional<String> getErrorMessage() {
+        return Optional.ofNullable(this.errorMessage);
+    }
+}
@@ -16,185 +16,204 @@
 
 package pl.craftserve.paysign;
 
+import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.Sound;
 import org.bukkit.SoundCategory;
 import org.bukkit.block.Block;
-import org.bukkit.block.BlockFace;
-import org.bukkit.block.Sign;
 import org.bukkit.block.data.BlockData;
 import org.bukkit.block.data.type.Switch;
-import org.bukkit.event.EventHandler;
-import org.bukkit.event.EventPriority;
-import org.bukkit.event.HandlerList;
-import org.bukkit.event.Listener;
-import org.bukkit.event.block.BlockBreakEvent;
-import org.bukkit.event.block.BlockBurnEvent;
-import org.bukkit.event.block.BlockExplodeEvent;
-import org.bukkit.event.block.BlockFadeEvent;
-import org.bukkit.event.block.BlockPhysicsEvent;
-import org.bukkit.event.block.BlockPistonExtendEvent;
-import org.bukkit.event.block.BlockPistonRetractEvent;
-import org.bukkit.event.entity.EntityChangeBlockEvent;
-import org.bukkit.event.entity.EntityExplodeEvent;
-import org.bukkit.plugin.Plugin;
+import org.bukkit.entity.Player;
 
 import java.util.Objects;
-import java.util.function.Predicate;
-import java.util.function.Supplier;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 /**
- * Triggers current for {@link PaySign}s.
+ * Triggers current for {@link PaySign}s. Instances are pooled and reused by
+ * the {@link TriggerRegistry}, so a trigger is prepared for every click
+ * instead of being created.
  */
-public class Trigger implements Listener, Predicate<Block> {
+public class Trigger {
     static final Logger logger = Logger.getLogger(Trigger.class.getName());
 
-    private static final Supplier<Switch> BUTTON_FACTORY = () -> (Switch) Material.OAK_BUTTON.createBlockData();
-    private static final BlockFace FLOOR_FACING = BlockFace.NORTH;
     private static final Sound SOUND_ON = Sound.BLOCK_WOODEN_BUTTON_CLICK_ON;
     private static final Sound SOUND_OFF = Sound.BLOCK_WOODEN_BUTTON_CLICK_OFF;
     private static final float SOUND_VOLUME = .3F;
 
-    private final Plugin plugin;
-    private final PaySign paySign;
-    private Block baseBlock;
+    // shared, never modified
+    private static final BlockData STONE = Material.STONE.createBlockData();
+    private static final BlockData BARRIER = Material.BARRIER.createBlockData();
 
-    public Trigger(Plugin plugin, PaySign paySign) {
-        this.plugin = Objects.requireNonNull(plugin, "plugin");
-        this.paySign = Objects.requireNonNull(paySign, "paySign");
+    private final LoadMonitor loadMonitor;
+
+    // created once per instance, so that scheduling a pooled trigger doesn't allocate them
+    final Runnable executeTask;
+    final Runnable flushTask;
+
+    // set while the fake button is placed, so that it's restored exactly once
+    private final AtomicBoolean armed = new AtomicBoolean();
+
+    private Block signBlock;
+    // set when executed and read when flushed, possibly by the disabling thread
+    private volatile Block baseBlock;
+
+    // set once the fake button is on the sign, so only such triggers are flushed
+    private volatile boolean placed;
+
+    private PaySign paySign;
+    private BlockKey signKey;
+    private Player player;
+    private Location location;
+    private long clickTime;
+    private long delay;
+    private int journalSlot = -1;
+
+    public Trigger(TriggerRegistry registry, LoadMonitor loadMonitor) {
+        Objects.requireNonNull(registry, "registry");
+        this.loadMonitor = Objects.requireNonNull(loadMonitor, "loadMonitor");
+        this.executeTask = () -> registry.execute(this);
+        this.flushTask = () -> registry.flush(this);
     }
 
-    @Override
-    public boolean test(Block block) {
-        if (this.paySign.getSign().getBlock().equals(block)) {
-            return true;
+    /**
+     * Prepares this trigger for a new click.
+     */
+    public void prepare(PaySign paySign, BlockKey signKey, Player player, long clickTime, long delay) {
+        this.paySign = Objects.requireNonNull(paySign, "paySign");
+        this.signKey = Objects.requireNonNull(signKey, "signKey");
+        this.player = Objects.requireNonNull(player, "player");
+        this.location = paySign.getSign().getLocation();
+        this.signBlock = paySign.getSign().getBlock();
+        this.clickTime = clickTime;
+        this.delay = delay;
+    }
+
+    /**
+     * Forgets the click, so a pooled trigger doesn't hold any world objects.
+     */
+    public void reset() {
+        this.paySign = null;
+        this.signKey = null;
+        this.player = null;
+        this.location = null;
+        this.signBlock = null;
+        this.baseBlock = null;
+        this.placed = false;
+        this.journalSlot = -1;
+    }
+
+    /**
+     * Marks the fake button as placed.
+     */
+    public void arm() {
+        if (!this.armed.compareAndSet(false, true)) {
+            throw new IllegalStateException("Trigger is already armed");
         }
-        return this.baseBlock != null && this.baseBlock.equals(block);
+    }
+
+    /**
+     * @return {@code true} if the caller should restore the sign, {@code false}
+     * if it is being restored by someone else already.
+     */
+    public boolean disarm() {
+        return this.armed.compareAndSet(true, false);
     }
 
     public PaySign getPaySign() {
         return this.paySign;
     }
 
-    public Switch execute() {
-        logger.finer("Registering events for trigger.");
-        this.plugin.getServer().getPluginManager().registerEvents(this, this.plugin);
-        this.baseBlock = this.paySign.getBaseBlock();
+    public BlockKey getSignKey() {
+        return this.signKey;
+    }
 
-        Switch button = this.createFakeButton();
-        this.paySign.getSign().getBlock().setBlockData(button);
-        this.playSound(SOUND_ON, .6F);
+    /**
+     * @return The block the sign is attached to, known once the trigger is
+     * executed.
+     */
+    public Block getBaseBlock() {
+        return this.baseBlock;
+    }
 
-        this.updateBaseBlockNeighbors();
-        return button;
+    /**
+     * @return {@code true} if the fake button has been placed and the sign
+     * has to be restored.
+     */
+    public boolean isPlaced() {
+        return this.placed;
     }
 
-    public Switch createFakeButton() {
-        logger.fine("Creating fake button.");
-        BlockFace facing = this.paySign.getFacing();
-        Switch button = BUTTON_FACTORY.get();
+    public Player getPlayer() {
+        return this.player;
+    }
 
-        button.setFace(facing.equals(BlockFace.UP) ? Switch.Face.FLOOR : Switch.Face.WALL);
-        button.setFacing(facing.equals(BlockFace.UP) ? FLOOR_FACING : facing);
-        button.setPowered(true);
-        return button;
+    public Location getLocation() {
+        return this.location;
     }
 
-    private void playSound(Sound sound, float pitch) {
-        Objects.requireNonNull(sound, "sound");
-        Sign sign = this.paySign.getSign();
-        sign.getWorld().playSound(sign.getLocation(), sound, SoundCategory.BLOCKS, SOUND_VOLUME, pitch);
+    public long getClickTime() {
+        return this.clickTime;
     }
 
-    private void updateBaseBlockNeighbors() {
-        BlockData realBlockData = this.baseBlock.getBlockData();
-        Material material = realBlockData.getMaterial().equals(Material.BARRIER)
-                ? Material.STONE : Material.BARRIER;
+    public long getDelay() {
+        return this.delay;
+    }
 
-        // Simulate block change to call World.applyPhysics on the base block.
-        this.baseBlock.setBlockData(material.createBlockData(), false);
-        this.baseBlock.setBlockData(realBlockData, true);
+    public int getJournalSlot() {
+        return this.journalSlot;
     }
 
-    public void flush() {
-        logger.fine("Restoring fake button back to the sign.");
-        try {
-            this.paySign.getSign().update(true, true);
-            this.playSound(SOUND_OFF, .5F);
-            this.updateBaseBlockNeighbors();
-        } finally {
-            HandlerList.unregisterAll(this);
-            this.baseBlock = null;
-        }
+    public void setJournalSlot(int journalSlot) {
+        this.journalSlot = journalSlot;
     }
 
-    //
-    // Blocking Listeners
-    //
+    public Switch execute(ClickWatchdog.Timing timing) {
+        Objects.requireNonNull(timing, "timing");
+        this.baseBlock = this.paySign.getBaseBlock();
 
-    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
-    public void cancelBlockBreak(BlockBreakEvent event) {
-        if (this.test(event.getBlock())) {
-            event.setCancelled(true);
-        }
-    }
+        Switch button = this.createFakeButton();
+        this.signBlock.setBlockData(button);
+        this.placed = true;
+        this.playSound(SOUND_ON, .6F);
+        timing.mark(ClickWatchdog.Stage.BUTTON);
 
-    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
-    public void cancelBlockBurn(BlockBurnEvent event) {
-        if (this.test(event.getBlock())) {
-            event.setCancelled(true);
-        }
+        this.updateBaseBlockNeighbors();
+        timing.mark(ClickWatchdog.Stage.PHYSICS);
+        return button;
     }
 
-    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
-    public void cancelBlockExplode(BlockExplodeEvent event) {
-        event.blockList().removeIf(this);
+    public Switch createFakeButton() {
+        return ButtonStates.get(this.paySign.getFacing(), true);
     }
 
-    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
-    public void cancelBlockFade(BlockFadeEvent event) {
-        if (this.test(event.getBlock())) {
-            event.setCancelled(true);
+    private void playSound(Sound sound, float pitch) {
+        Objects.requireNonNull(sound, "sound");
+        if (!this.loadMonitor.allowCosmetic()) {
+            return;
         }
-    }
 
-    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
-    public void cancelEntityChangeBlock(EntityChangeBlockEvent event) {
-        if (this.test(event.getBlock())) {
-            event.setCancelled(true);
-        }
+        this.location.getWorld().playSound(this.location, sound, SoundCategory.BLOCKS, SOUND_VOLUME, pitch);
     }
 
-    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
-    public void cancelEntityExplode(EntityExplodeEvent event) {
-        event.blockList().removeIf(this);
-    }
+    private void updateBaseBlockNeighbors() {
+        BlockData realBlockData = this.baseBlock.getBlockData();
+        BlockData fakeBlockData = realBlockData.getMaterial().equals(Material.BARRIER)
+                ? STONE : BARRIER;
 
-    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
-    public void cancelPhysics(BlockPhysicsEvent event) {
-        if (this.test(event.getBlock())) {
-            event.setCancelled(true);
-        }
+        // Simulate block change to call World.applyPhysics on the base block.
+        this.baseBlock.setBlockData(fakeBlockData, false);
+        this.baseBlock.setBlockData(realBlockData, true);
     }
 
-    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
-    public void cancelPistonExtend(BlockPistonExtendEvent event) {
-        for (Block block : event.getBlocks()) {
-            if (this.test(block)) {
-                event.setCancelled(true);
-                break;
-            }
-        }
-    }
+    public void flush(ClickWatchdog.Timing timing) {
+        Objects.requireNonNull(timing, "timing");
+        logger.fine("Restoring fake button back to the sign.");
+        this.paySign.getSign().update(true, true);
+        this.playSound(SOUND_OFF, .5F);
+        timing.mark(ClickWatchdog.Stage.RESTORE);
 
-    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
-    public void cancelPistonRetract(BlockPistonRetractEvent event) {
-        for (Block block : event.getBlocks()) {
-            if (this.test(block)) {
-                event.setCancelled(true);
-                break;
-            }
-        }
+        this.updateBaseBlockNeighbors();
+        timing.mark(ClickWatchdog.Stage.PHYSICS);
     }
 }
@@ -0,0 +1,400 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.Sign;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers signs replaced by fake buttons in a small memory-mapped file, so
+ * they can be restored after a crash, when {@link Trigger#flush} never ran.
+ * Every active trigger occupies one fixed-size slot, written on execute and
+ * cleared on flush. The memory mapping survives a crash of the server process.
+ *
+ * <p>Recorded signs are restored on startup if their chunks are loaded, or
+ * once their chunks load. The chunk listener is only registered while there
+ * is anything to restore.</p>
+ */
+public class TriggerJournal implements Listener {
+    static final Logger logger = Logger.getLogger(TriggerJournal.class.getName());
+
+    private static final int MAGIC = 0x50534A4E; // "PSJN"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 1024;
+    private static final int SLOT_HEADER_SIZE = 3; // used flag + payload length
+    private static final int INITIAL_SLOTS = 256;
+
+    private final Plugin plugin;
+    private final PluginManager pluginManager;
+    private final TaskScheduler scheduler;
+    private final Path file;
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int slotCount;
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+
+    // reused for every record, under the lock
+    private final PayloadBuffer payload = new PayloadBuffer();
+    private final DataOutputStream payloadOutput = new DataOutputStream(this.payload);
+
+    // world -> chunk -> signs to restore
+    private final Map<UUID, Map<Long, List<Entry>>> pending = new HashMap<>();
+    private boolean listening;
+
+    public TriggerJournal(Plugin plugin, PluginManager pluginManager, TaskScheduler scheduler, Path file) {
+        this.plugin = Objects.requireNonNull(plugin, "plugin");
+        this.pluginManager = Objects.requireNonNull(pluginManager, "pluginManager");
+        this.scheduler = Objects.requireNonNull(scheduler, "scheduler");
+        this.file = Objects.requireNonNull(file, "file");
+    }
+
+    public synchronized void enable() throws IOException {
+        this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        if (this.channel.size() < HEADER_SIZE) {
+            this.map(INITIAL_SLOTS);
+            this.buffer.putInt(0, MAGIC);
+            this.buffer.putInt(4, FORMAT_VERSION);
+            this.buffer.putInt(8, SLOT_SIZE);
+        } else {
+            this.map((int) ((this.channel.size() - HEADER_SIZE) / SLOT_SIZE));
+            if (this.buffer.getInt(0) != MAGIC || this.buffer.getInt(4) != FORMAT_VERSION || this.buffer.getInt(8) != SLOT_SIZE) {
+                throw new IOException("Unsupported trigger journal format");
+            }
+        }
+
+        int restoring = 0;
+        for (int slot = this.slotCount - 1; slot >= 0; slot--) {
+            int offset = offset(slot);
+            if (this.buffer.get(offset) == 0) {
+                this.freeSlots.push(slot);
+                continue;
+            }
+
+            try {
+                this.addPending(this.read(slot));
+                restoring++;
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not read trigger journal slot " + slot + ", discarding it.", e);
+                this.clear(slot);
+            }
+        }
+
+        if (restoring > 0) {
+            logger.info("Restoring " + restoring + " sign(s) left as buttons after a crash...");
+            this.pluginManager.registerEvents(this, this.plugin);
+            this.listening = true;
+            this.restoreLoaded();
+        }
+    }
+
+    public synchronized void disable() {
+        if (this.listening) {
+            HandlerList.unregisterAll(this);
+            this.listening = false;
+        }
+
+        if (this.channel != null) {
+            try {
+                if (this.buffer != null) {
+                    this.buffer.force();
+                }
+                this.channel.close();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not close the trigger journal.", e);
+            }
+            this.channel = null;
+            this.buffer = null;
+        }
+        this.freeSlots.clear();
+        this.pending.clear();
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private void map(int slotCount) throws IOException {
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0L, (long) HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+        this.buffer.putInt(12, slotCount);
+        this.slotCount = slotCount;
+    }
+
+    /**
+     * Records the sign before it's replaced by a fake button.
+     * @return The slot to {@link #clear(int)} after the sign is restored, or
+     * -1 if it could not be recorded.
+     */
+    public int record(BlockKey signKey, Sign sign) {
+        Objects.requireNonNull(signKey, "signKey");
+        Objects.requireNonNull(sign, "sign");
+
+        String blockData = sign.getBlockData().getAsString();
+        String[] lines = sign.getLines();
+
+        synchronized (this) {
+            if (this.buffer == null) {
+                return -1;
+            }
+
+            this.payload.reset();
+            try {
+                signKey.write(this.payloadOutput);
+                this.payloadOutput.writeUTF(blockData);
+                for (String line : lines) {
+                    this.payloadOutput.writeUTF(line);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not serialize sign.", e);
+            }
+
+            int length = this.payload.size();
+            if (length > SLOT_SIZE - SLOT_HEADER_SIZE) {
+                logger.warning("Sign at " + sign.getLocation() + " is too large to be recorded in the trigger journal.");
+                return -1;
+            }
+
+            try {
+                if (this.freeSlots.isEmpty()) {
+                    this.grow();
+                }
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not grow the trigger journal.", e);
+                return -1;
+            }
+
+            int slot = this.freeSlots.pop();
+            int offset = offset(slot);
+            // the payload first, so a crash in between never leaves a used slot with garbage
+            this.buffer.putShort(offset + 1, (short) length);
+            byte[] payload = this.payload.array();
+            for (int i = 0; i < length; i++) {
+                this.buffer.put(offset + SLOT_HEADER_SIZE + i, payload[i]);
+            }
+            this.buffer.put(offset, (byte) 1);
+            return slot;
+        }
+    }
+
+    public synchronized void clear(int slot) {
+        if (slot < 0 || this.buffer == null) {
+            return;
+        }
+
+        this.buffer.put(offset(slot), (byte) 0);
+        this.freeSlots.push(slot);
+    }
+
+    private void grow() throws IOException {
+        int oldCount = this.slotCount;
+        this.map(oldCount * 2);
+        for (int slot = this.slotCount - 1; slot >= oldCount; slot--) {
+            this.freeSlots.push(slot);
+        }
+        logger.fine("Trigger journal has grown to " + this.slotCount + " slots.");
+    }
+
+    private Entry read(int slot) throws IOException {
+        int offset = offset(slot);
+        int length = this.buffer.getShort(offset + 1) & 0xFFFF;
+        if (length > SLOT_SIZE - SLOT_HEADER_SIZE) {
+            throw new IOException("Invalid payload length: " + length);
+        }
+
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = this.buffer.get(offset + SLOT_HEADER_SIZE + i);
+        }
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+        BlockKey sign = BlockKey.read(input);
+        String blockData = input.readUTF();
+        String[] lines = new String[4];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = input.readUTF();
+        }
+        return new Entry(slot, sign, blockData, lines);
+    }
+
+    private void addPending(Entry entry) {
+        BlockKey sign = entry.sign;
+        this.pending.computeIfAbsent(sign.getWorldId(), worldId -> new HashMap<>())
+                .computeIfAbsent(chunkKey(sign.getX() >> 4, sign.getZ() >> 4), chunk -> new ArrayList<>())
+                .add(entry);
+    }
+
+    private static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    private void restoreLoaded() {
+        Server server = this.plugin.getServer();
+        for (Map.Entry<UUID, Map<Long, List<Entry>>> world : this.pending.entrySet()) {
+            World bukkitWorld = server.getWorld(world.getKey());
+            if (bukkitWorld == null) {
+                continue; // not loaded yet, its chunks will load later
+            }
+
+            Iterator<Map.Entry<Long, List<Entry>>> iterator = world.getValue().entrySet().iterator();
+            while (iterator.hasNext()) {
+                List<Entry> entries = iterator.next().getValue();
+                BlockKey sign = entries.get(0).sign;
+                if (bukkitWorld.isChunkLoaded(sign.getX() >> 4, sign.getZ() >> 4)) {
+                    iterator.remove();
+                    this.scheduleRestore(bukkitWorld, entries);
+                }
+            }
+        }
+        this.stopListeningIfDone();
+    }
+
+    private void scheduleRestore(World world, List<Entry> entries) {
+        BlockKey first = entries.get(0).sign;
+        // next tick, not in the middle of loading the chunk
+        this.scheduler.runAt(new Location(world, first.getX(), first.getY(), first.getZ()), () -> {
+            for (Entry entry : entries) {
+                this.restore(entry);
+            }
+        });
+    }
+
+    private void restore(Entry entry) {
+        try {
+            Optional<Block> blockMaybe = entry.sign.toBlock(this.plugin.getServer());
+            if (!blockMaybe.isPresent()) {
+                return;
+            }
+
+            Block block = blockMaybe.get();
+            if (!block.getType().equals(Material.OAK_BUTTON)) {
+                logger.fine("No fake button at " + block.getLocation() + " anymore, nothing to restore.");
+                return;
+            }
+
+            block.setBlockData(this.plugin.getServer().createBlockData(entry.blockData), false);
+            BlockState state = block.getState();
+            if (state instanceof Sign) {
+                Sign sign = (Sign) state;
+                for (int i = 0; i < entry.lines.length; i++) {
+                    sign.setLine(i, entry.lines[i]);
+                }
+                sign.update(true, false);
+            }
+            logger.info("Restored PaySign sign at " + block.getLocation() + " after a crash.");
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Could not restore sign at " + entry.sign + ".", e);
+        } finally {
+            this.clear(entry.slot);
+        }
+    }
+
+    private void stopListeningIfDone() {
+        if (this.listening && this.pending.isEmpty()) {
+            HandlerList.unregisterAll(this);
+            this.listening = false;
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void restoreOnLoad(ChunkLoadEvent event) {
+        Chunk chunk = event.getChunk();
+        World world = chunk.getWorld();
+
+        synchronized (this) {
+            Map<Long, List<Entry>> chunks = this.pending.get(world.getUID());
+            if (chunks == null) {
+                return;
+            }
+
+            List<Entry> entries = chunks.remove(chunkKey(chunk.getX(), chunk.getZ()));
+            if (chunks.isEmpty()) {
+                this.pending.remove(world.getUID());
+            }
+            if (entries != null) {
+                this.scheduleRestore(world, entries);
+            }
+            this.stopListeningIfDone();
+        }
+    }
+
+    /**
+     * A sign recorded in the journal.
+     */
+    static class Entry {
+        final int slot;
+        final BlockKey sign;
+        final String blockData;
+        final String[] lines;
+
+        Entry(int slot, BlockKey sign, String blockData, String[] lines) {
+            this.slot = slot;
+            this.sign = Objects.requireNonNull(sign, "sign");
+            this.blockData = Objects.requireNonNull(blockData, "blockData");
+            this.lines = Objects.requireNonNull(lines, "lines");
+        }
+    }
+
+    /**
+     * Exposes the written bytes without copying them.
+     */
+    static class PayloadBuffer extends ByteArrayOutputStream {
+        PayloadBuffer() {
+            super(SLOT_SIZE);
+        }
+
+        byte[] array() {
+            return this.buf;
+        }
+    }
+}
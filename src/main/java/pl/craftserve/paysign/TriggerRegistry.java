@@ -0,0 +1,313 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.Location;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.type.Switch;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockBurnEvent;
+import org.bukkit.event.block.BlockExplodeEvent;
+import org.bukkit.event.block.BlockFadeEvent;
+import org.bukkit.event.block.BlockPhysicsEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs {@link Trigger}s and protects their blocks while they are active. The
+ * blocking listeners are registered once for all triggers and look the
+ * blocks up in an index, and finished triggers are pooled for the next
+ * clicks. A sign has at most one trigger at a time.
+ */
+public class TriggerRegistry implements Listener, Predicate<Block> {
+    static final Logger logger = Logger.getLogger(TriggerRegistry.class.getName());
+
+    private static final int MAX_POOL_SIZE = 64;
+
+    private final Plugin plugin;
+    private final PluginManager pluginManager;
+    private final TaskScheduler scheduler;
+    private final LoadMonitor loadMonitor;
+    private final PerformanceStats stats;
+    private final ClickWatchdog watchdog;
+    private final TriggerJournal journal;
+    private final LogBlockHook logBlockHook;
+
+    // sign -> trigger, from the click until the sign is restored
+    private final Map<BlockKey, Trigger> active = new ConcurrentHashMap<>(512);
+    // signs and base blocks of the active triggers
+    private final ProtectedBlocks protectedBlocks = new ProtectedBlocks();
+    private final Deque<Trigger> pool = new ArrayDeque<>(MAX_POOL_SIZE);
+
+    public TriggerRegistry(Plugin plugin, PluginManager pluginManager, TaskScheduler scheduler, LoadMonitor loadMonitor,
+                           PerformanceStats stats, ClickWatchdog watchdog, TriggerJournal journal, LogBlockHook logBlockHook) {
+        this.plugin = Objects.requireNonNull(plugin, "plugin");
+        this.pluginManager = Objects.requireNonNull(pluginManager, "pluginManager");
+        this.scheduler = Objects.requireNonNull(scheduler, "scheduler");
+        this.loadMonitor = Objects.requireNonNull(loadMonitor, "loadMonitor");
+        this.stats = Objects.requireNonNull(stats, "stats");
+        this.watchdog = Objects.requireNonNull(watchdog, "watchdog");
+        this.journal = Objects.requireNonNull(journal, "journal");
+        this.logBlockHook = logBlockHook;
+    }
+
+    public void enable() {
+        this.pluginManager.registerEvents(this, this.plugin);
+    }
+
+    public void disable() {
+        HandlerList.unregisterAll(this);
+
+        for (Trigger trigger : this.active.values()) {
+            if (!trigger.isPlaced() || !trigger.disarm()) {
+                continue; // not executed yet, or being flushed right now
+            }
+
+            ClickWatchdog.Timing timing = this.watchdog.begin(ClickWatchdog.Phase.FLUSH, System.nanoTime());
+            try {
+                trigger.flush(timing);
+                this.journal.clear(trigger.getJournalSlot());
+            } catch (Throwable e) {
+                logger.log(Level.SEVERE, "Could not flush trigger.", e);
+            } finally {
+                this.watchdog.finish(timing);
+            }
+        }
+        this.active.clear();
+        this.protectedBlocks.clear();
+
+        synchronized (this.pool) {
+            this.pool.clear();
+        }
+    }
+
+    /**
+     * @return {@code true} if the sign has a trigger, which is either
+     * scheduled or still holds the fake button.
+     */
+    public boolean isTriggered(BlockKey signKey) {
+        Objects.requireNonNull(signKey, "signKey");
+        return this.active.containsKey(signKey);
+    }
+
+    /**
+     * Triggers current on the sign in the next tick, so that
+     * PlayerInteractEvent is handled properly.
+     *
+     * @return {@code false} if the sign is triggered already.
+     */
+    public boolean trigger(PaySign paySign, BlockKey signKey, Player player, long clickTime, long delay) {
+        Trigger trigger = this.acquire();
+        trigger.prepare(paySign, signKey, player, clickTime, delay);
+        if (this.active.putIfAbsent(signKey, trigger) != null) {
+            this.release(trigger);
+            return false;
+        }
+        this.protectedBlocks.add(signKey);
+
+        this.scheduler.runAt(trigger.getLocation(), trigger.executeTask);
+        return true;
+    }
+
+    void execute(Trigger trigger) {
+        long executeTime = System.nanoTime();
+        ClickWatchdog.Timing timing = this.watchdog.begin(ClickWatchdog.Phase.TRIGGER, executeTime);
+        timing.describe(trigger.getLocation(), trigger.getPaySign().getPlayerName(), trigger.getPlayer().getName());
+        trigger.arm();
+
+        try {
+            PaySign paySign = trigger.getPaySign();
+            trigger.setJournalSlot(this.journal.record(trigger.getSignKey(), paySign.getSign()));
+
+            Switch fakeButton = trigger.execute(timing);
+            this.stats.recordTrigger();
+            this.stats.recordRedstoneLatency(System.nanoTime() - trigger.getClickTime());
+
+            if (this.logBlockHook != null) {
+                this.logClick(trigger.getPlayer(), trigger.getLocation(), fakeButton);
+                timing.mark(ClickWatchdog.Stage.LOGBLOCK);
+            }
+        } finally {
+            if (trigger.isPlaced()) {
+                this.protectedBlocks.add(trigger.getBaseBlock());
+                this.scheduler.runAtLater(trigger.getLocation(), trigger.flushTask, trigger.getDelay());
+            } else {
+                this.abort(trigger);
+            }
+            this.stats.recordPluginTime(System.nanoTime() - executeTime);
+            this.watchdog.finish(timing);
+        }
+    }
+
+    /**
+     * Forgets a trigger which failed before placing the fake button, the sign
+     * is untouched.
+     */
+    private void abort(Trigger trigger) {
+        if (trigger.disarm()) {
+            this.journal.clear(trigger.getJournalSlot());
+        }
+        this.deactivate(trigger);
+    }
+
+    private void deactivate(Trigger trigger) {
+        if (this.active.remove(trigger.getSignKey(), trigger)) {
+            this.protectedBlocks.remove(trigger.getSignKey());
+            if (trigger.isPlaced()) {
+                this.protectedBlocks.remove(trigger.getBaseBlock()); // other signs may still protect it
+            }
+        }
+        this.release(trigger);
+    }
+
+    private void logClick(Player player, Location location, Switch fakeButton) {
+        if (this.loadMonitor.isOverloaded()) {
+            this.loadMonitor.defer(() -> this.logBlockHook.logClick(player, location, fakeButton));
+        } else {
+            this.logBlockHook.logClick(player, location, fakeButton);
+        }
+    }
+
+    void flush(Trigger trigger) {
+        if (!trigger.disarm()) {
+            return; // already flushed while disabling
+        }
+
+        long flushTime = System.nanoTime();
+        ClickWatchdog.Timing timing = this.watchdog.begin(ClickWatchdog.Phase.FLUSH, flushTime);
+        timing.describe(trigger.getLocation(), trigger.getPaySign().getPlayerName(), trigger.getPlayer().getName());
+        try {
+            trigger.flush(timing);
+            this.journal.clear(trigger.getJournalSlot()); // kept if the flush failed, to be restored on startup
+        } finally {
+            this.deactivate(trigger);
+            this.stats.recordPluginTime(System.nanoTime() - flushTime);
+            this.watchdog.finish(timing);
+        }
+    }
+
+    private Trigger acquire() {
+        synchronized (this.pool) {
+            Trigger trigger = this.pool.pollLast();
+            if (trigger != null) {
+                return trigger;
+            }
+        }
+        return new Trigger(this, this.loadMonitor);
+    }
+
+    private void release(Trigger trigger) {
+        trigger.reset();
+        synchronized (this.pool) {
+            if (this.pool.size() < MAX_POOL_SIZE) {
+                this.pool.addLast(trigger);
+            }
+        }
+    }
+
+    @Override
+    public boolean test(Block block) {
+        return !this.protectedBlocks.isEmpty() && this.protectedBlocks.contains(block);
+    }
+
+    //
+    // Blocking Listeners
+    //
+
+    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void cancelBlockBreak(BlockBreakEvent event) {
+        if (this.test(event.getBlock())) {
+            event.setCancelled(true);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void cancelBlockBurn(BlockBurnEvent event) {
+        if (this.test(event.getBlock())) {
+            event.setCancelled(true);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void cancelBlockExplode(BlockExplodeEvent event) {
+        event.blockList().removeIf(this);
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void cancelBlockFade(BlockFadeEvent event) {
+        if (this.test(event.getBlock())) {
+            event.setCancelled(true);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void cancelEntityChangeBlock(EntityChangeBlockEvent event) {
+        if (this.test(event.getBlock())) {
+            event.setCancelled(true);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void cancelEntityExplode(EntityExplodeEvent event) {
+        event.blockList().removeIf(this);
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void cancelPhysics(BlockPhysicsEvent event) {
+        if (this.test(event.getBlock())) {
+            event.setCancelled(true);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void cancelPistonExtend(BlockPistonExtendEvent event) {
+        for (Block block : event.getBlocks()) {
+            if (this.test(block)) {
+                event.setCancelled(true);
+                break;
+            }
+        }
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void cancelPistonRetract(BlockPistonRetractEvent event) {
+        for (Block block : event.getBlocks()) {
+            if (this.test(block)) {
+                event.setCancelled(true);
+                break;
+            }
+        }
+    }
+}
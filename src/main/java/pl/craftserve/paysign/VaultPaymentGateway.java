@@ -0,0 +1,125 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.craftserve.paysign;
+
+import net.milkbowl.vault.economy.Economy;
+import net.milkbowl.vault.economy.EconomyResponse;
+import org.bukkit.entity.Player;
+
+import java.util.Objects;
+
+/**
+ * {@link PaymentGateway} using Vault's {@link Economy}. The transfer is not
+ * atomic, a failed deposit is undone by refunding the payer. Economy calls are
+ * counted in the {@link PerformanceStats}, formatting is not. Formatted
+ * amounts are cached, economies format them the same way until replaced.
+ */
+public class VaultPaymentGateway implements PaymentGateway {
+    private final Economy economy;
+    private final String providerName;
+    private final PerformanceStats stats;
+    private final FormatCache formatCache;
+
+    public VaultPaymentGateway(Economy economy, String providerName, PerformanceStats stats) {
+        this.economy = Objects.requireNonNull(economy, "economy");
+        this.providerName = Objects.requireNonNull(providerName, "providerName");
+        this.stats = Objects.requireNonNull(stats, "stats");
+        this.formatCache = new FormatCache(economy::format);
+    }
+
+    public Economy getEconomy() {
+        return this.economy;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public TransferResult transfer(Player payer, String ownerName, String worldName, double amount) {
+        Objects.requireNonNull(payer, "payer");
+        Objects.requireNonNull(ownerName, "ownerName");
+        Objects.requireNonNull(worldName, "worldName");
+
+        int calls = 1;
+        try {
+            if (!this.economy.has(payer, worldName, amount)) {
+                return TransferResult.failure(TransferResult.Status.INSUFFICIENT_FUNDS, null);
+            }
+
+            calls++;
+            EconomyResponse withdraw = this.economy.withdrawPlayer(payer, worldName, amount);
+            if (!withdraw.transactionSuccess()) {
+                return TransferResult.failure(TransferResult.Status.WITHDRAW_FAILED, withdraw.errorMessage);
+            }
+
+            calls++;
+            EconomyResponse deposit = this.economy.depositPlayer(ownerName, worldName, amount);
+            if (!deposit.transactionSuccess()) {
+                calls++;
+                this.economy.depositPlayer(payer, worldName, amount);
+                return TransferResult.failure(TransferResult.Status.DEPOSIT_FAILED, deposit.errorMessage);
+            }
+
+            return TransferResult.success(withdraw.amount);
+        } finally {
+            this.stats.recordPayment(calls);
+        }
+    }
+
+    @Override
+    public TransferResult withdraw(Player payer, String worldName, double amount) {
+        Objects.requireNonNull(payer, "payer");
+        Objects.requireNonNull(worldName, "worldName");
+
+        this.stats.recordEconomyCall();
+        if (!this.economy.has(payer, worldName, amount)) {
+            return TransferResult.failure(TransferResult.Status.INSUFFICIENT_FUNDS, null);
+        }
+
+        this.stats.recordEconomyCall();
+        EconomyResponse withdraw = this.economy.withdrawPlayer(payer, worldName, amount);
+        if (!withdraw.transactionSuccess()) {
+            return TransferResult.failure(TransferResult.Status.WITHDRAW_FAILED, withdraw.errorMessage);
+        }
+        return TransferResult.success(withdraw.amount);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public boolean deposit(String playerName, String worldName, double amount) {
+        Objects.requireNonNull(playerName, "playerName");
+        Objects.requireNonNull(worldName, "worldName");
+        this.stats.recordEconomyCall();
+        return this.economy.depositPlayer(playerName, worldName, amount).transactionSuccess();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public boolean hasAccount(String playerName) {
+        Objects.requireNonNull(playerName, "playerName");
+        this.stats.recordEconomyCall();
+        // by name, same as the deposit
+        return this.economy.hasAccount(playerName);
+    }
+
+    @Override
+    public String format(double amount) {
+        return this.formatCache.format(amount);
+    }
+
+    @Override
+    public String getProviderName() {
+        return this.providerName;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.paysign;
+
+import org.bukkit.block.Block;
+import org.bukkit.plugin.Plugin;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class BulkEngineTest {
+    private static final int SIGNS = 100;
+
+    @TempDir
+    Path directory;
+
+    private final FakeServer server = FakeServer.get();
+    private final List<FakeServer.FakeBlock> signs = new ArrayList<>();
+    private FakeServer.FakeWorld world;
+    private Runnable tick;
+
+    @BeforeEach
+    void setUp() {
+        this.server.reset();
+        this.world = this.server.addWorld("world");
+        for (int i = 0; i < SIGNS; i++) {
+            this.signs.add(this.world.placeSign(i * 16, 64, 0, PaySign.NAMESPACE, "owner", "10", ""));
+        }
+    }
+
+    private BulkEngine createEngine(Predicate<Block> activeTriggers) {
+        Plugin plugin = mock(Plugin.class);
+        when(plugin.getServer()).thenReturn(this.server.getServer());
+
+        TaskScheduler scheduler = mock(TaskScheduler.class);
+        when(scheduler.runGlobalTimer(any(), anyLong(), anyLong())).thenAnswer(invocation -> {
+            this.tick = invocation.getArgument(0);
+            return (TaskScheduler.Task) () -> {
+            };
+        });
+
+        Configuration configuration = mock(Configuration.class);
+        when(configuration.bulkTickBudget()).thenReturn(2L);
+
+        List<BlockKey> targets = new ArrayList<>();
+        for (FakeServer.FakeBlock sign : this.signs) {
+            targets.add(BlockKey.of(sign.block));
+        }
+        SignIndex signIndex = mock(SignIndex.class);
+        when(signIndex.find("owner")).thenReturn(targets);
+
+        BulkEngine engine = new BulkEngine(plugin, scheduler, configuration, signIndex, new SignDataParser(),
+                activeTriggers, this.directory.resolve("bulk-job.dat"));
+        engine.enable();
+        return engine;
+    }
+
+    private int countPrice(String price) {
+        int count = 0;
+        for (FakeServer.FakeBlock sign : this.signs) {
+            if (sign.lines[2].equals(price)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    void signsAreChangedWithinTheMeasuredBudget() {
+        BulkEngine engine = this.createEngine(block -> {
+            try {
+                Thread.sleep(1L); // an expensive sign
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        });
+        engine.start(BulkJob.Operation.REPRICE, "owner", "20", "admin");
+
+        this.tick.run();
+        int changed = this.countPrice("20");
+        assertTrue(changed >= 1 && changed <= 3, changed + " signs changed in a tick of 2 ms");
+
+        while (engine.getJob().isPresent()) {
+            this.tick.run();
+        }
+        assertEquals(SIGNS, this.countPrice("20"));
+    }
+
+    @Test
+    void signsInUnloadedChunksAreRetriedWithoutLoadingThem() {
+        BulkEngine engine = this.createEngine(block -> false);
+        BulkJob job = engine.start(BulkJob.Operation.REPRICE, "owner", "20", "admin").get();
+
+        this.world.chunksLoaded = false;
+        for (int i = 0; i < 10; i++) {
+            this.tick.run();
+        }
+        assertEquals(0, job.getDone());
+        assertEquals(0, this.countPrice("20"));
+
+        this.world.chunksLoaded = true;
+        while (engine.getJob().isPresent()) {
+            this.tick.run();
+        }
+        assertEquals(SIGNS, job.getChanged());
+        assertEquals(SIGNS, this.countPrice("20"));
+    }
+
+    @Test
+    void signsLeftUnloadedAreNotMarkedDone() {
+        BulkEngine engine = this.createEngine(block -> false);
+        BulkJob job = engine.start(BulkJob.Operation.REPRICE, "owner", "20", "admin").get();
+
+        this.world.chunksLoaded = false;
+        while (engine.getJob().isPresent()) {
+            this.tick.run();
+        }
+        assertFalse(job.isComplete());
+        assertEquals(0, job.getSkipped());
+    }
+}
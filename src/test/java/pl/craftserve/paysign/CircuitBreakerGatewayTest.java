@@ -0,0 +1,184 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.paysign;
+
+import org.bukkit.entity.Player;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class CircuitBreakerGatewayTest {
+    private static final int WINDOW = 8;
+
+    private static final int PROBES = 2;
+    private static final int THREADS = 8;
+
+    private final PaymentGateway delegate = mock(PaymentGateway.class);
+    private final Player payer = mock(Player.class);
+    private final Configuration configuration = mock(Configuration.class);
+    private CircuitBreakerGateway breaker;
+
+    @BeforeEach
+    void setUp() {
+        when(this.payer.getName()).thenReturn("payer");
+        when(this.configuration.breakerWindow()).thenReturn(WINDOW);
+        when(this.configuration.breakerFailureRate()).thenReturn(.5D);
+        when(this.configuration.breakerSlowCall()).thenReturn(10_000L);
+        when(this.configuration.breakerOpenDuration()).thenReturn(1L);
+        when(this.configuration.breakerProbes()).thenReturn(PROBES);
+        this.breaker = new CircuitBreakerGateway(this.delegate, this.configuration, new PerformanceStats());
+    }
+
+    private void answer(TransferResult.Status status) {
+        when(this.delegate.transfer(any(), anyString(), anyString(), anyDouble()))
+                .thenReturn(TransferResult.failure(status, null));
+    }
+
+    private void pay(int times) {
+        for (int i = 0; i < times; i++) {
+            this.breaker.transfer(this.payer, "owner", "world", 1D);
+        }
+    }
+
+    @Test
+    void failedWithdrawalsOpenTheBreaker() {
+        this.answer(TransferResult.Status.WITHDRAW_FAILED);
+        this.pay(WINDOW);
+        assertEquals(CircuitBreakerGateway.State.OPEN, this.breaker.getState());
+        assertEquals(TransferResult.Status.UNAVAILABLE,
+                this.breaker.transfer(this.payer, "owner", "world", 1D).getStatus());
+    }
+
+    @Test
+    void exceptionsOpenTheBreaker() {
+        when(this.delegate.transfer(any(), anyString(), anyString(), anyDouble())).thenThrow(new IllegalStateException());
+        for (int i = 0; i < WINDOW / 4; i++) { // the minimum number of calls to judge the economy
+            assertThrows(IllegalStateException.class, () -> this.breaker.transfer(this.payer, "owner", "world", 1D));
+        }
+        assertEquals(CircuitBreakerGateway.State.OPEN, this.breaker.getState());
+    }
+
+    @Test
+    void ownersWhoCantBePaidDontOpenTheBreaker() {
+        this.answer(TransferResult.Status.DEPOSIT_FAILED);
+        this.pay(WINDOW * 2);
+        when(this.delegate.deposit(anyString(), anyString(), anyDouble())).thenReturn(false);
+        for (int i = 0; i < WINDOW * 2; i++) {
+            this.breaker.deposit("owner", "world", 1D);
+        }
+        assertEquals(CircuitBreakerGateway.State.CLOSED, this.breaker.getState());
+    }
+
+    @Test
+    void poorPayersDontOpenTheBreaker() {
+        this.answer(TransferResult.Status.INSUFFICIENT_FUNDS);
+        this.pay(WINDOW * 2);
+        assertEquals(CircuitBreakerGateway.State.CLOSED, this.breaker.getState());
+    }
+
+    @Test
+    void halfOpenBreakerLetsOnlyTheProbesThrough() throws Exception {
+        FakeEconomy economy = this.halfOpen();
+        List<TransferResult.Status> statuses = this.probeConcurrently(economy, false);
+
+        assertEquals(PROBES, Collections.frequency(statuses, TransferResult.Status.SUCCESS));
+        assertEquals(THREADS - PROBES, Collections.frequency(statuses, TransferResult.Status.UNAVAILABLE));
+        assertEquals(PROBES, economy.getBalance("owner"));
+        assertEquals(CircuitBreakerGateway.State.CLOSED, this.breaker.getState());
+    }
+
+    @Test
+    void failedProbesOpenTheBreakerAgain() throws Exception {
+        FakeEconomy economy = this.halfOpen();
+        List<TransferResult.Status> statuses = this.probeConcurrently(economy, true);
+
+        assertEquals(PROBES, Collections.frequency(statuses, null));
+        assertEquals(THREADS - PROBES, Collections.frequency(statuses, TransferResult.Status.UNAVAILABLE));
+        assertEquals(0D, economy.getBalance("owner"));
+        assertEquals(CircuitBreakerGateway.State.OPEN, this.breaker.getState());
+    }
+
+    /**
+     * Opens a breaker over a failing economy, which is half-open right away.
+     */
+    private FakeEconomy halfOpen() {
+        FakeEconomy economy = new FakeEconomy();
+        economy.setBalance("payer", 1000D);
+        economy.setBalance("owner", 0D);
+        when(this.configuration.breakerOpenDuration()).thenReturn(0L);
+        this.breaker = new CircuitBreakerGateway(new VaultPaymentGateway(economy.getEconomy(), "FakeEconomy",
+                new PerformanceStats()), this.configuration, new PerformanceStats());
+
+        economy.setFailing(true);
+        for (int i = 0; i < WINDOW / 4; i++) {
+            assertThrows(IllegalStateException.class, () -> this.breaker.transfer(this.payer, "owner", "world", 1D));
+        }
+        assertEquals(CircuitBreakerGateway.State.OPEN, this.breaker.getState());
+        economy.setFailing(false);
+        return economy;
+    }
+
+    /**
+     * Pays concurrently while the economy holds the calls which got through,
+     * until all the others have been rejected.
+     * @return Statuses of the payments, {@code null} for the ones which have thrown.
+     */
+    private List<TransferResult.Status> probeConcurrently(FakeEconomy economy, boolean failing) throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch rejected = new CountDownLatch(THREADS - PROBES);
+        economy.setGate(gate);
+
+        List<TransferResult.Status> statuses = Race.run(THREADS + 1, thread -> {
+            if (thread == THREADS) { // opens the gate
+                try {
+                    assertTrue(rejected.await(10L, TimeUnit.SECONDS), "more than " + PROBES + " probe(s) got through");
+                    economy.setFailing(failing);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    gate.countDown();
+                }
+                return null;
+            }
+
+            try {
+                TransferResult.Status status = this.breaker.transfer(this.payer, "owner", "world", 1D).getStatus();
+                if (status.equals(TransferResult.Status.UNAVAILABLE)) {
+                    rejected.countDown();
+                }
+                return status;
+            } catch (IllegalStateException e) {
+                return null;
+            }
+        });
+        return statuses.subList(0, THREADS);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.paysign;
+
+import org.bukkit.entity.Player;
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.ZZI_Result;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * jcstress test of the half-open {@link CircuitBreakerGateway}, which must let
+ * a single probe call through to the economy.
+ *
+ * <pre>
+ * mvn -Pjcstress test
+ * </pre>
+ */
+@JCStressTest
+@Outcome(id = {"true, false, 1", "false, true, 1"}, expect = Expect.ACCEPTABLE, desc = "One click has probed the economy, the other one has been rejected.")
+@Outcome(id = "true, true, 1", expect = Expect.ACCEPTABLE, desc = "The probe has closed the breaker before the other click.")
+@Outcome(expect = Expect.FORBIDDEN, desc = "Both clicks have called the economy at once while probing.")
+@State
+public class CircuitBreakerStress {
+    private static final int WINDOW = 8;
+    private static final Configuration CONFIGURATION = mock(Configuration.class, withSettings().stubOnly());
+    private static final Player PAYER = mock(Player.class, withSettings().stubOnly());
+
+    static {
+        when(CONFIGURATION.breakerWindow()).thenReturn(WINDOW);
+        when(CONFIGURATION.breakerFailureRate()).thenReturn(.5D);
+        when(CONFIGURATION.breakerSlowCall()).thenReturn(10_000L);
+        when(CONFIGURATION.breakerOpenDuration()).thenReturn(0L); // half-open on the next click
+        when(CONFIGURATION.breakerProbes()).thenReturn(1);
+        CircuitBreakerGateway.logger.setLevel(Level.OFF); // every state opens and closes the breaker
+    }
+
+    private final Economy economy = new Economy();
+    private final CircuitBreakerGateway breaker = new CircuitBreakerGateway(this.economy, CONFIGURATION, new PerformanceStats());
+
+    public CircuitBreakerStress() {
+        for (int i = 0; i < WINDOW / 4; i++) { // the minimum number of calls to judge the economy
+            this.breaker.transfer(PAYER, "owner", "world", 1D);
+        }
+        this.economy.failing = false;
+        this.economy.maxInFlight.set(0);
+    }
+
+    private boolean pay() {
+        return this.breaker.transfer(PAYER, "owner", "world", 1D).getStatus().equals(TransferResult.Status.SUCCESS);
+    }
+
+    @Actor
+    public void click1(ZZI_Result result) {
+        result.r1 = this.pay();
+    }
+
+    @Actor
+    public void click2(ZZI_Result result) {
+        result.r2 = this.pay();
+    }
+
+    @Arbiter
+    public void economyCalls(ZZI_Result result) {
+        result.r3 = this.economy.maxInFlight.get();
+    }
+
+    /**
+     * Counts how many transfers it handles at once.
+     */
+    private static final class Economy implements PaymentGateway {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        volatile boolean failing = true;
+
+        @Override
+        public TransferResult transfer(Player payer, String ownerName, String worldName, double amount) {
+            int calls = this.inFlight.incrementAndGet();
+            this.maxInFlight.accumulateAndGet(calls, Math::max);
+            try {
+                return this.failing
+                        ? TransferResult.failure(TransferResult.Status.WITHDRAW_FAILED, null)
+                        : TransferResult.success(amount);
+            } finally {
+                this.inFlight.decrementAndGet();
+            }
+        }
+
+        @Override
+        public TransferResult withdraw(Player payer, String worldName, double amount) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean deposit(String playerName, String worldName, double amount) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean hasAccount(String playerName) {
+            return true;
+        }
+
+        @Override
+        public String format(double amount) {
+            return Double.toString(amount);
+        }
+
+        @Override
+        public String getProviderName() {
+            return "Economy";
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import net.milkbowl.vault.economy.Economy;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.Sign;
+import org.bukkit.entity.Player;
+import org.bukkit.event.block.Action;
+import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures a paid click on the {@link FakeServer}: the click, the trigger in
+ * the next tick and its flush, amortized over the ticks. Run with
+ * {@code -prof gc} to see the bytes allocated per click, and compare them
+ * with {@link #baseline}, which does the same work on the fake server without
+ * the plugin. The fake world allocates on its own, so only the difference
+ * is meaningful.
+ *
+ * <pre>
+ * mvn -Pbenchmark test
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ClickPathBenchmark {
+    private static final int SIGNS = 64; // more than the trigger delay, so a clicked sign is restored before its next click
+
+    private Path dataFolder;
+    private FakeServer server;
+    private PaySignPlugin plugin;
+    private Player player;
+    private final List<FakeServer.FakeBlock> signs = new ArrayList<>(SIGNS);
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        LoadSimulator.pluginLogger.setLevel(java.util.logging.Level.WARNING);
+        this.dataFolder = Files.createTempDirectory("paysign-benchmark");
+        this.server = FakeServer.get();
+        this.server.reset();
+
+        FakeEconomy economy = new FakeEconomy();
+        FakeServer.FakeWorld world = this.server.addWorld("world");
+        this.player = this.server.addPlayer("player", world);
+        economy.setBalance("player", Double.MAX_VALUE / 2D);
+        economy.setBalance("owner", 0D);
+        for (int i = 0; i < SIGNS; i++) {
+            this.signs.add(world.placeSign(i * 3, 64, 0, PaySign.NAMESPACE, "owner", "1", ""));
+        }
+
+        this.plugin = new PaySignPlugin(new JavaPluginLoader(this.server.getServer()),
+                new PluginDescriptionFile("PaySign", "benchmark", PaySignPlugin.class.getName()),
+                this.dataFolder.toFile(), this.dataFolder.resolve("PaySign.jar").toFile());
+        this.server.registerCommand("paysign", this.plugin);
+        this.server.registerService(Economy.class, economy.getEconomy(), this.plugin);
+        this.plugin.getConfig().set("history.enabled", false);
+        this.plugin.onEnable();
+        this.server.tick(); // resolves the economy
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.plugin.onDisable();
+        try (Stream<Path> paths = Files.walk(this.dataFolder)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private FakeServer.FakeBlock nextSign() {
+        FakeServer.FakeBlock sign = this.signs.get(this.next);
+        this.next = (this.next + 1) % SIGNS;
+        return sign;
+    }
+
+    @Benchmark
+    public void click() {
+        this.plugin.onPlayerInteract(new PlayerInteractEvent(this.player, Action.RIGHT_CLICK_BLOCK, null, this.nextSign().block, BlockFace.UP));
+        this.server.tick();
+    }
+
+    @Benchmark
+    public void baseline(Blackhole blackhole) {
+        FakeServer.FakeBlock sign = this.nextSign();
+        blackhole.consume(new PlayerInteractEvent(this.player, Action.RIGHT_CLICK_BLOCK, null, sign.block, BlockFace.UP));
+        blackhole.consume(((Sign) sign.block.getState()).getLines());
+        this.server.tick();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import net.milkbowl.vault.economy.Economy;
+import net.milkbowl.vault.economy.EconomyResponse;
+import org.bukkit.OfflinePlayer;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory Vault economy. Every call can be slowed down to simulate an
+ * economy plugin backed by a database.
+ */
+final class FakeEconomy {
+    private final Map<String, Double> balances = new HashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    private volatile long latencyNanos;
+    private volatile boolean failing;
+    private volatile CountDownLatch gate;
+
+    private final Economy economy = FakeServer.proxy(Economy.class, this::answer);
+
+    Economy getEconomy() {
+        return this.economy;
+    }
+
+    void setLatency(long latency, TimeUnit unit) {
+        this.latencyNanos = unit.toNanos(latency);
+    }
+
+    /**
+     * @param failing If every call should throw, like an economy which lost its database.
+     */
+    void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    /**
+     * @param gate Every call waits for it to open, or {@code null} to answer right away.
+     */
+    void setGate(CountDownLatch gate) {
+        this.gate = gate;
+    }
+
+    long getCalls() {
+        return this.calls.get();
+    }
+
+    synchronized void setBalance(String playerName, double balance) {
+        this.balances.put(key(playerName), balance);
+    }
+
+    synchronized double getBalance(String playerName) {
+        return this.balances.getOrDefault(key(playerName), 0D);
+    }
+
+    synchronized double getTotal() {
+        return this.balances.values().stream().mapToDouble(Double::doubleValue).sum();
+    }
+
+    private static String key(String playerName) {
+        return Objects.requireNonNull(playerName, "playerName").toLowerCase(Locale.ROOT);
+    }
+
+    private static String name(Object player) {
+        return player instanceof OfflinePlayer ? ((OfflinePlayer) player).getName() : (String) player;
+    }
+
+    private Object answer(String method, Object[] args) {
+        switch (method) {
+            case "isEnabled":
+                return true;
+            case "getName":
+                return "FakeEconomy";
+            case "format":
+                return String.format(Locale.ROOT, "$%.2f", (double) args[0]);
+        }
+
+        this.calls.incrementAndGet();
+        long latency = this.latencyNanos;
+        if (latency > 0L) {
+            LockSupport.parkNanos(latency);
+        }
+        CountDownLatch gate = this.gate;
+        if (gate != null) {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted at the gate", e);
+            }
+        }
+        if (this.failing) {
+            throw new IllegalStateException("Economy is failing");
+        }
+
+        double amount = args.length == 0 ? 0D : args[args.length - 1] instanceof Double ? (double) args[args.length - 1] : 0D;
+        synchronized (this) {
+            switch (method) {
+                case "hasAccount":
+                    return this.balances.containsKey(key(name(args[0])));
+                case "getBalance":
+                    return this.getBalance(name(args[0]));
+                case "has":
+                    return this.getBalance(name(args[0])) >= amount;
+                case "withdrawPlayer": {
+                    String name = name(args[0]);
+                    double balance = this.getBalance(name);
+                    if (!this.balances.containsKey(key(name)) || balance < amount) {
+                        return new EconomyResponse(0D, balance, EconomyResponse.ResponseType.FAILURE, "Insufficient funds");
+                    }
+                    this.setBalance(name, balance - amount);
+                    return new EconomyResponse(amount, balance - amount, EconomyResponse.ResponseType.SUCCESS, null);
+                }
+                case "depositPlayer": {
+                    String name = name(args[0]);
+                    if (!this.balances.containsKey(key(name))) {
+                        return new EconomyResponse(0D, 0D, EconomyResponse.ResponseType.FAILURE, "No such account");
+                    }
+                    double balance = this.getBalance(name) + amount;
+                    this.setBalance(name, balance);
+                    return new EconomyResponse(amount, balance, EconomyResponse.ResponseType.SUCCESS, null);
+                }
+                default:
+                    return FakeServer.NO_ANSWER;
+            }
+        }
+    }
+}
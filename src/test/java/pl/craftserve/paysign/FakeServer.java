@@ -0,0 +1,749 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
+import org.bukkit.Server;
+import org.bukkit.Tag;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.Sign;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.block.data.Directional;
+import org.bukkit.block.data.type.Switch;
+import org.bukkit.command.PluginCommand;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.plugin.RegisteredServiceProvider;
+import org.bukkit.plugin.ServicesManager;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Minimal in-process server for running the plugin outside of Bukkit. Only
+ * what PaySign uses is implemented, other methods return default values. The
+ * thread calling {@link #tick()} plays the main thread.
+ *
+ * <p>Bukkit allows a single server per JVM, so there is one shared instance,
+ * which is {@link #reset()} between simulations.</p>
+ */
+final class FakeServer {
+    private static FakeServer instance;
+
+    private final Server server;
+    private final PluginManager pluginManager;
+    private final ServicesManager servicesManager;
+    private final BukkitScheduler scheduler;
+    private final Logger logger = Logger.getLogger("FakeServer");
+
+    private final Map<Class<?>, RegisteredServiceProvider<?>> services = new ConcurrentHashMap<>();
+    private final Map<String, PluginCommand> commands = new ConcurrentHashMap<>();
+    private final Map<UUID, FakeWorld> worlds = new LinkedHashMap<>();
+    private final Map<UUID, Player> players = new LinkedHashMap<>();
+
+    private final PriorityQueue<ScheduledTask> tasks = new PriorityQueue<>();
+    private final Queue<ScheduledTask> incoming = new ConcurrentLinkedQueue<>();
+    private final ExecutorService async = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "FakeServer Async");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger taskIds = new AtomicInteger();
+    private volatile Thread mainThread = Thread.currentThread();
+    private long currentTick;
+    private long scheduledSync;
+    private Consumer<FakeBlock> buttonListener = block -> {
+    };
+
+    private FakeServer() {
+        this.pluginManager = proxy(PluginManager.class, (name, args) -> NO_ANSWER);
+        this.servicesManager = proxy(ServicesManager.class, (name, args) -> name.equals("getRegistration")
+                ? this.services.get((Class<?>) args[0])
+                : NO_ANSWER);
+        this.scheduler = proxy(BukkitScheduler.class, this::answerScheduler);
+        this.server = proxy(Server.class, this::answerServer);
+    }
+
+    static synchronized FakeServer get() {
+        if (instance == null) {
+            instance = new FakeServer();
+            Bukkit.setServer(instance.server);
+        }
+        return instance;
+    }
+
+    /**
+     * Forgets worlds, players, services and pending tasks of the previous
+     * simulation. Must be called on the thread which will tick the server.
+     */
+    synchronized void reset() {
+        this.services.clear();
+        this.commands.clear();
+        this.worlds.clear();
+        this.players.clear();
+        this.tasks.clear();
+        this.incoming.clear();
+        this.currentTick = 0L;
+        this.scheduledSync = 0L;
+        this.mainThread = Thread.currentThread();
+        this.buttonListener = block -> {
+        };
+    }
+
+    Server getServer() {
+        return this.server;
+    }
+
+    long getCurrentTick() {
+        return this.currentTick;
+    }
+
+    /**
+     * @return Number of synchronous tasks scheduled so far.
+     */
+    long getScheduledSync() {
+        return this.scheduledSync;
+    }
+
+    /**
+     * @param listener Called every time a powered button is placed.
+     */
+    void onButtonPlaced(Consumer<FakeBlock> listener) {
+        this.buttonListener = Objects.requireNonNull(listener, "listener");
+    }
+
+    <T> void registerService(Class<T> service, T provider, Plugin plugin) {
+        this.services.put(service, new RegisteredServiceProvider<>(service, provider, org.bukkit.plugin.ServicePriority.Normal, plugin));
+    }
+
+    void registerCommand(String name, Plugin plugin) {
+        try {
+            Constructor<PluginCommand> constructor = PluginCommand.class.getDeclaredConstructor(String.class, Plugin.class);
+            constructor.setAccessible(true);
+            this.commands.put(name, constructor.newInstance(name, plugin));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create command " + name, e);
+        }
+    }
+
+    FakeWorld addWorld(String name) {
+        FakeWorld world = new FakeWorld(UUID.nameUUIDFromBytes(name.getBytes()), name);
+        this.worlds.put(world.id, world);
+        return world;
+    }
+
+    Player addPlayer(String name, FakeWorld world) {
+        UUID id = UUID.nameUUIDFromBytes(("OfflinePlayer:" + name).getBytes());
+        Location location = new Location(world.world, 0, 64, 0);
+        Player player = proxy(Player.class, (method, args) -> {
+            switch (method) {
+                case "getName":
+                case "getDisplayName":
+                    return name;
+                case "getUniqueId":
+                    return id;
+                case "getWorld":
+                    return world.world;
+                case "getLocation":
+                    return location;
+                case "getServer":
+                    return this.server;
+                case "hasPermission":
+                case "isOnline":
+                case "hasPlayedBefore":
+                    return true;
+                case "spigot":
+                    return new Player.Spigot();
+                default:
+                    return NO_ANSWER;
+            }
+        });
+        this.players.put(id, player);
+        return player;
+    }
+
+    /**
+     * Runs a single server tick: the due synchronous tasks.
+     */
+    void tick() {
+        this.currentTick++;
+        ScheduledTask incoming;
+        while ((incoming = this.incoming.poll()) != null) {
+            this.tasks.add(incoming);
+        }
+
+        while (!this.tasks.isEmpty() && this.tasks.peek().dueTick <= this.currentTick) {
+            ScheduledTask task = this.tasks.poll();
+            if (task.cancelled) {
+                continue;
+            }
+
+            try {
+                task.runnable.run();
+            } catch (Throwable e) {
+                this.logger.log(java.util.logging.Level.SEVERE, "Task threw an exception", e);
+            }
+
+            if (task.period > 0L && !task.cancelled) {
+                task.dueTick = this.currentTick + task.period;
+                this.incoming.add(task); // not this tick anymore
+            }
+        }
+    }
+
+    /**
+     * Waits for the asynchronous tasks submitted so far.
+     */
+    void awaitAsync() {
+        try {
+            this.async.submit(() -> {
+            }).get(10L, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new IllegalStateException("Asynchronous tasks did not finish", e);
+        }
+    }
+
+    //
+    // Answers
+    //
+
+    private Object answerServer(String method, Object[] args) {
+        switch (method) {
+            case "getPluginManager":
+                return this.pluginManager;
+            case "getServicesManager":
+                return this.servicesManager;
+            case "getScheduler":
+                return this.scheduler;
+            case "getLogger":
+                return this.logger;
+            case "getName":
+                return "FakeServer";
+            case "getVersion":
+            case "getBukkitVersion":
+                return "simulator";
+            case "getPort":
+                return 25565;
+            case "isPrimaryThread":
+                return Thread.currentThread() == this.mainThread;
+            case "getOnlinePlayers":
+                return Collections.unmodifiableCollection(new ArrayList<>(this.players.values()));
+            case "getPlayer":
+            case "getPlayerExact":
+                return args[0] instanceof UUID ? this.players.get(args[0]) : this.findPlayer((String) args[0]);
+            case "getOfflinePlayer":
+                if (args[0] instanceof UUID) {
+                    return this.players.get(args[0]);
+                }
+                Player online = this.findPlayer((String) args[0]);
+                return online != null ? online : this.offlinePlayer((String) args[0]);
+            case "getWorld":
+                if (args[0] instanceof UUID) {
+                    FakeWorld world = this.worlds.get(args[0]);
+                    return world == null ? null : world.world;
+                }
+                return this.worlds.values().stream().filter(world -> world.name.equals(args[0])).findFirst().map(world -> world.world).orElse(null);
+            case "getWorlds":
+                List<World> worlds = new ArrayList<>();
+                this.worlds.values().forEach(world -> worlds.add(world.world));
+                return worlds;
+            case "createBlockData":
+                return args[0] instanceof Material
+                        ? new FakeBlockData((Material) args[0]).proxy
+                        : FakeBlockData.parse((String) args[0]).proxy;
+            case "getPluginCommand":
+                return this.commands.get(args[0]);
+            case "getTag":
+                return this.tag((NamespacedKey) args[1]);
+            default:
+                return NO_ANSWER;
+        }
+    }
+
+    private Player findPlayer(String name) {
+        for (Player player : this.players.values()) {
+            if (player.getName().equalsIgnoreCase(name)) {
+                return player;
+            }
+        }
+        return null;
+    }
+
+    private Object offlinePlayer(String name) {
+        UUID id = UUID.nameUUIDFromBytes(("OfflinePlayer:" + name).getBytes());
+        return proxy(org.bukkit.OfflinePlayer.class, (method, args) -> {
+            switch (method) {
+                case "getName":
+                    return name;
+                case "getUniqueId":
+                    return id;
+                default:
+                    return NO_ANSWER;
+            }
+        });
+    }
+
+    private Tag<?> tag(NamespacedKey key) {
+        String tag = key.getKey();
+        return proxy(Tag.class, (method, args) -> {
+            switch (method) {
+                case "isTagged":
+                    String material = ((Material) args[0]).name();
+                    switch (tag) {
+                        case "signs":
+                            return material.endsWith("_SIGN");
+                        case "standing_signs":
+                            return material.endsWith("_SIGN") && !material.endsWith("_WALL_SIGN");
+                        case "wall_signs":
+                            return material.endsWith("_WALL_SIGN");
+                        case "buttons":
+                            return material.endsWith("_BUTTON");
+                        default:
+                            return false;
+                    }
+                case "getKey":
+                    return key;
+                case "getValues":
+                    return Collections.emptySet();
+                default:
+                    return NO_ANSWER;
+            }
+        });
+    }
+
+    private Object answerScheduler(String method, Object[] args) {
+        switch (method) {
+            case "runTask":
+                return this.schedule((Runnable) args[1], 1L, 0L);
+            case "runTaskLater":
+                return this.schedule((Runnable) args[1], Math.max(1L, (long) args[2]), 0L);
+            case "runTaskTimer":
+                return this.schedule((Runnable) args[1], Math.max(1L, (long) args[2]), Math.max(1L, (long) args[3]));
+            case "runTaskAsynchronously":
+                this.async.execute((Runnable) args[1]);
+                return this.task(new ScheduledTask(this.taskIds.incrementAndGet(), null, 0L, 0L));
+            case "scheduleSyncDelayedTask":
+                return this.schedule((Runnable) args[1], args.length > 2 ? Math.max(1L, (long) args[2]) : 1L, 0L).getTaskId();
+            default:
+                return NO_ANSWER;
+        }
+    }
+
+    private BukkitTask schedule(Runnable runnable, long delay, long period) {
+        Objects.requireNonNull(runnable, "runnable");
+        if (Thread.currentThread() == this.mainThread) {
+            this.scheduledSync++;
+        }
+
+        ScheduledTask task = new ScheduledTask(this.taskIds.incrementAndGet(), runnable, this.currentTick + delay, period);
+        this.incoming.add(task);
+        return this.task(task);
+    }
+
+    private BukkitTask task(ScheduledTask task) {
+        return proxy(BukkitTask.class, (method, args) -> {
+            switch (method) {
+                case "getTaskId":
+                    return task.id;
+                case "cancel":
+                    task.cancelled = true;
+                    return null;
+                case "isCancelled":
+                    return task.cancelled;
+                case "isSync":
+                    return task.runnable != null;
+                default:
+                    return NO_ANSWER;
+            }
+        });
+    }
+
+    static class ScheduledTask implements Comparable<ScheduledTask> {
+        final int id;
+        final Runnable runnable;
+        final long period;
+        long dueTick;
+        volatile boolean cancelled;
+
+        ScheduledTask(int id, Runnable runnable, long dueTick, long period) {
+            this.id = id;
+            this.runnable = runnable;
+            this.dueTick = dueTick;
+            this.period = period;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            int byTick = Long.compare(this.dueTick, other.dueTick);
+            return byTick != 0 ? byTick : Integer.compare(this.id, other.id);
+        }
+    }
+
+    //
+    // World
+    //
+
+    final class FakeWorld {
+        final UUID id;
+        final String name;
+        final World world;
+        private final Map<Long, FakeBlock> blocks = new HashMap<>();
+        volatile boolean chunksLoaded = true;
+
+        FakeWorld(UUID id, String name) {
+            this.id = id;
+            this.name = name;
+            this.world = proxy(World.class, (method, args) -> {
+                switch (method) {
+                    case "getName":
+                        return this.name;
+                    case "getUID":
+                        return this.id;
+                    case "getBlockAt":
+                        if (!this.chunksLoaded) {
+                            throw new IllegalStateException("Synchronous chunk load");
+                        }
+                        if (args.length == 1) {
+                            Location location = (Location) args[0];
+                            return this.getBlock(location.getBlockX(), location.getBlockY(), location.getBlockZ()).block;
+                        }
+                        return this.getBlock((int) args[0], (int) args[1], (int) args[2]).block;
+                    case "isChunkLoaded":
+                        return this.chunksLoaded;
+                    case "getLoadedChunks":
+                        return new Chunk[0]; // blocks are not grouped in chunks
+                    default:
+                        return NO_ANSWER;
+                }
+            });
+        }
+
+        FakeBlock getBlock(int x, int y, int z) {
+            long key = ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+            return this.blocks.computeIfAbsent(key, k -> new FakeBlock(this, x, y, z));
+        }
+
+        /**
+         * Places a standing sign with the given lines, on top of a stone block.
+         */
+        FakeBlock placeSign(int x, int y, int z, String... lines) {
+            this.getBlock(x, y - 1, z).data = new FakeBlockData(Material.STONE);
+            return this.writeSign(this.getBlock(x, y, z), new FakeBlockData(Material.OAK_SIGN), lines);
+        }
+
+        /**
+         * Places a wall sign facing the given direction, on a stone block behind it.
+         */
+        FakeBlock placeWallSign(int x, int y, int z, BlockFace facing, String... lines) {
+            this.getBlock(x - facing.getModX(), y - facing.getModY(), z - facing.getModZ()).data = new FakeBlockData(Material.STONE);
+            FakeBlockData data = new FakeBlockData(Material.OAK_WALL_SIGN);
+            data.facing = facing;
+            return this.writeSign(this.getBlock(x, y, z), data, lines);
+        }
+
+        private FakeBlock writeSign(FakeBlock sign, FakeBlockData data, String... lines) {
+            sign.data = data;
+            sign.lines = Arrays.copyOf(lines, 4);
+            for (int i = 0; i < sign.lines.length; i++) {
+                if (sign.lines[i] == null) {
+                    sign.lines[i] = "";
+                }
+            }
+            return sign;
+        }
+    }
+
+    final class FakeBlock {
+        final FakeWorld world;
+        final int x;
+        final int y;
+        final int z;
+        final Block block;
+        FakeBlockData data = new FakeBlockData(Material.AIR);
+        String[] lines = {"", "", "", ""};
+
+        FakeBlock(FakeWorld world, int x, int y, int z) {
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.block = proxy(Block.class, this::answer);
+        }
+
+        Material getType() {
+            return this.data.material;
+        }
+
+        private Object answer(String method, Object[] args) {
+            switch (method) {
+                case "getWorld":
+                    return this.world.world;
+                case "getX":
+                    return this.x;
+                case "getY":
+                    return this.y;
+                case "getZ":
+                    return this.z;
+                case "getLocation":
+                    return new Location(this.world.world, this.x, this.y, this.z);
+                case "getType":
+                    return this.data.material;
+                case "getBlockData":
+                    return this.data.proxy; // PaySign never modifies it
+                case "setBlockData":
+                case "setType":
+                    this.data = args[0] instanceof Material
+                            ? new FakeBlockData((Material) args[0])
+                            : FakeBlockData.of((BlockData) args[0]).copy();
+                    if (this.data.powered && this.data.material.name().endsWith("_BUTTON")) {
+                        FakeServer.this.buttonListener.accept(this);
+                    }
+                    return null;
+                case "getState":
+                    return this.state();
+                case "getRelative":
+                    BlockFace face = (BlockFace) args[0];
+                    return this.world.getBlock(this.x + face.getModX(), this.y + face.getModY(), this.z + face.getModZ()).block;
+                default:
+                    return NO_ANSWER;
+            }
+        }
+
+        private BlockState state() {
+            FakeBlockData captured = this.data.copy();
+            String[] lines = this.lines.clone();
+            Class<? extends BlockState> type = captured.material.name().endsWith("_SIGN") ? Sign.class : BlockState.class;
+            return proxy(type, (method, args) -> {
+                switch (method) {
+                    case "getBlock":
+                        return this.block;
+                    case "getWorld":
+                        return this.world.world;
+                    case "getLocation":
+                        return new Location(this.world.world, this.x, this.y, this.z);
+                    case "getX":
+                        return this.x;
+                    case "getY":
+                        return this.y;
+                    case "getZ":
+                        return this.z;
+                    case "getType":
+                        return captured.material;
+                    case "getBlockData":
+                        return captured.copy().proxy;
+                    case "getLines":
+                        return lines.clone();
+                    case "getLine":
+                        return lines[(int) args[0]];
+                    case "setLine":
+                        lines[(int) args[0]] = (String) args[1];
+                        return null;
+                    case "update":
+                        boolean force = args != null && args.length > 0 && (boolean) args[0];
+                        if (!force && !this.data.material.equals(captured.material)) {
+                            return false;
+                        }
+                        this.data = captured.copy();
+                        this.lines = lines.clone();
+                        return true;
+                    default:
+                        return NO_ANSWER;
+                }
+            });
+        }
+    }
+
+    /**
+     * Block data with the few properties PaySign reads: facing, face and power.
+     */
+    static final class FakeBlockData {
+        final Material material;
+        final BlockData proxy;
+        BlockFace facing = BlockFace.NORTH;
+        Switch.Face face = Switch.Face.WALL;
+        boolean powered;
+
+        FakeBlockData(Material material) {
+            this.material = Objects.requireNonNull(material, "material");
+            String name = material.name();
+            Class<?> type = name.endsWith("_BUTTON") ? Switch.class
+                    : name.endsWith("_WALL_SIGN") ? Directional.class
+                    : BlockData.class;
+            this.proxy = (BlockData) proxy(type, this, this::answer);
+        }
+
+        static FakeBlockData of(BlockData proxy) {
+            return (FakeBlockData) ((Handler) Proxy.getInvocationHandler(proxy)).target;
+        }
+
+        static FakeBlockData parse(String data) {
+            String name = data.replace("minecraft:", "");
+            int state = name.indexOf('[');
+            return new FakeBlockData(Material.valueOf((state == -1 ? name : name.substring(0, state)).toUpperCase(Locale.ROOT)));
+        }
+
+        FakeBlockData copy() {
+            FakeBlockData copy = new FakeBlockData(this.material);
+            copy.facing = this.facing;
+            copy.face = this.face;
+            copy.powered = this.powered;
+            return copy;
+        }
+
+        private Object answer(String method, Object[] args) {
+            switch (method) {
+                case "getMaterial":
+                    return this.material;
+                case "getAsString":
+                    return "minecraft:" + this.material.name().toLowerCase(Locale.ROOT);
+                case "clone":
+                    return this.copy().proxy;
+                case "getFacing":
+                    return this.facing;
+                case "setFacing":
+                    this.facing = (BlockFace) args[0];
+                    return null;
+                case "getFace":
+                case "getAttachedFace":
+                    return this.face;
+                case "setFace":
+                    this.face = (Switch.Face) args[0];
+                    return null;
+                case "isPowered":
+                    return this.powered;
+                case "setPowered":
+                    this.powered = (boolean) args[0];
+                    return null;
+                case "matches":
+                    return args[0] != null && of((BlockData) args[0]).material.equals(this.material);
+                default:
+                    return NO_ANSWER;
+            }
+        }
+    }
+
+    //
+    // Proxies
+    //
+
+    static final Object NO_ANSWER = new Object();
+
+    @FunctionalInterface
+    interface Answer {
+        /**
+         * @return The result, or {@link #NO_ANSWER} for the default value.
+         */
+        Object answer(String method, Object[] args) throws Throwable;
+    }
+
+    static <T> T proxy(Class<T> type, Answer answer) {
+        return proxy(type, null, answer);
+    }
+
+    /**
+     * @param target Object behind the proxy, see {@link Handler#target}.
+     */
+    static <T> T proxy(Class<T> type, Object target, Answer answer) {
+        return type.cast(Proxy.newProxyInstance(FakeServer.class.getClassLoader(), new Class<?>[] {type}, new Handler(target, answer)));
+    }
+
+    static final class Handler implements InvocationHandler {
+        final Object target;
+        private final Answer answer;
+
+        Handler(Object target, Answer answer) {
+            this.target = target;
+            this.answer = answer;
+        }
+
+        @Override
+        public Object invoke(Object proxy, java.lang.reflect.Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    if (method.getParameterCount() == 1) {
+                        return proxy == args[0];
+                    }
+                    break;
+                case "hashCode":
+                    if (method.getParameterCount() == 0) {
+                        return System.identityHashCode(proxy);
+                    }
+                    break;
+                case "toString":
+                    if (method.getParameterCount() == 0) {
+                        return "Fake" + method.getDeclaringClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                    }
+                    break;
+            }
+
+            Object result = this.answer.answer(method.getName(), args == null ? new Object[0] : args);
+            return result == NO_ANSWER ? defaultValue(method.getReturnType()) : result;
+        }
+
+        private static Object defaultValue(Class<?> type) {
+            if (!type.isPrimitive() || type.equals(void.class)) {
+                return null;
+            } else if (type.equals(boolean.class)) {
+                return false;
+            } else if (type.equals(char.class)) {
+                return '\0';
+            } else if (type.equals(long.class)) {
+                return 0L;
+            } else if (type.equals(float.class)) {
+                return 0F;
+            } else if (type.equals(double.class)) {
+                return 0D;
+            } else if (type.equals(byte.class)) {
+                return (byte) 0;
+            } else if (type.equals(short.class)) {
+                return (short) 0;
+            }
+            return 0;
+        }
+    }
+}
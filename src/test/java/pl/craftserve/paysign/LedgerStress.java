@@ -0,0 +1,109 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.paysign;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.IIII_Result;
+import org.openjdk.jcstress.infra.results.III_Result;
+
+import java.nio.file.Paths;
+import java.util.UUID;
+
+/**
+ * jcstress tests of {@link Ledger#transfer}, which locks two stripes. The
+ * ledger is never enabled, so the records stay in memory.
+ *
+ * <pre>
+ * mvn -Pjcstress test
+ * </pre>
+ */
+public final class LedgerStress {
+    private static final UUID ALICE = new UUID(0, 1);
+    private static final UUID BOB = new UUID(0, 2);
+    private static final UUID CAROL = new UUID(0, 3);
+
+    private LedgerStress() {
+    }
+
+    private static Ledger createLedger() {
+        return new Ledger(Paths.get("jcstress-ledger"), 100D);
+    }
+
+    private static int success(Ledger.TransferStatus status) {
+        return status.equals(Ledger.TransferStatus.SUCCESS) ? 1 : 0;
+    }
+
+    /**
+     * Two payments which can't both be covered by the payer's balance.
+     */
+    @JCStressTest
+    @Outcome(id = {"1, 0, 40, 260", "0, 1, 40, 260"}, expect = Expect.ACCEPTABLE, desc = "Exactly one payment has been made.")
+    @Outcome(expect = Expect.FORBIDDEN, desc = "Money has been spent twice, lost or created.")
+    @State
+    public static class DoubleSpend {
+        private final Ledger ledger = createLedger();
+
+        @Actor
+        public void payBob(IIII_Result result) {
+            result.r1 = success(this.ledger.transfer(ALICE, BOB, 60D));
+        }
+
+        @Actor
+        public void payCarol(IIII_Result result) {
+            result.r2 = success(this.ledger.transfer(ALICE, CAROL, 60D));
+        }
+
+        @Arbiter
+        public void balances(IIII_Result result) {
+            result.r3 = (int) this.ledger.getBalance(ALICE);
+            result.r4 = (int) (this.ledger.getBalance(BOB) + this.ledger.getBalance(CAROL));
+        }
+    }
+
+    /**
+     * Two payments in opposite directions, which lock the same stripes. They
+     * must neither deadlock nor lose an update.
+     */
+    @JCStressTest
+    @Outcome(id = "1, 1, 200", expect = Expect.ACCEPTABLE, desc = "Both payments have been made.")
+    @Outcome(expect = Expect.FORBIDDEN, desc = "A payment has been refused or lost.")
+    @State
+    public static class OppositeTransfers {
+        private final Ledger ledger = createLedger();
+
+        @Actor
+        public void aliceToBob(III_Result result) {
+            result.r1 = success(this.ledger.transfer(ALICE, BOB, 30D));
+        }
+
+        @Actor
+        public void bobToAlice(III_Result result) {
+            result.r2 = success(this.ledger.transfer(BOB, ALICE, 50D));
+        }
+
+        @Arbiter
+        public void total(III_Result result) {
+            result.r3 = (int) (this.ledger.getBalance(ALICE) + this.ledger.getBalance(BOB));
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.paysign;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LedgerTest {
+    private static final UUID ALICE = UUID.fromString("00000000-0000-0000-0000-000000000001");
+    private static final UUID BOB = UUID.fromString("00000000-0000-0000-0000-000000000002");
+    private static final int RECORD_SIZE = 24; // two longs and a double
+
+    @TempDir
+    Path directory;
+
+    private Ledger ledger;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        this.ledger = new Ledger(this.directory.resolve("ledger"), 100D);
+        this.ledger.enable();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.ledger.disable();
+    }
+
+    @Test
+    void accountsStartWithTheStartingBalance() {
+        assertEquals(100D, this.ledger.getBalance(ALICE));
+        assertTrue(this.ledger.withdraw(ALICE, 30D));
+        assertFalse(this.ledger.withdraw(ALICE, 71D));
+        this.ledger.deposit(ALICE, 5D);
+        assertEquals(75D, this.ledger.getBalance(ALICE));
+    }
+
+    @Test
+    void transferMovesMoneyOnlyWhenItIsThere() {
+        assertEquals(Ledger.TransferStatus.SUCCESS, this.ledger.transfer(ALICE, BOB, 40D));
+        assertEquals(Ledger.TransferStatus.INSUFFICIENT_FUNDS, this.ledger.transfer(ALICE, BOB, 61D));
+        assertEquals(Ledger.TransferStatus.SUCCESS, this.ledger.transfer(ALICE, ALICE, 60D));
+        assertEquals(60D, this.ledger.getBalance(ALICE));
+        assertEquals(140D, this.ledger.getBalance(BOB));
+    }
+
+    @Test
+    void balancesSurviveRestart() throws IOException {
+        this.ledger.transfer(ALICE, BOB, 25D);
+        this.ledger.setBalance(BOB, 1000D);
+        this.ledger.disable();
+
+        this.ledger = new Ledger(this.directory.resolve("ledger"), 100D);
+        this.ledger.enable();
+        assertEquals(75D, this.ledger.getBalance(ALICE));
+        assertEquals(1000D, this.ledger.getBalance(BOB));
+    }
+
+    @Test
+    void playerNamesSurviveRestart() throws IOException {
+        this.ledger.rememberName("Alice", ALICE);
+        this.ledger.disable();
+
+        this.ledger = new Ledger(this.directory.resolve("ledger"), 100D);
+        this.ledger.enable();
+        assertEquals(Optional.of(ALICE), this.ledger.getAccount("alice"));
+        assertFalse(this.ledger.getAccount("bob").isPresent());
+    }
+
+    @Test
+    void logIsReplayedAfterCrashAndTornRecordIsIgnored() throws Exception {
+        this.ledger.transfer(ALICE, BOB, 25D);
+        this.ledger.withdraw(BOB, 5D);
+
+        // both transfer records and the withdrawal are written by the I/O thread
+        Path log = this.directory.resolve("ledger").resolve("ledger-1.log");
+        this.awaitSize(log, 3 * RECORD_SIZE);
+
+        // copy the files as they were at the moment of a crash, then tear the last record
+        Path crashed = Files.createDirectories(this.directory.resolve("crashed"));
+        Files.copy(this.directory.resolve("ledger").resolve("ledger.dat"), crashed.resolve("ledger.dat"));
+        Files.copy(log, crashed.resolve("ledger-1.log"));
+        Files.write(crashed.resolve("ledger-1.log"), new byte[] {1, 2, 3, 4, 5}, StandardOpenOption.APPEND);
+
+        Ledger recovered = new Ledger(crashed, 100D);
+        recovered.enable();
+        try {
+            assertEquals(75D, recovered.getBalance(ALICE));
+            assertEquals(120D, recovered.getBalance(BOB));
+        } finally {
+            recovered.disable();
+        }
+    }
+
+    @Test
+    void recordsOfManyStripesAreAllFlushed() throws Exception {
+        int accounts = 500; // enough to resize the table of every stripe
+        for (int i = 0; i < accounts; i++) {
+            this.ledger.setBalance(new UUID(0, i), i);
+        }
+
+        this.awaitSize(this.directory.resolve("ledger").resolve("ledger-1.log"), (long) accounts * RECORD_SIZE);
+        this.ledger.disable();
+
+        this.ledger = new Ledger(this.directory.resolve("ledger"), 100D);
+        this.ledger.enable();
+        for (int i = 0; i < accounts; i++) {
+            assertEquals(i, this.ledger.getBalance(new UUID(0, i)));
+        }
+    }
+
+    @Test
+    void concurrentTransfersNeitherLoseNorCreateMoney() throws Exception {
+        int accounts = 16; // few accounts, so the threads fight over the same stripes in both directions
+        int threads = 8;
+        int transfers = 20_000;
+
+        List<Integer> successes = Race.run(threads, thread -> {
+            Random random = new Random(thread); // the same transfers every run
+            int succeeded = 0;
+            for (int i = 0; i < transfers; i++) {
+                UUID from = new UUID(0, random.nextInt(accounts));
+                UUID to = new UUID(0, random.nextInt(accounts));
+                if (this.ledger.transfer(from, to, 1 + random.nextInt(30)).equals(Ledger.TransferStatus.SUCCESS)) {
+                    succeeded++;
+                }
+            }
+            return succeeded;
+        });
+
+        assertTrue(successes.stream().mapToInt(Integer::intValue).sum() > 0);
+        assertEquals(accounts * 100D, this.total(accounts));
+        this.ledger.disable();
+
+        this.ledger = new Ledger(this.directory.resolve("ledger"), 100D);
+        this.ledger.enable();
+        assertEquals(accounts * 100D, this.total(accounts));
+    }
+
+    private double total(int accounts) {
+        double total = 0D;
+        for (int i = 0; i < accounts; i++) {
+            double balance = this.ledger.getBalance(new UUID(0, i));
+            assertTrue(balance >= 0D, "account " + i + " went into debt");
+            total += balance;
+        }
+        return total;
+    }
+
+    private void awaitSize(Path file, long size) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (!Files.exists(file) || Files.size(file) < size) {
+            assertTrue(System.currentTimeMillis() < deadline, "log was not written in time");
+            Thread.sleep(10L);
+        }
+        assertEquals(size, Files.size(file));
+    }
+}
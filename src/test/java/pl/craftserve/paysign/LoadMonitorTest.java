@@ -0,0 +1,52 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class LoadMonitorTest {
+    @Test
+    void bookkeepingIsNeverDroppedWhenTheQueueIsFull() throws InterruptedException {
+        Configuration configuration = mock(Configuration.class); // zero thresholds, always overloaded
+        LoadMonitor monitor = new LoadMonitor(configuration, new PerformanceStats());
+        monitor.tick();
+        Thread.sleep(1L);
+        monitor.tick();
+        assertTrue(monitor.isOverloaded());
+
+        List<Integer> ran = new ArrayList<>();
+        int overflow = 5;
+        for (int i = 0; i < LoadMonitor.MAX_DEFERRED + overflow; i++) {
+            int task = i;
+            monitor.defer(() -> ran.add(task));
+        }
+        assertEquals(overflow, ran.size(), "the oldest tasks make room for the new ones");
+
+        monitor.drainAll();
+        assertEquals(LoadMonitor.MAX_DEFERRED + overflow, ran.size());
+        for (int i = 0; i < ran.size(); i++) {
+            assertEquals(i, ran.get(i), "tasks run in order");
+        }
+    }
+}
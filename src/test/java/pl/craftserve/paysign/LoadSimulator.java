@@ -0,0 +1,503 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import net.milkbowl.vault.economy.Economy;
+import org.bukkit.ChatColor;
+import org.bukkit.Material;
+import org.bukkit.block.BlockFace;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.PluginCommand;
+import org.bukkit.entity.Player;
+import org.bukkit.event.block.Action;
+import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPluginLoader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Headless load simulator. Runs the plugin on a {@link FakeServer}, drives
+ * sign clicks from simulated players and reports how much main thread time
+ * the plugin takes per tick, how many triggers it fires, how many economy
+ * calls it makes per click and how long it takes from a click to the
+ * redstone signal.
+ *
+ * <p>By default the clock is simulated: a tick lasts 50 ms, or longer if the
+ * plugin took longer, but the simulator doesn't sleep between ticks. With
+ * {@code --realtime} the simulator sleeps, so that asynchronous tasks get real
+ * time to finish.</p>
+ *
+ * <pre>
+ * mvn -Pload-simulator test -Dsimulator.args="--players 500 --clicks-per-second 400 --economy-latency-us 200"
+ * </pre>
+ */
+public final class LoadSimulator {
+    static final Logger pluginLogger = Logger.getLogger("pl.craftserve.paysign"); // keep the level set
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50L);
+    private static final int WARM_UP_TICKS = 20;
+    private static final int MAX_DRAIN_TICKS = 20 * 60;
+    private static final double STARTING_BALANCE = 1_000_000D;
+
+    private LoadSimulator() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(Options.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        Path dataFolder = Files.createTempDirectory("paysign-simulator");
+        try {
+            Report report = run(options, dataFolder);
+            for (String line : report.render()) {
+                System.out.println(line);
+            }
+            if (!report.isConsistent()) {
+                System.exit(1);
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(dataFolder)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    /**
+     * Runs a single simulation.
+     *
+     * @param dataFolder Empty directory used as the plugin data folder.
+     */
+    static Report run(Options options, Path dataFolder) {
+        Objects.requireNonNull(options, "options");
+        Objects.requireNonNull(dataFolder, "dataFolder");
+        pluginLogger.setLevel(options.verbose ? Level.INFO : Level.WARNING);
+
+        FakeServer server = FakeServer.get();
+        server.reset();
+        Random random = new Random(options.seed);
+
+        FakeEconomy economy = new FakeEconomy();
+        economy.setLatency(options.economyLatencyMicros, TimeUnit.MICROSECONDS);
+
+        FakeServer.FakeWorld world = server.addWorld("world");
+        List<Player> players = new ArrayList<>(options.players);
+        for (int i = 0; i < options.players; i++) {
+            String name = "player" + i;
+            players.add(server.addPlayer(name, world));
+            economy.setBalance(name, random.nextDouble() < options.poor ? 0D : STARTING_BALANCE);
+        }
+        for (int i = 0; i < options.owners; i++) {
+            economy.setBalance("owner" + i, 0D);
+        }
+
+        List<FakeServer.FakeBlock> signs = new ArrayList<>(options.signs);
+        for (int i = 0; i < options.signs; i++) {
+            String price = (1 + random.nextInt(50)) + (random.nextDouble() < options.passSigns ? "/5x" : "");
+            signs.add(world.placeSign((i % 100) * 3, 64, (i / 100) * 3,
+                    PaySign.NAMESPACE, "owner" + random.nextInt(options.owners), price, ""));
+        }
+        double moneyBefore = economy.getTotal();
+
+        Map<FakeServer.FakeBlock, Deque<long[]>> pendingClicks = new HashMap<>();
+        List<Long> latencies = new ArrayList<>();
+        long[] clock = new long[2]; // simulated nanos at the tick start, wall nanos at the tick start
+        server.onButtonPlaced(block -> {
+            Deque<long[]> clicks = pendingClicks.get(block);
+            long[] click = clicks == null ? null : clicks.poll();
+            if (click != null) {
+                latencies.add(clock[0] + (System.nanoTime() - clock[1]) - click[0]);
+            }
+        });
+
+        PaySignPlugin plugin = new PaySignPlugin(new JavaPluginLoader(server.getServer()),
+                new PluginDescriptionFile("PaySign", "simulator", PaySignPlugin.class.getName()),
+                dataFolder.toFile(), dataFolder.resolve("PaySign.jar").toFile());
+        server.registerCommand("paysign", plugin);
+        server.registerService(Economy.class, economy.getEconomy(), plugin);
+        options.config.forEach((path, value) -> plugin.getConfig().set(path, value));
+        plugin.onEnable();
+
+        for (int i = 0; i < WARM_UP_TICKS; i++) {
+            server.tick();
+        }
+        long economyCallsBefore = economy.getCalls();
+
+        Sampler sampler = options.zipf ? new ZipfSampler(signs.size(), random) : bound -> random.nextInt(bound);
+        int ticks = options.seconds * 20;
+        long[] tickNanos = new long[ticks];
+        double clicksPerTick = options.clicksPerSecond / 20D;
+        double clickDebt = 0D;
+        long clicks = 0L;
+        long scheduledClicks = 0L;
+
+        for (int tick = 0; tick < ticks; tick++) {
+            clock[1] = System.nanoTime();
+            server.tick();
+
+            clickDebt += clicksPerTick;
+            for (; clickDebt >= 1D; clickDebt--) {
+                FakeServer.FakeBlock sign = signs.get(sampler.next(signs.size()));
+                Player player = players.get(random.nextInt(players.size()));
+
+                long clickTime = clock[0] + (System.nanoTime() - clock[1]);
+                long scheduled = server.getScheduledSync();
+                plugin.onPlayerInteract(new PlayerInteractEvent(player, Action.RIGHT_CLICK_BLOCK, null, sign.block, BlockFace.UP));
+                clicks++;
+                if (server.getScheduledSync() != scheduled) {
+                    scheduledClicks++;
+                    pendingClicks.computeIfAbsent(sign, key -> new ArrayDeque<>()).add(new long[] {clickTime});
+                }
+            }
+
+            long work = System.nanoTime() - clock[1];
+            tickNanos[tick] = work;
+            clock[0] += Math.max(TICK_NANOS, work);
+            if (options.realtime && work < TICK_NANOS) {
+                sleep(TICK_NANOS - work);
+            }
+        }
+        long economyCalls = economy.getCalls() - economyCallsBefore;
+
+        // let the scheduled triggers fire and flush
+        for (int tick = 0; tick < MAX_DRAIN_TICKS && latencies.size() < scheduledClicks; tick++) {
+            clock[1] = System.nanoTime();
+            server.tick();
+            clock[0] += TICK_NANOS;
+        }
+        for (int tick = 0; tick < MAX_DRAIN_TICKS / 2; tick++) {
+            server.tick();
+        }
+        server.awaitAsync();
+
+        List<String> statsOutput = new ArrayList<>();
+        PluginCommand command = plugin.getCommand("paysign");
+        if (command != null && command.getExecutor() != null) {
+            command.getExecutor().onCommand(commandSender(statsOutput), command, "paysign", new String[] {"stats"});
+        }
+
+        plugin.onDisable();
+
+        int brokenSigns = 0;
+        for (FakeServer.FakeBlock sign : signs) {
+            if (!sign.getType().equals(Material.OAK_SIGN) || !ChatColor.stripColor(sign.lines[0]).equals(PaySign.NAMESPACE)) {
+                brokenSigns++;
+            }
+        }
+
+        return new Report(options, clicks, scheduledClicks, economyCalls, tickNanos,
+                latencies.stream().mapToLong(Long::longValue).toArray(), moneyBefore, economy.getTotal(), brokenSigns, statsOutput);
+    }
+
+    private static void sleep(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static CommandSender commandSender(List<String> output) {
+        return FakeServer.proxy(CommandSender.class, (method, args) -> {
+            switch (method) {
+                case "sendMessage":
+                    if (args[0] instanceof String[]) {
+                        output.addAll(Arrays.asList((String[]) args[0]));
+                    } else {
+                        output.add((String) args[0]);
+                    }
+                    return null;
+                case "getName":
+                    return "CONSOLE";
+                case "hasPermission":
+                case "isOp":
+                    return true;
+                default:
+                    return FakeServer.NO_ANSWER;
+            }
+        });
+    }
+
+    //
+    // Click distribution
+    //
+
+    @FunctionalInterface
+    interface Sampler {
+        int next(int bound);
+    }
+
+    /**
+     * Picks popular signs more often, like spawn mechanisms on a real server.
+     */
+    static final class ZipfSampler implements Sampler {
+        private final double[] cumulative;
+        private final Random random;
+
+        ZipfSampler(int size, Random random) {
+            this.cumulative = new double[size];
+            this.random = random;
+
+            double sum = 0D;
+            for (int i = 0; i < size; i++) {
+                sum += 1D / (i + 1);
+                this.cumulative[i] = sum;
+            }
+        }
+
+        @Override
+        public int next(int bound) {
+            double target = this.random.nextDouble() * this.cumulative[this.cumulative.length - 1];
+            int index = Arrays.binarySearch(this.cumulative, target);
+            return Math.min(index < 0 ? -index - 1 : index, bound - 1);
+        }
+    }
+
+    //
+    // Options
+    //
+
+    static final class Options {
+        static final String USAGE = "Options: --players <n> --signs <n> --owners <n> --seconds <n> --clicks-per-second <n>" +
+                " --distribution <uniform|zipf> --economy-latency-us <n> --pass-signs <0-1> --poor <0-1> --seed <n>" +
+                " --realtime --set <config path>=<value> --verbose";
+
+        int players = 300;
+        int signs = 2000;
+        int owners = 100;
+        int seconds = 60;
+        int clicksPerSecond = 200;
+        boolean zipf;
+        long economyLatencyMicros;
+        double passSigns = .1D;
+        double poor = .05D;
+        long seed = 1L;
+        boolean realtime;
+        boolean verbose;
+        final Map<String, Object> config = new LinkedHashMap<>();
+
+        static Options parse(String[] args) {
+            Objects.requireNonNull(args, "args");
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "--realtime":
+                        options.realtime = true;
+                        continue;
+                    case "--verbose":
+                        options.verbose = true;
+                        continue;
+                }
+
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++i];
+                try {
+                    switch (arg) {
+                        case "--players":
+                            options.players = positive(arg, Integer.parseInt(value));
+                            break;
+                        case "--signs":
+                            options.signs = positive(arg, Integer.parseInt(value));
+                            break;
+                        case "--owners":
+                            options.owners = positive(arg, Integer.parseInt(value));
+                            break;
+                        case "--seconds":
+                            options.seconds = positive(arg, Integer.parseInt(value));
+                            break;
+                        case "--clicks-per-second":
+                            options.clicksPerSecond = positive(arg, Integer.parseInt(value));
+                            break;
+                        case "--distribution":
+                            switch (value.toLowerCase(Locale.ROOT)) {
+                                case "uniform":
+                                    options.zipf = false;
+                                    break;
+                                case "zipf":
+                                    options.zipf = true;
+                                    break;
+                                default:
+                                    throw new IllegalArgumentException("Unknown distribution: " + value);
+                            }
+                            break;
+                        case "--economy-latency-us":
+                            options.economyLatencyMicros = Long.parseLong(value);
+                            break;
+                        case "--pass-signs":
+                            options.passSigns = Double.parseDouble(value);
+                            break;
+                        case "--poor":
+                            options.poor = Double.parseDouble(value);
+                            break;
+                        case "--seed":
+                            options.seed = Long.parseLong(value);
+                            break;
+                        case "--set":
+                            int separator = value.indexOf('=');
+                            if (separator < 1) {
+                                throw new IllegalArgumentException("Expected <config path>=<value>: " + value);
+                            }
+                            options.config.put(value.substring(0, separator), configValue(value.substring(separator + 1)));
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown option: " + arg);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid value for " + arg + ": " + value, e);
+                }
+            }
+            return options;
+        }
+
+        private static int positive(String option, int value) {
+            if (value < 1) {
+                throw new IllegalArgumentException(option + " must be positive");
+            }
+            return value;
+        }
+
+        private static Object configValue(String value) {
+            if (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false")) {
+                return Boolean.parseBoolean(value);
+            }
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException ignored) {
+            }
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException ignored) {
+            }
+            return value;
+        }
+    }
+
+    //
+    // Report
+    //
+
+    static final class Report {
+        final Options options;
+        final long clicks;
+        final long scheduledClicks;
+        final long economyCalls;
+        final long[] tickNanos;
+        final long[] latencyNanos;
+        final double moneyBefore;
+        final double moneyAfter;
+        final int brokenSigns;
+        final List<String> statsOutput;
+
+        Report(Options options, long clicks, long scheduledClicks, long economyCalls, long[] tickNanos, long[] latencyNanos,
+               double moneyBefore, double moneyAfter, int brokenSigns, List<String> statsOutput) {
+            this.options = options;
+            this.clicks = clicks;
+            this.scheduledClicks = scheduledClicks;
+            this.economyCalls = economyCalls;
+            this.tickNanos = tickNanos.clone();
+            this.latencyNanos = latencyNanos.clone();
+            this.moneyBefore = moneyBefore;
+            this.moneyAfter = moneyAfter;
+            this.brokenSigns = brokenSigns;
+            this.statsOutput = statsOutput;
+            Arrays.sort(this.tickNanos);
+            Arrays.sort(this.latencyNanos);
+        }
+
+        long getTriggers() {
+            return this.latencyNanos.length;
+        }
+
+        /**
+         * @return {@code true} if every scheduled click fired, no money was
+         * created or lost and every sign was restored.
+         */
+        boolean isConsistent() {
+            return this.getTriggers() == this.scheduledClicks
+                    && Math.abs(this.moneyBefore - this.moneyAfter) < 1e-6
+                    && this.brokenSigns == 0;
+        }
+
+        String[] render() {
+            List<String> lines = new ArrayList<>();
+            lines.add(String.format(Locale.ROOT, "PaySign load simulation: %d players, %d signs, %d owners, %d clicks/s (%s), %d s, economy latency %d us",
+                    this.options.players, this.options.signs, this.options.owners, this.options.clicksPerSecond,
+                    this.options.zipf ? "zipf" : "uniform", this.options.seconds, this.options.economyLatencyMicros));
+            lines.add(String.format(Locale.ROOT, "Plugin time per tick: avg %s, p50 %s, p99 %s, max %s",
+                    millis(average(this.tickNanos)), millis(percentile(this.tickNanos, .5D)),
+                    millis(percentile(this.tickNanos, .99D)), millis(this.tickNanos.length == 0 ? 0L : this.tickNanos[this.tickNanos.length - 1])));
+            lines.add(String.format(Locale.ROOT, "Clicks: %d, triggers: %d of %d scheduled",
+                    this.clicks, this.getTriggers(), this.scheduledClicks));
+            lines.add(String.format(Locale.ROOT, "Economy calls: %d, %.2f per click, %.2f per trigger",
+                    this.economyCalls, ratio(this.economyCalls, this.clicks), ratio(this.economyCalls, this.getTriggers())));
+            lines.add(String.format(Locale.ROOT, "Click to redstone latency: p50 %s, p99 %s, max %s",
+                    millis(percentile(this.latencyNanos, .5D)), millis(percentile(this.latencyNanos, .99D)),
+                    millis(this.latencyNanos.length == 0 ? 0L : this.latencyNanos[this.latencyNanos.length - 1])));
+            lines.add(String.format(Locale.ROOT, "Money before: %.2f, after: %.2f; signs not restored: %d",
+                    this.moneyBefore, this.moneyAfter, this.brokenSigns));
+            for (String line : this.statsOutput) {
+                lines.add(ChatColor.stripColor(line));
+            }
+            return lines.toArray(new String[0]);
+        }
+
+        private static long average(long[] values) {
+            return values.length == 0 ? 0L : (long) Arrays.stream(values).average().orElse(0D);
+        }
+
+        private static long percentile(long[] sorted, double percentile) {
+            return sorted.length == 0 ? 0L : sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile * sorted.length) - 1)];
+        }
+
+        private static double ratio(long value, long total) {
+            return total == 0L ? 0D : (double) value / total;
+        }
+
+        private static String millis(long nanos) {
+            return String.format(Locale.ROOT, "%.3f ms", nanos / 1_000_000D);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoadSimulatorTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void everyPaidClickTriggersAndIsRestored() {
+        LoadSimulator.Options options = LoadSimulator.Options.parse(new String[] {
+                "--players", "20", "--signs", "50", "--owners", "5", "--seconds", "5", "--clicks-per-second", "100",
+                "--distribution", "zipf", "--poor", "0.2", "--set", "history.enabled=false"
+        });
+        LoadSimulator.Report report = LoadSimulator.run(options, this.directory);
+
+        assertEquals(500L, report.clicks);
+        assertTrue(report.scheduledClicks > 0L, "no click was paid");
+        assertTrue(report.scheduledClicks < report.clicks, "poor players have paid");
+        assertEquals(report.scheduledClicks, report.getTriggers());
+        assertEquals(report.moneyBefore, report.moneyAfter, 1e-6);
+        assertEquals(0, report.brokenSigns);
+        assertTrue(report.economyCalls > 0L);
+    }
+}
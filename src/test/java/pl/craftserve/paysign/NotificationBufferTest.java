@@ -0,0 +1,55 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.Server;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class NotificationBufferTest {
+    @Test
+    void digestsOfOfflineOwnersAreCapped() {
+        Plugin plugin = mock(Plugin.class);
+        when(plugin.getServer()).thenReturn(mock(Server.class)); // every owner is offline
+        TaskScheduler scheduler = mock(TaskScheduler.class);
+        when(scheduler.runGlobalTimer(any(), anyLong(), anyLong())).thenReturn(mock(TaskScheduler.Task.class));
+        Configuration configuration = mock(Configuration.class);
+        when(configuration.notificationsWindow()).thenReturn(30L);
+        when(configuration.notificationsMode()).thenReturn(NotificationBuffer.Mode.CHAT);
+
+        NotificationBuffer notifications = new NotificationBuffer(plugin, mock(PluginManager.class), scheduler, configuration,
+                mock(MessageRenderer.class), new LoadMonitor(configuration, new PerformanceStats()), Double::toString);
+        notifications.enable();
+
+        int owners = NotificationBuffer.MAX_DIGESTS + 10;
+        for (int i = 0; i < owners; i++) {
+            notifications.add("owner" + i, "payer", 1D);
+        }
+        assertEquals(owners, notifications.getPendingCount());
+
+        notifications.flush();
+        assertEquals(NotificationBuffer.MAX_DIGESTS, notifications.getPendingCount());
+        notifications.disable();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.paysign;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class OwnerValidatorTest {
+    private final PaymentGateway gateway = mock(PaymentGateway.class);
+    private OwnerValidator validator;
+
+    @BeforeEach
+    void setUp() {
+        // run everything in place, so results are cached as soon as a method returns
+        TaskScheduler scheduler = mock(TaskScheduler.class);
+        doAnswer(invocation -> {
+            invocation.<Runnable>getArgument(0).run();
+            return null;
+        }).when(scheduler).runAsync(any());
+        doAnswer(invocation -> {
+            invocation.<Runnable>getArgument(0).run();
+            return null;
+        }).when(scheduler).runGlobal(any());
+
+        this.validator = new OwnerValidator(scheduler, () -> this.gateway);
+    }
+
+    @Test
+    void failedDepositToAnExistingAccountDoesNotInvalidateTheOwner() {
+        when(this.gateway.hasAccount("Notch")).thenReturn(true);
+        this.validator.revalidate("Notch");
+        assertEquals(OwnerValidator.Result.VALID, this.validator.check("Notch"));
+    }
+
+    @Test
+    void ownerWithoutAccountIsInvalid() {
+        when(this.gateway.hasAccount("Notch")).thenReturn(true);
+        assertEquals(OwnerValidator.Result.UNKNOWN, this.validator.check("Notch"));
+        assertEquals(OwnerValidator.Result.VALID, this.validator.check("notch"));
+
+        when(this.gateway.hasAccount("Notch")).thenReturn(false);
+        this.validator.revalidate("Notch");
+        assertEquals(OwnerValidator.Result.INVALID, this.validator.check("Notch"));
+    }
+
+    @Test
+    void cacheIsBoundedEvenIfNothingHasExpired() {
+        for (int i = 0; i < OwnerValidator.MAX_CACHE_SIZE * 3; i++) {
+            this.validator.put("owner" + i, OwnerValidator.Result.VALID);
+            assertTrue(this.validator.getCacheSize() <= OwnerValidator.MAX_CACHE_SIZE);
+        }
+    }
+}
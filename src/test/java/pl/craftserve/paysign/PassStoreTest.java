@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.Server;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class PassStoreTest {
+    private static final UUID PLAYER = UUID.fromString("00000000-0000-0000-0000-000000000001");
+    private static final BlockKey SIGN = new BlockKey(UUID.fromString("00000000-0000-0000-0000-0000000000ff"), 1, 64, -3);
+    private static final Pass.Offer FIVE_USES = new Pass.Offer(Pass.Offer.Kind.USES, 5);
+
+    @TempDir
+    Path directory;
+
+    private PassStore store;
+
+    @BeforeEach
+    void setUp() {
+        this.store = this.createStore();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.store.disable();
+    }
+
+    private PassStore createStore() {
+        Plugin plugin = mock(Plugin.class);
+        when(plugin.getName()).thenReturn("PaySign");
+        when(plugin.getServer()).thenReturn(mock(Server.class));
+
+        PassStore store = new PassStore(plugin, mock(PluginManager.class), this.directory);
+        store.enable();
+        return store;
+    }
+
+    @Test
+    void purchaseIsRefusedUntilPassesAreLoaded() {
+        assertFalse(this.store.isLoaded(PLAYER));
+        assertFalse(this.store.purchase(PLAYER, SIGN, FIVE_USES).isPresent());
+
+        this.store.load(PLAYER);
+        assertTrue(this.store.isLoaded(PLAYER));
+        assertEquals(4, this.store.purchase(PLAYER, SIGN, FIVE_USES).get().getRemainingUses());
+    }
+
+    @Test
+    void usedUpPassIsNotStored() {
+        this.store.load(PLAYER);
+        assertFalse(this.store.purchase(PLAYER, SIGN, new Pass.Offer(Pass.Offer.Kind.USES, 1)).isPresent());
+        assertFalse(this.store.redeem(PLAYER, SIGN).isPresent());
+    }
+
+    @Test
+    void passesSurviveRestart() {
+        this.store.load(PLAYER);
+        this.store.purchase(PLAYER, SIGN, FIVE_USES);
+        this.store.disable();
+
+        this.store = this.createStore();
+        this.store.load(PLAYER);
+        Optional<Pass> redeemed = this.store.redeem(PLAYER, SIGN);
+        assertTrue(redeemed.isPresent());
+        assertEquals(3, redeemed.get().getRemainingUses());
+    }
+
+    @Test
+    void failedLoadNeverOverwritesTheFile() throws IOException {
+        Path file = this.directory.resolve(PLAYER + ".dat");
+        byte[] corrupted = {0, 0, 0, 42};
+        Files.write(file, corrupted);
+
+        this.store.load(PLAYER);
+        assertTrue(this.store.isLoaded(PLAYER), "a click would wait for the passes forever");
+        assertFalse(this.store.redeem(PLAYER, SIGN).isPresent());
+        assertFalse(this.store.purchase(PLAYER, SIGN, FIVE_USES).isPresent());
+
+        this.store.release(PLAYER);
+        this.store.disable();
+        assertArrayEquals(corrupted, Files.readAllBytes(file));
+    }
+
+    @Test
+    void concurrentClicksUseEveryUseOnce() throws Exception {
+        int uses = 1000;
+        this.store.load(PLAYER);
+        this.store.purchase(PLAYER, SIGN, new Pass.Offer(Pass.Offer.Kind.USES, uses + 1)); // the purchase is a use
+
+        List<List<Integer>> remaining = Race.run(8, thread -> {
+            List<Integer> seen = new ArrayList<>();
+            Optional<Pass> redeemed;
+            while ((redeemed = this.store.redeem(PLAYER, SIGN)).isPresent()) {
+                seen.add(redeemed.get().getRemainingUses());
+            }
+            return seen;
+        });
+
+        // every use has been given to exactly one click
+        Set<Integer> seen = new HashSet<>();
+        for (List<Integer> thread : remaining) {
+            for (int left : thread) {
+                assertTrue(seen.add(left), left + " use(s) left seen twice");
+            }
+        }
+        assertEquals(uses, seen.size());
+        assertTrue(seen.stream().allMatch(left -> left >= 0 && left < uses));
+    }
+
+    @Test
+    void duplicateLoginKeepsPassesOfTheNewSession() {
+        this.store.load(PLAYER);
+        this.store.purchase(PLAYER, SIGN, FIVE_USES);
+
+        this.store.load(PLAYER); // the new session logs in before the old one quits
+        this.store.release(PLAYER);
+        assertTrue(this.store.isLoaded(PLAYER));
+        assertEquals(3, this.store.redeem(PLAYER, SIGN).get().getRemainingUses());
+
+        this.store.release(PLAYER);
+        assertFalse(this.store.isLoaded(PLAYER));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.paysign;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.III_Result;
+
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * jcstress tests of redeeming a pass by concurrent clicks, eg. on two regions
+ * of a region-threaded server.
+ *
+ * <pre>
+ * mvn -Pjcstress test
+ * </pre>
+ */
+public final class PassStress {
+    private static final BlockKey SIGN = new BlockKey(new UUID(0, 1), 1, 64, -3);
+    private static final long NOW = 1000L;
+
+    private PassStress() {
+    }
+
+    private static PassStore.PlayerPasses createPasses(int remainingUses) {
+        PassStore.PlayerPasses passes = new PassStore.PlayerPasses();
+        passes.put(SIGN, new Pass(remainingUses, 0L));
+        return passes;
+    }
+
+    /**
+     * @return Uses left after this one, -1 if there was no pass to use.
+     */
+    private static int redeem(PassStore.PlayerPasses passes) {
+        Optional<Pass> pass = passes.redeem(SIGN, NOW);
+        return pass.isPresent() ? pass.get().getRemainingUses() : -1;
+    }
+
+    @JCStressTest
+    @Outcome(id = {"0, -1, -1", "-1, 0, -1"}, expect = Expect.ACCEPTABLE, desc = "The last use has been given to one click.")
+    @Outcome(expect = Expect.FORBIDDEN, desc = "The last use has been given twice or lost.")
+    @State
+    public static class LastUse {
+        private final PassStore.PlayerPasses passes = createPasses(1);
+
+        @Actor
+        public void click1(III_Result result) {
+            result.r1 = redeem(this.passes);
+        }
+
+        @Actor
+        public void click2(III_Result result) {
+            result.r2 = redeem(this.passes);
+        }
+
+        @Arbiter
+        public void usedUp(III_Result result) {
+            result.r3 = redeem(this.passes);
+        }
+    }
+
+    @JCStressTest
+    @Outcome(id = {"1, 0, -1", "0, 1, -1"}, expect = Expect.ACCEPTABLE, desc = "Each click has used its own use.")
+    @Outcome(expect = Expect.FORBIDDEN, desc = "A use has been lost or given twice.")
+    @State
+    public static class TwoUses {
+        private final PassStore.PlayerPasses passes = createPasses(2);
+
+        @Actor
+        public void click1(III_Result result) {
+            result.r1 = redeem(this.passes);
+        }
+
+        @Actor
+        public void click2(III_Result result) {
+            result.r2 = redeem(this.passes);
+        }
+
+        @Arbiter
+        public void usedUp(III_Result result) {
+            result.r3 = redeem(this.passes);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import net.milkbowl.vault.economy.Economy;
+import org.bukkit.block.BlockFace;
+import org.bukkit.entity.Player;
+import org.bukkit.event.block.Action;
+import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PaySignPluginTest {
+    private static final double BALANCE = 100D;
+    private static final double PRICE = 10D;
+
+    @TempDir
+    Path directory;
+
+    private final FakeServer server = FakeServer.get();
+    private final FakeEconomy economy = new FakeEconomy();
+    private final ExecutorService clicker = Executors.newSingleThreadExecutor();
+    private FakeServer.FakeWorld world;
+    private Player player;
+    private PaySignPlugin plugin;
+
+    @BeforeEach
+    void setUp() {
+        this.server.reset();
+        this.world = this.server.addWorld("world");
+        this.player = this.server.addPlayer("player", this.world);
+        this.economy.setBalance("player", BALANCE);
+        this.economy.setBalance("owner", 0D);
+        this.plugin = this.enable();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.clicker.shutdownNow();
+        if (this.plugin != null) {
+            this.plugin.onDisable();
+        }
+    }
+
+    private PaySignPlugin enable() {
+        PaySignPlugin plugin = new PaySignPlugin(new JavaPluginLoader(this.server.getServer()),
+                new PluginDescriptionFile("PaySign", "test", PaySignPlugin.class.getName()),
+                this.directory.toFile(), this.directory.resolve("PaySign.jar").toFile());
+        this.server.registerCommand("paysign", plugin);
+        this.server.registerService(Economy.class, this.economy.getEconomy(), plugin);
+        plugin.onEnable();
+        this.server.tick(); // resolves the economy
+        return plugin;
+    }
+
+    @Test
+    void disableDuringPaymentNeverLosesMoney() throws Exception {
+        FakeServer.FakeBlock sign = this.world.placeSign(0, 64, 0, PaySign.NAMESPACE, "owner", String.valueOf((int) PRICE), "");
+        CountDownLatch gate = new CountDownLatch(1);
+        this.economy.setGate(gate);
+
+        PaySignPlugin plugin = this.plugin;
+        Future<?> click = this.clicker.submit(() -> plugin.onPlayerInteract(
+                new PlayerInteractEvent(this.player, Action.RIGHT_CLICK_BLOCK, null, sign.block, BlockFace.UP)));
+        this.awaitCalls(1L); // the payment is held at the gate
+
+        plugin.onDisable();
+        this.plugin = null;
+        gate.countDown();
+        click.get(30L, TimeUnit.SECONDS);
+        this.economy.setGate(null);
+
+        assertEquals(BALANCE, this.economy.getTotal(), 1e-9, "money was created or lost");
+        assertEquals(BALANCE - PRICE, this.economy.getBalance("player"), 1e-9, "the held payment has not completed");
+        assertEquals(PRICE, this.economy.getBalance("owner"), 1e-9);
+
+        this.plugin = this.enable(); // the reload
+        this.server.tick();
+        assertEquals(BALANCE - PRICE, this.economy.getBalance("player"), 1e-9, "the payment was replayed");
+        assertEquals(PRICE, this.economy.getBalance("owner"), 1e-9);
+    }
+
+    private void awaitCalls(long calls) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30L);
+        while (this.economy.getCalls() < calls) {
+            assertTrue(System.nanoTime() < deadline, "the payment has not reached the economy");
+            Thread.sleep(1L);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.paysign;
+
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class PaymentHistoryTest {
+    private static final BlockKey SIGN = new BlockKey(UUID.fromString("00000000-0000-0000-0000-0000000000ff"), 1, 64, -3);
+
+    @TempDir
+    Path directory;
+
+    private final Player payer = mock(Player.class);
+    private PaymentHistory history;
+    private int exports;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        when(this.payer.getUniqueId()).thenReturn(UUID.fromString("00000000-0000-0000-0000-000000000001"));
+        when(this.payer.getName()).thenReturn("payer");
+        this.history = this.createHistory(0L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.history.disable();
+    }
+
+    private PaymentHistory createHistory(long retention) throws IOException {
+        Plugin plugin = mock(Plugin.class);
+        when(plugin.getName()).thenReturn("PaySign");
+
+        PaymentHistory history = new PaymentHistory(plugin, this.directory.resolve("history"),
+                this.directory.resolve("exports"), mock(SignIndex.class), retention);
+        history.enable();
+        return history;
+    }
+
+    private void pay(double amount) {
+        this.history.record(PaymentHistory.Kind.PAYMENT, SIGN, "world", "owner", this.payer, amount);
+    }
+
+    /**
+     * @return Amounts of the exported payments.
+     */
+    private List<String> export() throws Exception {
+        CompletableFuture<String> summary = new CompletableFuture<>();
+        assertTrue(this.history.export(PaymentHistory.Format.CSV, summary::complete));
+        assertTrue(summary.get(5L, TimeUnit.SECONDS).startsWith("Exported"), summary.get());
+
+        try (Stream<Path> exports = Files.list(this.directory.resolve("exports"))) {
+            Path latest = exports.filter(Files::isDirectory)
+                    .filter(export -> !export.getFileName().toString().startsWith("done-"))
+                    .max(Path::compareTo).get();
+            Path payments = latest.resolve("payments-0001.csv");
+            List<String> amounts = Files.exists(payments) ? Files.readAllLines(payments).stream()
+                    .skip(1L)
+                    .map(line -> line.substring(line.lastIndexOf(',') + 1))
+                    .collect(Collectors.toList()) : Collections.emptyList();
+
+            Files.move(latest, latest.resolveSibling("done-" + ++this.exports));
+            return amounts;
+        }
+    }
+
+    private Path segment(int segment) {
+        return this.directory.resolve("history").resolve("payments-" + segment + ".bin");
+    }
+
+    @Test
+    void everyExportContainsOnlyNewPayments() throws Exception {
+        this.pay(1D);
+        this.pay(2D);
+        assertEquals(Arrays.asList("1.0", "2.0"), this.export());
+
+        this.pay(3D);
+        assertEquals(Collections.singletonList("3.0"), this.export());
+        assertTrue(this.export().isEmpty());
+    }
+
+    @Test
+    void cursorSurvivesRestart() throws Exception {
+        this.pay(1D);
+        this.export();
+        this.history.disable();
+
+        this.history = this.createHistory(0L);
+        this.pay(2D);
+        assertEquals(Collections.singletonList("2.0"), this.export());
+    }
+
+    @Test
+    void cursorPastTheEndOfASegmentIsKept() throws Exception {
+        this.pay(1D);
+        this.export();
+        this.history.disable();
+
+        // eg. the segment was restored from an older backup
+        Path cursor = this.directory.resolve("exports").resolve("cursor.dat");
+        long offset = Files.size(this.segment(0)) + 1000L;
+        new PaymentHistory.Cursor(0, offset).write(cursor);
+
+        this.history = this.createHistory(0L);
+        assertTrue(this.export().isEmpty());
+        assertEquals(offset, PaymentHistory.Cursor.read(cursor).offset);
+    }
+
+    @Test
+    void recordTornByACrashIsSkipped() throws Exception {
+        this.pay(1D);
+        this.history.disable();
+
+        // a record whose world name declares more bytes than there are
+        byte[] torn = new byte[8 + 1 + 28 + 2 + 2];
+        torn[torn.length - 1] = 100;
+        Files.write(this.segment(0), torn, StandardOpenOption.APPEND);
+
+        this.history = this.createHistory(0L);
+        assertEquals(Collections.singletonList("1.0"), this.export());
+    }
+
+    @Test
+    void malformedStringAtTheEndIsSkipped() throws Exception {
+        this.pay(1D);
+        this.history.disable();
+
+        byte[] malformed = new byte[8 + 1 + 28 + 2 + 1];
+        malformed[8 + 1 + 28 + 1] = 1; // world name of a single byte
+        malformed[malformed.length - 1] = (byte) 0xff; // which is never valid in modified UTF-8
+        Files.write(this.segment(0), malformed, StandardOpenOption.APPEND);
+
+        this.history = this.createHistory(0L);
+        assertEquals(Collections.singletonList("1.0"), this.export());
+    }
+
+    @Test
+    void segmentsOlderThanTheRetentionAreDeletedOnceExported() throws Exception {
+        this.pay(1D);
+        this.history.disable();
+        this.history = this.createHistory(0L);
+        this.pay(2D);
+        this.history.disable();
+
+        Files.setLastModifiedTime(this.segment(0), FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(31L)));
+        this.history = this.createHistory(30L);
+        assertTrue(Files.exists(this.segment(0)), "an unexported segment was deleted");
+        assertEquals(Arrays.asList("1.0", "2.0"), this.export());
+        this.history.disable();
+
+        this.history = this.createHistory(30L);
+        assertFalse(Files.exists(this.segment(0)));
+        assertTrue(Files.exists(this.segment(1)));
+        assertTrue(this.export().isEmpty());
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.paysign;
+
+import org.bukkit.Server;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PayoutBusTest {
+    private static final long FALLBACK_AFTER = 60L; // seconds, never reached by the tests
+
+    @TempDir
+    Path directory;
+
+    private final LoopbackPayoutTransport transport = new LoopbackPayoutTransport();
+    private final PaymentGateway gateway = mock(PaymentGateway.class);
+    private Plugin plugin;
+    private PayoutBus bus;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Server server = mock(Server.class);
+        doReturn(Collections.emptyList()).when(server).getOnlinePlayers();
+        this.plugin = mock(Plugin.class);
+        when(this.plugin.getName()).thenReturn("PaySign");
+        when(this.plugin.getServer()).thenReturn(server);
+
+        this.bus = this.enable(this.transport);
+    }
+
+    private PayoutJournal journal() {
+        return new PayoutJournal(this.directory.resolve("payouts.journal"));
+    }
+
+    private PayoutBus enable(PayoutTransport transport) throws IOException {
+        PayoutBus bus = new PayoutBus(this.plugin, mock(PluginManager.class), mock(TaskScheduler.class), transport, this.journal(),
+                "lobby", FALLBACK_AFTER, () -> this.gateway, mock(NotificationBuffer.class), new PerformanceStats());
+        bus.enable();
+        return bus;
+    }
+
+    private PayoutEvent payout(String origin) {
+        return new PayoutEvent(UUID.randomUUID(), origin, "owner", "payer", "world", 10D, System.currentTimeMillis(), false);
+    }
+
+    @Test
+    void pendingLocalPayoutIsDepositedOnDisable() {
+        when(this.gateway.deposit("owner", "world", 10D)).thenReturn(true);
+        this.bus.forward(this.payout("lobby"));
+
+        this.bus.disable();
+        verify(this.gateway).deposit("owner", "world", 10D);
+        verify(this.gateway, never()).deposit("payer", "world", 10D);
+    }
+
+    @Test
+    void pendingLocalPayoutIsRefundedOnDisableWhenTheOwnerCantBePaid() {
+        when(this.gateway.deposit("owner", "world", 10D)).thenReturn(false);
+        when(this.gateway.deposit("payer", "world", 10D)).thenReturn(true);
+        this.bus.forward(this.payout("lobby"));
+
+        this.bus.disable();
+        verify(this.gateway).deposit("payer", "world", 10D);
+    }
+
+    @Test
+    void payoutOfAnotherServerIsLeftToIt() {
+        this.transport.publish(Collections.singletonList(this.payout("survival")));
+
+        this.bus.disable();
+        verify(this.gateway, never()).deposit(anyString(), anyString(), anyDouble());
+    }
+
+    @Test
+    void payoutClaimedElsewhereIsNotDepositedAgain() {
+        PayoutEvent event = this.payout("lobby");
+        this.transport.claim(event.getId());
+        this.bus.forward(event);
+
+        this.bus.disable();
+        verify(this.gateway, never()).deposit(anyString(), anyString(), anyDouble());
+    }
+
+    @Test
+    void settledPayoutIsNotPaidAgainAfterARestart() throws IOException {
+        when(this.gateway.deposit("owner", "world", 10D)).thenReturn(true);
+        this.bus.forward(this.payout("lobby"));
+        this.bus.disable();
+
+        this.enable(new LoopbackPayoutTransport()).disable();
+        verify(this.gateway, times(1)).deposit("owner", "world", 10D);
+    }
+
+    @Test
+    void unpublishedPayoutIsPaidAfterARestart() throws IOException {
+        this.bus.disable();
+        PayoutTransport broken = mock(PayoutTransport.class);
+        doThrow(new IOException("unreachable")).when(broken).publish(any());
+        PayoutBus bus = this.enable(broken);
+        assertTrue(bus.forward(this.payout("lobby")));
+        bus.disable();
+        verify(this.gateway, never()).deposit(anyString(), anyString(), anyDouble());
+
+        when(this.gateway.deposit("owner", "world", 10D)).thenReturn(true);
+        this.enable(new LoopbackPayoutTransport()).disable();
+        verify(this.gateway).deposit("owner", "world", 10D);
+    }
+
+    @Test
+    void claimedPayoutIsDepositedAfterARestart() throws IOException {
+        this.bus.disable();
+        PayoutJournal journal = this.journal();
+        journal.enable();
+        journal.claim(this.payout("survival")); // the server went down before the deposit
+        journal.disable();
+
+        when(this.gateway.deposit("owner", "world", 10D)).thenReturn(true);
+        this.enable(new LoopbackPayoutTransport()).disable();
+        verify(this.gateway).deposit("owner", "world", 10D);
+    }
+
+    @Test
+    void disabledBusRefusesPayouts() {
+        this.bus.disable();
+        assertFalse(this.bus.forward(this.payout("lobby")), "the payout would never be published");
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.paysign;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProtectedBlocksTest {
+    private static final UUID WORLD = new UUID(0, 1);
+    private static final UUID NETHER = new UUID(0, 2);
+
+    private final ProtectedBlocks blocks = new ProtectedBlocks();
+
+    @Test
+    void blockStaysProtectedUntilItsLastRelease() {
+        BlockKey base = new BlockKey(WORLD, -30_000_000 + 1, 255, 29_999_999);
+        this.blocks.add(base);
+        this.blocks.add(base);
+        assertFalse(this.blocks.isEmpty());
+
+        this.blocks.remove(base);
+        assertTrue(this.contains(base));
+        this.blocks.remove(base);
+        assertFalse(this.contains(base));
+        assertTrue(this.blocks.isEmpty());
+    }
+
+    @Test
+    void worldsAndCoordinatesAreNotMixedUp() {
+        this.blocks.add(new BlockKey(WORLD, 1, 64, -1));
+        assertFalse(this.contains(new BlockKey(NETHER, 1, 64, -1)));
+        assertFalse(this.contains(new BlockKey(WORLD, -1, 64, 1)));
+        assertNotEquals(ProtectedBlocks.pack(1, 64, -1), ProtectedBlocks.pack(-1, 64, 1));
+    }
+
+    @Test
+    void matchesAMapUnderRandomChanges() {
+        Map<BlockKey, Integer> expected = new HashMap<>();
+        Random random = new Random(0);
+        for (int i = 0; i < 100_000; i++) {
+            // a small area, so that probe sequences overlap and entries are shifted back
+            BlockKey key = new BlockKey(random.nextBoolean() ? WORLD : NETHER, random.nextInt(16) - 8, 64, random.nextInt(16) - 8);
+            if (random.nextInt(3) == 0 || !expected.containsKey(key)) {
+                this.blocks.add(key);
+                expected.merge(key, 1, Integer::sum);
+            } else {
+                this.blocks.remove(key);
+                expected.computeIfPresent(key, (k, count) -> count == 1 ? null : count - 1);
+            }
+
+            if (i % 1000 == 0) {
+                for (int x = -8; x < 8; x++) {
+                    for (int z = -8; z < 8; z++) {
+                        BlockKey probe = new BlockKey(WORLD, x, 64, z);
+                        assertEquals(expected.containsKey(probe), this.contains(probe), probe.toString());
+                    }
+                }
+                assertEquals(expected.size(), this.blocks.size());
+            }
+        }
+    }
+
+    private boolean contains(BlockKey key) {
+        return this.blocks.contains(key.getWorldId(), key.getX(), key.getY(), key.getZ());
+    }
+}
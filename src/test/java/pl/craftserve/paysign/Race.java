@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.paysign;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntFunction;
+
+/**
+ * Runs the same task on several threads released at once, so they contend
+ * for real. Tests assert invariants which must hold for every interleaving.
+ */
+final class Race {
+    private static final long TIMEOUT = 30L; // seconds, a deadlock fails the test instead of hanging it
+
+    private Race() {
+    }
+
+    /**
+     * @param task Called with the thread number, returns the result of the thread.
+     * @return Results of all threads, in the thread order.
+     */
+    static <T> List<T> run(int threads, IntFunction<T> task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<T>> futures = new ArrayList<>(threads);
+            for (int i = 0; i < threads; i++) {
+                int thread = i;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return task.apply(thread);
+                }));
+            }
+            start.countDown();
+
+            List<T> results = new ArrayList<>(threads);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+            for (Future<T> future : futures) {
+                try {
+                    results.add(future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                } catch (ExecutionException e) {
+                    throw new AssertionError("A racing thread has failed.", e.getCause());
+                } catch (TimeoutException e) {
+                    throw new AssertionError("Racing threads have not finished in " + TIMEOUT + "s, deadlock?", e);
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.paysign;
+
+import org.bukkit.Chunk;
+import org.bukkit.block.BlockState;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class SignIndexTest {
+    @TempDir
+    Path directory;
+
+    private final FakeServer server = FakeServer.get();
+    private FakeServer.FakeWorld world;
+    private SignIndex index;
+
+    @BeforeEach
+    void setUp() {
+        this.server.reset();
+        this.world = this.server.addWorld("world");
+
+        Plugin plugin = mock(Plugin.class);
+        when(plugin.getName()).thenReturn("PaySign");
+        when(plugin.getServer()).thenReturn(this.server.getServer());
+        this.index = new SignIndex(plugin, mock(PluginManager.class), mock(TaskScheduler.class), new SignDataParser(),
+                this.directory.resolve("signs.dat"));
+        this.index.enable();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.index.disable();
+    }
+
+    private ChunkLoadEvent load(int x, int z, FakeServer.FakeBlock... signs) {
+        BlockState[] states = new BlockState[signs.length];
+        for (int i = 0; i < signs.length; i++) {
+            states[i] = signs[i].block.getState();
+        }
+
+        Chunk chunk = mock(Chunk.class);
+        when(chunk.getWorld()).thenReturn(this.world.world);
+        when(chunk.getX()).thenReturn(x);
+        when(chunk.getZ()).thenReturn(z);
+        when(chunk.getTileEntities()).thenReturn(states);
+        ChunkLoadEvent event = mock(ChunkLoadEvent.class);
+        when(event.getChunk()).thenReturn(chunk);
+        return event;
+    }
+
+    @Test
+    void legacySignsAreIndexedWhenTheirChunkLoads() {
+        FakeServer.FakeBlock paySign = this.world.placeSign(0, 64, 0, PaySign.NAMESPACE, "Owner", "10", "");
+        FakeServer.FakeBlock plainSign = this.world.placeSign(2, 64, 0, "hello", "", "", "");
+
+        this.index.indexLoaded(this.load(0, 0, paySign, plainSign));
+        assertEquals(Collections.singletonList(BlockKey.of(paySign.block)), this.index.find("owner"));
+        assertEquals(1, this.index.size());
+    }
+
+    @Test
+    void chunkIsScannedOncePerRun() {
+        FakeServer.FakeBlock paySign = this.world.placeSign(0, 64, 0, PaySign.NAMESPACE, "owner", "10", "");
+        this.index.indexLoaded(this.load(0, 0, paySign));
+        this.index.remove(BlockKey.of(paySign.block)); // eg. broken
+
+        this.index.indexLoaded(this.load(0, 0, paySign));
+        assertTrue(this.index.find("owner").isEmpty());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.paysign;
+
+import org.bukkit.Chunk;
+import org.bukkit.Material;
+import org.bukkit.block.Sign;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class TriggerJournalTest {
+    private static final String[] LINES = {PaySign.NAMESPACE, "owner", "10", ""};
+
+    @TempDir
+    Path directory;
+
+    private final FakeServer server = FakeServer.get();
+    private FakeServer.FakeWorld world;
+    private TriggerJournal journal;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        this.server.reset();
+        this.world = this.server.addWorld("world");
+        this.journal = this.createJournal();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.journal.disable();
+    }
+
+    private TriggerJournal createJournal() throws IOException {
+        Plugin plugin = mock(Plugin.class);
+        when(plugin.getServer()).thenReturn(this.server.getServer());
+
+        TaskScheduler scheduler = mock(TaskScheduler.class);
+        doAnswer(invocation -> {
+            invocation.<Runnable>getArgument(1).run();
+            return null;
+        }).when(scheduler).runAt(any(), any());
+
+        TriggerJournal journal = new TriggerJournal(plugin, mock(PluginManager.class), scheduler,
+                this.directory.resolve("triggers.journal"));
+        journal.enable();
+        return journal;
+    }
+
+    /**
+     * Records the sign and replaces it by a button, like a trigger does.
+     */
+    private int trigger(FakeServer.FakeBlock sign) {
+        int slot = this.journal.record(BlockKey.of(sign.block), (Sign) sign.block.getState());
+        sign.data = new FakeServer.FakeBlockData(Material.OAK_BUTTON);
+        sign.lines = new String[] {"", "", "", ""};
+        return slot;
+    }
+
+    /**
+     * Closes the journal without restoring anything, like a crash would.
+     */
+    private void crash() throws IOException {
+        this.journal.disable();
+        this.journal = this.createJournal();
+    }
+
+    @Test
+    void signsLeftAsButtonsAreRestoredAfterCrash() throws IOException {
+        List<FakeServer.FakeBlock> signs = new ArrayList<>();
+        for (int i = 0; i < 300; i++) { // more than the initial slots
+            FakeServer.FakeBlock sign = this.world.placeSign(i, 64, 0, LINES);
+            assertNotEquals(-1, this.trigger(sign));
+            signs.add(sign);
+        }
+
+        this.crash();
+        for (FakeServer.FakeBlock sign : signs) {
+            assertEquals(Material.OAK_SIGN, sign.getType());
+            assertArrayEquals(LINES, sign.lines);
+        }
+    }
+
+    @Test
+    void clearedSignsAreNotRestored() throws IOException {
+        FakeServer.FakeBlock sign = this.world.placeSign(0, 64, 0, LINES);
+        int slot = this.trigger(sign);
+
+        // the trigger has flushed, and the player has put something else there
+        this.journal.clear(slot);
+        sign.data = new FakeServer.FakeBlockData(Material.OAK_BUTTON);
+
+        this.crash();
+        assertEquals(Material.OAK_BUTTON, sign.getType());
+    }
+
+    @Test
+    void freedSlotsAreReused() throws IOException {
+        FakeServer.FakeBlock sign = this.world.placeSign(0, 64, 0, LINES);
+        int slot = this.trigger(sign);
+        this.journal.clear(slot);
+
+        FakeServer.FakeBlock other = this.world.placeSign(1, 64, 0, LINES);
+        assertEquals(slot, this.trigger(other));
+
+        this.crash();
+        assertEquals(Material.OAK_SIGN, other.getType());
+        assertEquals(Material.OAK_BUTTON, sign.getType());
+    }
+
+    @Test
+    void signsInUnloadedChunksWaitForThem() throws IOException {
+        FakeServer.FakeBlock sign = this.world.placeSign(0, 64, 0, LINES);
+        this.trigger(sign);
+
+        this.world.chunksLoaded = false;
+        this.crash();
+        this.world.chunksLoaded = true;
+        assertEquals(Material.OAK_BUTTON, sign.getType());
+
+        Chunk chunk = mock(Chunk.class);
+        when(chunk.getWorld()).thenReturn(this.world.world);
+        ChunkLoadEvent event = mock(ChunkLoadEvent.class);
+        when(event.getChunk()).thenReturn(chunk);
+        this.journal.restoreOnLoad(event);
+        assertEquals(Material.OAK_SIGN, sign.getType());
+        assertArrayEquals(LINES, sign.lines);
+    }
+}
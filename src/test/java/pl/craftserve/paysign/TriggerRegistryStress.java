@@ -0,0 +1,210 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.paysign;
+
+import org.bukkit.Location;
+import org.bukkit.block.Sign;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.ZZI_Result;
+import org.openjdk.jcstress.infra.results.ZZZ_Result;
+
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * jcstress tests of {@link TriggerRegistry#trigger}, which is called by clicks
+ * on any region thread. The triggers are only scheduled, never executed, so
+ * the shared {@link FakeServer} world is only read.
+ *
+ * <pre>
+ * mvn -Pjcstress test
+ * </pre>
+ */
+public final class TriggerRegistryStress {
+    private static final String[] LINES = {PaySign.NAMESPACE, "owner", "10", "1"};
+
+    private static final Plugin PLUGIN = mock(Plugin.class, withSettings().stubOnly());
+    private static final PluginManager PLUGIN_MANAGER = mock(PluginManager.class, withSettings().stubOnly());
+    private static final Configuration CONFIGURATION = mock(Configuration.class, withSettings().stubOnly());
+    private static final PerformanceStats STATS = new PerformanceStats();
+    private static final LoadMonitor LOAD_MONITOR = new LoadMonitor(CONFIGURATION, STATS);
+    private static final ClickWatchdog WATCHDOG = new ClickWatchdog(PLUGIN, CONFIGURATION, () -> null);
+
+    private static final Player PLAYER;
+    private static final Click[] CLICKS = new Click[3];
+
+    static {
+        FakeServer server = FakeServer.get();
+        FakeServer.FakeWorld world = server.addWorld("world");
+        PLAYER = server.addPlayer("player", world);
+        for (int i = 0; i < CLICKS.length; i++) {
+            CLICKS[i] = new Click(world.placeSign(i * 2, 64, 0, LINES));
+        }
+    }
+
+    private TriggerRegistryStress() {
+    }
+
+    /**
+     * Two clicks on the same sign.
+     */
+    @JCStressTest
+    @Outcome(id = {"true, false, true", "false, true, true"}, expect = Expect.ACCEPTABLE, desc = "The sign has been triggered once.")
+    @Outcome(expect = Expect.FORBIDDEN, desc = "The sign has been triggered twice or not at all.")
+    @State
+    public static class SameSign {
+        private final TriggerRegistry registry = createRegistry(new Scheduler());
+
+        @Actor
+        public void click1(ZZZ_Result result) {
+            result.r1 = CLICKS[0].trigger(this.registry);
+        }
+
+        @Actor
+        public void click2(ZZZ_Result result) {
+            result.r2 = CLICKS[0].trigger(this.registry);
+        }
+
+        @Arbiter
+        public void triggered(ZZZ_Result result) {
+            result.r3 = CLICKS[0].isTriggered(this.registry);
+        }
+    }
+
+    /**
+     * Clicks on two signs while the pool holds a single trigger, released by
+     * a refused click. Each click must get its own trigger.
+     */
+    @JCStressTest
+    @Outcome(id = "true, true, 2", expect = Expect.ACCEPTABLE, desc = "Both signs have their own trigger.")
+    @Outcome(expect = Expect.FORBIDDEN, desc = "A pooled trigger has been given to both clicks.")
+    @State
+    public static class PooledTrigger {
+        private final Scheduler scheduler = new Scheduler();
+        private final TriggerRegistry registry = createRegistry(this.scheduler);
+
+        public PooledTrigger() {
+            CLICKS[0].trigger(this.registry);
+            CLICKS[0].trigger(this.registry); // refused, so its trigger goes to the pool
+        }
+
+        @Actor
+        public void click1(ZZI_Result result) {
+            result.r1 = CLICKS[1].trigger(this.registry);
+        }
+
+        @Actor
+        public void click2(ZZI_Result result) {
+            result.r2 = CLICKS[2].trigger(this.registry);
+        }
+
+        @Arbiter
+        public void triggers(ZZI_Result result) {
+            // every trigger schedules its own execute task, the first one is of the sign clicked in the constructor
+            Set<Runnable> triggers = Collections.newSetFromMap(new IdentityHashMap<>());
+            triggers.addAll(this.scheduler.tasks);
+            result.r3 = triggers.size() - 1;
+        }
+    }
+
+    private static TriggerRegistry createRegistry(TaskScheduler scheduler) {
+        // the journal is only used by executed triggers
+        TriggerJournal journal = new TriggerJournal(PLUGIN, PLUGIN_MANAGER, scheduler, Paths.get("jcstress-triggers.journal"));
+        return new TriggerRegistry(PLUGIN, PLUGIN_MANAGER, scheduler, LOAD_MONITOR, STATS, WATCHDOG, journal, null);
+    }
+
+    private static final class Click {
+        private final PaySign paySign;
+        private final BlockKey signKey;
+
+        Click(FakeServer.FakeBlock sign) {
+            try {
+                this.paySign = new SignDataParser().parse((Sign) sign.block.getState()).get();
+            } catch (SignDataParser.ParseException e) {
+                throw new IllegalStateException(e);
+            }
+            this.signKey = BlockKey.of(sign.block);
+        }
+
+        boolean trigger(TriggerRegistry registry) {
+            return registry.trigger(this.paySign, this.signKey, PLAYER, System.nanoTime(), 20L);
+        }
+
+        boolean isTriggered(TriggerRegistry registry) {
+            return registry.isTriggered(this.signKey);
+        }
+    }
+
+    /**
+     * Keeps the scheduled tasks without running them.
+     */
+    private static final class Scheduler implements TaskScheduler {
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public void runAt(Location location, Runnable task) {
+            this.tasks.add(task);
+        }
+
+        @Override
+        public void runAtLater(Location location, Runnable task, long delay) {
+            this.tasks.add(task);
+        }
+
+        @Override
+        public void runGlobal(Runnable task) {
+            this.tasks.add(task);
+        }
+
+        @Override
+        public void runGlobalLater(Runnable task, long delay) {
+            this.tasks.add(task);
+        }
+
+        @Override
+        public Task runGlobalTimer(Runnable task, long delay, long period) {
+            return () -> {
+            };
+        }
+
+        @Override
+        public void runAsync(Runnable task) {
+            this.tasks.add(task);
+        }
+
+        @Override
+        public boolean isRegionThreaded() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2020 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.paysign;
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.Sign;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class TriggerRegistryTest {
+    private static final String[] LINES = {PaySign.NAMESPACE, "owner", "10", "1"};
+    private static final int SIGNS = 100; // more than the pool, so triggers are both pooled and created
+    private static final int THREADS = 8;
+
+    @TempDir
+    Path directory;
+
+    private final FakeServer server = FakeServer.get();
+    private final Queue<Runnable> scheduled = new ConcurrentLinkedQueue<>();
+    private final List<FakeServer.FakeBlock> signs = new ArrayList<>(SIGNS);
+    private final List<PaySign> paySigns = new ArrayList<>(SIGNS);
+    private Player player;
+    private TriggerJournal journal;
+    private TriggerRegistry registry;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        this.server.reset();
+        FakeServer.FakeWorld world = this.server.addWorld("world");
+        this.player = this.server.addPlayer("player", world);
+        for (int i = 0; i < SIGNS; i++) {
+            FakeServer.FakeBlock sign = world.placeSign(i * 2, 64, 0, LINES);
+            this.signs.add(sign);
+            this.paySigns.add(new SignDataParser().parse((Sign) sign.block.getState()).get());
+        }
+
+        Plugin plugin = mock(Plugin.class);
+        when(plugin.getName()).thenReturn("PaySign");
+        when(plugin.getServer()).thenReturn(this.server.getServer());
+
+        // tasks wait in a queue for the "main thread", which is the test
+        TaskScheduler scheduler = mock(TaskScheduler.class);
+        doAnswer(invocation -> this.scheduled.add(invocation.getArgument(1))).when(scheduler).runAt(any(), any());
+        doAnswer(invocation -> this.scheduled.add(invocation.getArgument(1))).when(scheduler).runAtLater(any(), any(), anyLong());
+
+        Configuration configuration = mock(Configuration.class);
+        PerformanceStats stats = new PerformanceStats();
+        this.journal = new TriggerJournal(plugin, mock(PluginManager.class), scheduler, this.directory.resolve("triggers.journal"));
+        this.journal.enable();
+        this.registry = new TriggerRegistry(plugin, mock(PluginManager.class), scheduler, new LoadMonitor(configuration, stats),
+                stats, new ClickWatchdog(plugin, configuration, () -> null), this.journal, null);
+        this.registry.enable();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.registry.disable();
+        this.journal.disable();
+    }
+
+    private void runScheduled() {
+        Runnable task;
+        while ((task = this.scheduled.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void runScheduled(int tasks) {
+        for (int i = 0; i < tasks; i++) {
+            this.scheduled.remove().run();
+        }
+    }
+
+    @Test
+    void sharedBaseBlockIsProtectedUntilTheLastSignIsRestored() throws Exception {
+        FakeServer.FakeWorld world = this.server.addWorld("walls");
+        FakeServer.FakeBlock east = world.placeWallSign(1, 64, 0, BlockFace.EAST, LINES);
+        FakeServer.FakeBlock west = world.placeWallSign(-1, 64, 0, BlockFace.WEST, LINES);
+        Block base = world.getBlock(0, 64, 0).block;
+
+        for (FakeServer.FakeBlock sign : Arrays.asList(east, west)) {
+            PaySign paySign = new SignDataParser().parse((Sign) sign.block.getState()).get();
+            assertTrue(this.registry.trigger(paySign, BlockKey.of(sign.block), this.player, System.nanoTime(), 20L));
+        }
+        assertFalse(this.registry.test(base));
+
+        this.runScheduled(2); // both triggers execute
+        assertTrue(this.registry.test(base));
+
+        this.runScheduled(1); // the first sign is restored, the second one still stands on the base
+        assertEquals(Material.OAK_WALL_SIGN, east.getType());
+        assertTrue(this.registry.test(base));
+        assertTrue(this.registry.test(west.block));
+
+        this.runScheduled(1);
+        assertFalse(this.registry.test(base));
+        assertFalse(this.registry.test(west.block));
+    }
+
+    @Test
+    void concurrentClicksTriggerEverySignOnce() throws Exception {
+        for (int round = 0; round < 3; round++) { // later rounds take the triggers from the pool
+            List<int[]> triggered = Race.run(THREADS, thread -> {
+                int[] counts = new int[SIGNS];
+                for (int i = 0; i < SIGNS; i++) {
+                    int sign = (i + thread * 7) % SIGNS; // every thread starts elsewhere, so they meet everywhere
+                    PaySign paySign = this.paySigns.get(sign);
+                    if (this.registry.trigger(paySign, BlockKey.of(this.signs.get(sign).block), this.player,
+                            System.nanoTime(), paySign.getDelay().getAsInt())) {
+                        counts[sign]++;
+                    }
+                }
+                return counts;
+            });
+
+            for (int i = 0; i < SIGNS; i++) {
+                int count = 0;
+                for (int[] counts : triggered) {
+                    count += counts[i];
+                }
+                assertEquals(1, count, "sign " + i + " in round " + round);
+            }
+
+            // a trigger shared by two clicks would execute one sign twice and leave the other one untouched
+            this.runScheduled();
+            for (FakeServer.FakeBlock sign : this.signs) {
+                assertEquals(Material.OAK_SIGN, sign.getType());
+                assertArrayEquals(LINES, sign.lines);
+                assertFalse(this.registry.isTriggered(BlockKey.of(sign.block)));
+            }
+        }
+    }
+}